@@ -0,0 +1,151 @@
+package kvstore;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the operations of every storage engine, head to head, at several key-space sizes. Each
+ * operation is measured on a single thread and under contention, where several threads share the same store.
+ * Keys are drawn uniformly from a pre-populated key space, so GETs always hit and PUTs always overwrite.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class KVStoreBenchmark {
+    @Param({"concurrent", "hashmap", "offheap", "cache", "ordered"})
+    public String engine;
+
+    @Param({"1000", "100000", "1000000"})
+    public int keySpace;
+
+    private KVStore store;
+    private String[] keys;
+    private String value;
+
+    /**
+     * Create the store and put every key of the key space.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        switch (engine) {
+            case "concurrent":
+                store = new ConcurrentKVStore();
+                break;
+            case "hashmap":
+                store = new HashMapKVStore();
+                break;
+            case "offheap":
+                store = new OffHeapKVStore(1L << 30);
+                break;
+            case "cache":
+                // Large enough to hold the key space, so that the benchmark measures the policy and not misses
+                store = new BoundedKVStore(new TinyLfuPolicy(keySpace), keySpace * 2L, false);
+                break;
+            case "ordered":
+                store = new OrderedKVStore();
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown engine " + engine);
+        }
+        keys = new String[keySpace];
+        value = "v".repeat(100);
+        for (int i = 0; i < keySpace; i++) {
+            keys[i] = "key" + i;
+            store.put(keys[i], value);
+        }
+    }
+
+    /**
+     * Release the memory of the off-heap engine before the next trial.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        store = null;
+        keys = null;
+        System.gc();
+    }
+
+    /**
+     * The random key generator of a benchmark thread.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private final SplittableRandom random = new SplittableRandom(Thread.currentThread().threadId());
+
+        private String next(String[] keys) {
+            return keys[random.nextInt(keys.length)];
+        }
+    }
+
+    @Benchmark
+    public String get(Cursor cursor) {
+        return store.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    public void put(Cursor cursor) {
+        store.put(cursor.next(keys), value);
+    }
+
+    /**
+     * Remove a key and put it back, so that the key space stays populated.
+     */
+    @Benchmark
+    public String deleteAndPut(Cursor cursor) {
+        String key = cursor.next(keys);
+        String removed = store.delete(key);
+        store.put(key, value);
+        return removed;
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getContended(Cursor cursor) {
+        return store.get(cursor.next(keys));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void putContended(Cursor cursor) {
+        store.put(cursor.next(keys), value);
+    }
+
+    /**
+     * Readers of a read-mostly workload, sharing the store with a writer.
+     */
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(3)
+    public String readMostlyGet(Cursor cursor) {
+        return store.get(cursor.next(keys));
+    }
+
+    /**
+     * Writer of a read-mostly workload, sharing the store with the readers.
+     */
+    @Benchmark
+    @Group("readMostly")
+    @GroupThreads(1)
+    public void readMostlyPut(Cursor cursor) {
+        store.put(cursor.next(keys), value);
+    }
+}
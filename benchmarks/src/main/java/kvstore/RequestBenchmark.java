@@ -0,0 +1,134 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks the request processing of the server without any I/O: parsing text requests, handling text
+ * and binary requests end to end against the default engine, and encoding and decoding binary messages.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestBenchmark {
+    private final static String GET = "id:42 GET key7";
+    private final static String PUT = "id:42 PUT key7 " + "v".repeat(100);
+    private final static String MGET = "id:42 MGET key1 key2 key3 key4 key5 key6 key7 key8";
+    private final static String MALFORMED = "id:42 PUT key7";
+
+    private final RequestParser parser = new RequestParser();
+    private Server server;
+    private ByteBuffer binaryGet;
+    private ByteBuffer binaryResponse;
+
+    /**
+     * A connection that only provides the address and the logging used by the handler.
+     */
+    private final static ServerConnection CONNECTION = new ServerConnection() {
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void send(String message) {
+        }
+
+        @Override
+        public String receive() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String getConnectionAddress() {
+            return "127.0.0.1:0";
+        }
+
+        @Override
+        public void log(Log.Level level, String message) {
+        }
+    };
+
+    /**
+     * Create a server without a transport, and populate its store.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Neither TCP nor UDP, so the server does not open a socket
+        server = new Server(0, "NONE", Map.of("log-level", "off"));
+        for (int i = 0; i < 16; i++) {
+            server.handle("id:0 PUT key" + i + " value" + i, CONNECTION);
+        }
+        binaryGet = BinaryProtocol.request(BinaryProtocol.GET, 42, "key7", null);
+        binaryResponse = BinaryProtocol.response(BinaryProtocol.STATUS_OK, 42, "v".repeat(100));
+    }
+
+    @Benchmark
+    public boolean parseGet() {
+        return parser.parse(GET);
+    }
+
+    @Benchmark
+    public String parsePut() {
+        parser.parse(PUT);
+        return parser.getValue();
+    }
+
+    @Benchmark
+    public String[] parseMget() {
+        parser.parse(MGET);
+        return parser.getKeys();
+    }
+
+    @Benchmark
+    public String parseMalformed() {
+        parser.parse(MALFORMED);
+        return parser.getError();
+    }
+
+    @Benchmark
+    public String handleGet() {
+        return server.handle(GET, CONNECTION);
+    }
+
+    @Benchmark
+    public String handlePut() {
+        return server.handle(PUT, CONNECTION);
+    }
+
+    @Benchmark
+    public ByteBuffer handleBinaryGet() {
+        return server.handleBinary(binaryGet.duplicate(), CONNECTION);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeBinaryPut() {
+        return BinaryProtocol.request(BinaryProtocol.PUT, 42, "key7", "v".repeat(100));
+    }
+
+    @Benchmark
+    public String decodeBinaryResponse() {
+        ByteBuffer response = binaryResponse.duplicate();
+        response.get();
+        BinaryProtocol.readVarint(response);
+        return BinaryProtocol.readString(response);
+    }
+}
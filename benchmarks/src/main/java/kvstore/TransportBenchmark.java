@@ -0,0 +1,82 @@
+package kvstore;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * This class benchmarks a request round trip over loopback, through the encoding, the transport, and the decoding of
+ * both the client and the server. Each transport serves a single client, so the results are the latency of one
+ * request rather than the throughput of the server.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportBenchmark {
+    @Param({"TCP", "TCP-NIO", "UDP"})
+    public String transport;
+
+    private CommunicationClient client;
+    private CommunicationClient binaryClient;
+    private long id;
+
+    /**
+     * Start a server on a free port of the loopback interface, and connect a text and a binary client to it.
+     */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String protocol = transport.startsWith("TCP") ? "TCP" : "UDP";
+        Server server = new Server(port, protocol, Map.of("log-level", "off", "threads", "virtual",
+                "io", transport.equals("TCP-NIO") ? "nio" : "blocking"));
+        Thread thread = new Thread(server::run, "benchmark-server");
+        thread.setDaemon(true);
+        thread.start();
+        client = protocol.equals("TCP") ? new TCPClient("localhost", port) : new UDPClient("localhost", port);
+        client.start();
+        binaryClient = protocol.equals("TCP") ? new TCPClient("localhost", port) : new UDPClient("localhost", port);
+        binaryClient.start();
+        binaryClient.startBinary();
+        client.send("id:0 PUT key7 " + "v".repeat(100));
+        client.receive();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        client.close();
+        binaryClient.close();
+    }
+
+    @Benchmark
+    public String textGet() throws IOException {
+        client.send("id:" + id++ + " GET key7");
+        return client.receive();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryGet() throws IOException {
+        binaryClient.sendBinary(BinaryProtocol.request(BinaryProtocol.GET, id++, "key7", null));
+        return binaryClient.receiveBinary();
+    }
+}
@@ -0,0 +1,378 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class generates load against the server and reports its throughput and latency percentiles.
+ * Each of --concurrency connections runs on its own thread and sends one request at a time, for keys drawn uniformly
+ * or from a Zipfian distribution over --keys keys, with the GET:PUT:DELETE proportions of --mix and values of
+ * --value-size bytes.
+ * With --rate, the load is open-loop: every request has an intended send time on a fixed schedule, and its latency is
+ * measured from that intended time rather than from when it was actually sent. A server stall therefore counts against
+ * every request that should have been sent during the stall, correcting for coordinated omission. Without --rate,
+ * each connection sends its next request as soon as the previous one is answered, and latencies are measured from the
+ * actual send time.
+ * Requests of the first --warmup-s seconds are not recorded, then the load runs for --duration-s seconds.
+ * Against a cluster, each connection is a ClusterClient sending every request to the node owning its key.
+ * With --pool=n, the --concurrency callers are threads sharing a TCPClientPool of n connections instead, as the
+ * request threads of an application server would, with their requests multiplexed over the connections.
+ * With --near-cache=n as well, the pool caches up to n of the hottest keys of the server, and the report counts the
+ * GET requests it answered.
+ * With --format=compressed, requests use the binary protocol with the COMPRESSED flag: PUT values are compressed by
+ * the client, and GET responses may be compressed by the server.
+ */
+public class Benchmark {
+    private final static String[] COMMANDS = {"GET", "PUT", "DELETE"};
+    private final static double ZIPF_EXPONENT = 0.99;
+    private final String host;
+    private final int port;
+    private final String protocol;
+    private final HashRing ring;
+    private final int poolSize;
+    private final int nearCacheSize;
+    private TCPClientPool pool;
+    private final boolean binary;
+    private final boolean compressed;
+    private final int concurrency;
+    private final long rate;
+    private final int keys;
+    private final boolean zipfian;
+    private final int[] mix = new int[COMMANDS.length];
+    private final String value;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final LatencyHistogram[] histograms = new LatencyHistogram[COMMANDS.length];
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong finished = new AtomicLong(); // time at which the last connection finished
+    private double zeta; // normalization constant of the Zipfian distribution
+    private double eta;
+
+    /**
+     * Constructor for a benchmark.
+     *
+     * @param host     hostname or IP address of the server
+     * @param port     port number of the server
+     * @param protocol protocol to be used, TCP or UDP
+     * @param ring     hash ring of the cluster to send the requests to, or null to send them to host and port
+     * @param options  settings of the load, see the class description
+     * @throws IllegalArgumentException if a setting is not valid
+     */
+    public Benchmark(String host, int port, String protocol, HashRing ring, Map<String, String> options)
+            throws IllegalArgumentException {
+        this.host = host;
+        this.port = port;
+        this.protocol = protocol;
+        this.ring = ring;
+        String format = options.getOrDefault("format", "text").toLowerCase();
+        if (!format.matches("text|binary|compressed")) {
+            throw new IllegalArgumentException("Format must be one of text, binary, compressed.");
+        }
+        compressed = format.equals("compressed");
+        binary = compressed || format.equals("binary");
+        poolSize = options.containsKey("pool") ? (int) positiveOption(options, "pool", 0) : 0;
+        if (poolSize > 0 && (binary || ring != null || !protocol.equals("TCP"))) {
+            throw new IllegalArgumentException("Option pool requires the TCP text protocol on a single server.");
+        }
+        nearCacheSize = options.containsKey("near-cache") ? (int) positiveOption(options, "near-cache", 0) : 0;
+        if (nearCacheSize > 0 && poolSize == 0) {
+            throw new IllegalArgumentException("Option near-cache requires option pool.");
+        }
+        concurrency = (int) positiveOption(options, "concurrency", 1);
+        rate = options.containsKey("rate") ? positiveOption(options, "rate", 0) : 0;
+        keys = (int) positiveOption(options, "keys", 100_000);
+        switch (options.getOrDefault("distribution", "uniform").toLowerCase()) {
+            case "uniform":
+                zipfian = false;
+                break;
+            case "zipf":
+                zipfian = true;
+                break;
+            default:
+                throw new IllegalArgumentException("Distribution must be one of uniform, zipf.");
+        }
+        String[] proportions = options.getOrDefault("mix", "90:10:0").split(":");
+        try {
+            int total = 0;
+            for (int i = 0; i < COMMANDS.length; i++) {
+                mix[i] = Integer.parseInt(proportions[i]);
+                if (mix[i] < 0) {
+                    throw new NumberFormatException();
+                }
+                total += mix[i];
+            }
+            if (proportions.length != COMMANDS.length || total == 0) {
+                throw new NumberFormatException();
+            }
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Mix must be in the form get:put:delete, such as 90:10:0.");
+        }
+        value = "v".repeat((int) positiveOption(options, "value-size", 100));
+        warmupNanos = TimeUnit.SECONDS.toNanos(positiveOption(options, "warmup-s", 2));
+        durationNanos = TimeUnit.SECONDS.toNanos(positiveOption(options, "duration-s", 10));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        if (zipfian) {
+            for (int i = 1; i <= keys; i++) {
+                zeta += 1 / Math.pow(i, ZIPF_EXPONENT);
+            }
+            double zeta2 = 1 + 1 / Math.pow(2, ZIPF_EXPONENT);
+            eta = (1 - Math.pow(2.0 / keys, 1 - ZIPF_EXPONENT)) / (1 - zeta2 / zeta);
+        }
+    }
+
+    /**
+     * Run the load on all connections, then log the results.
+     */
+    public void run() {
+        log("Running " + (rate > 0 ? "open-loop at " + rate + " requests/s" : "closed-loop") + " on " + concurrency
+                + " " + protocol + (poolSize > 0 ? " callers sharing " + poolSize : "") + " connections for "
+                + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + "s after "
+                + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + "s of warmup...");
+        if (poolSize > 0) {
+            try {
+                pool = new TCPClientPool(host, port, poolSize, 5000, nearCacheSize);
+            } catch (IOException e) {
+                log("Error starting the connection pool: " + e.getMessage());
+                return;
+            }
+        }
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        Thread[] threads = new Thread[concurrency];
+        for (int i = 0; i < concurrency; i++) {
+            int connection = i;
+            threads[i] = new Thread(() -> runConnection(connection, start), "bench-" + i);
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        report(start);
+        if (nearCacheSize > 0) {
+            log("Near cache answered " + pool.nearCacheHits() + " GET requests");
+        }
+    }
+
+    /**
+     * Helper method to send requests on a single connection until the end of the benchmark.
+     *
+     * @param connection index of the connection, used to spread the intended send times of the connections
+     * @param start      time at which the load starts
+     */
+    private void runConnection(int connection, long start) {
+        CommunicationClient client = null;
+        try {
+            if (pool == null) {
+                client = ring != null ? new ClusterClient(ring, protocol)
+                        : protocol.equals("TCP") ? new TCPClient(host, port) : new UDPClient(host, port);
+                client.start();
+                if (binary) {
+                    client.startBinary();
+                }
+            }
+        } catch (IOException e) {
+            log("Error starting connection " + connection + ": " + e.getMessage());
+            return;
+        }
+        SplittableRandom random = new SplittableRandom(connection);
+        // Each connection sends every concurrency-th request of the schedule
+        long interval = rate > 0 ? TimeUnit.SECONDS.toNanos(concurrency) / rate : 0;
+        long intended = start + (rate > 0 ? TimeUnit.SECONDS.toNanos(connection) / rate : 0);
+        long end = start + warmupNanos + durationNanos;
+        long id = 0;
+        LockSupport.parkNanos(start - System.nanoTime());
+        while (intended < end) {
+            if (rate > 0) {
+                LockSupport.parkNanos(intended - System.nanoTime());
+            }
+            long sent = System.nanoTime();
+            if (rate == 0) {
+                intended = sent;
+            }
+            int command = nextCommand(random);
+            String key = "key" + nextKey(random);
+            try {
+                boolean ok = send(client, id++, command, key);
+                long latency = System.nanoTime() - intended;
+                if (!ok) {
+                    errors.incrementAndGet();
+                } else if (intended - start >= warmupNanos) {
+                    histograms[command].record(latency);
+                }
+            } catch (SocketTimeoutException e) {
+                timeouts.incrementAndGet();
+            } catch (IOException e) {
+                log("Connection " + connection + " failed: " + e.getMessage());
+                return;
+            }
+            intended = rate > 0 ? intended + interval : System.nanoTime();
+        }
+        finished.accumulateAndGet(System.nanoTime(), Math::max);
+        if (client == null) {
+            return;
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            log("Error closing connection " + connection + ".");
+        }
+    }
+
+    /**
+     * Helper method to send a request and wait for its response. Stale responses of requests that timed out are
+     * skipped.
+     *
+     * @param client  connection to send the request on, null to send it on the pool
+     * @param id      request id, unless the request is sent on the pool
+     * @param command index of the command in COMMANDS
+     * @param key     key of the request
+     * @return true if the server answered, even if the key does not exist, false if it answered with an error
+     * @throws IOException if the request could not be sent or answered
+     */
+    private boolean send(CommunicationClient client, long id, int command, String key) throws IOException {
+        if (client == null) {
+            String result = pool.send(COMMANDS[command] + " " + key + (command == 1 ? " " + value : ""));
+            return !result.startsWith("Invalid") && !result.startsWith("Storage error");
+        }
+        if (binary) {
+            byte opcode = command == 0 ? BinaryProtocol.GET : command == 1 ? BinaryProtocol.PUT : BinaryProtocol.DELETE;
+            client.sendBinary(BinaryProtocol.request(opcode, id, key, command == 1 ? value : null, compressed));
+            while (true) {
+                ByteBuffer response = client.receiveBinary();
+                byte status = response.get();
+                if (BinaryProtocol.readVarint(response) == id) {
+                    return status != BinaryProtocol.STATUS_ERROR;
+                }
+            }
+        }
+        String prefix = "id:" + id + " ";
+        client.send(prefix + COMMANDS[command] + " " + key + (command == 1 ? " " + value : ""));
+        while (true) {
+            String response = client.receive();
+            if (response.startsWith(prefix)) {
+                return !response.startsWith("Invalid", prefix.length())
+                        && !response.startsWith("Storage error", prefix.length());
+            }
+        }
+    }
+
+    /**
+     * Helper method to draw the next command according to the mix.
+     *
+     * @param random random generator of the connection
+     * @return the index of the command in COMMANDS
+     */
+    private int nextCommand(SplittableRandom random) {
+        int draw = random.nextInt(mix[0] + mix[1] + mix[2]);
+        return draw < mix[0] ? 0 : draw < mix[0] + mix[1] ? 1 : 2;
+    }
+
+    /**
+     * Helper method to draw the next key, uniformly or from a Zipfian distribution where key 0 is the most popular,
+     * using the method of Gray et al. (Quickly Generating Billion-Record Synthetic Databases).
+     *
+     * @param random random generator of the connection
+     * @return the index of the key
+     */
+    private long nextKey(SplittableRandom random) {
+        if (!zipfian) {
+            return random.nextInt(keys);
+        }
+        double u = random.nextDouble();
+        double uz = u * zeta;
+        if (uz < 1) {
+            return 0;
+        }
+        if (uz < 1 + Math.pow(0.5, ZIPF_EXPONENT)) {
+            return 1;
+        }
+        return Math.min(keys - 1, (long) (keys * Math.pow(eta * u - eta + 1, 1 / (1 - ZIPF_EXPONENT))));
+    }
+
+    /**
+     * Helper method to log the throughput and the latency percentiles of every command and of all commands. The
+     * throughput is measured until the last response, since a server falling behind answers after the end of the
+     * schedule.
+     *
+     * @param start time at which the load started
+     */
+    private void report(long start) {
+        LatencyHistogram all = new LatencyHistogram();
+        for (LatencyHistogram histogram : histograms) {
+            all.add(histogram);
+        }
+        double seconds = Math.max(durationNanos, finished.get() - start - warmupNanos) / 1e9;
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Throughput: %.0f requests/s, %d errors, %d timeouts%n",
+                all.getCount() / seconds, errors.get(), timeouts.get()));
+        report.append(String.format("%-8s %10s %10s %10s %10s %10s %10s%n",
+                "Latency", "count", "mean", "p50", "p99", "p99.9", "max"));
+        for (int i = 0; i < COMMANDS.length; i++) {
+            appendLatencies(report, COMMANDS[i], histograms[i]);
+        }
+        appendLatencies(report, "ALL", all);
+        log("Results" + (rate > 0 ? " (corrected for coordinated omission)" : "") + ":\n" + report);
+    }
+
+    /**
+     * Helper method to format a row of latencies in microseconds.
+     *
+     * @param report    report to append the row to
+     * @param name      name of the row
+     * @param histogram latencies of the row
+     */
+    private static void appendLatencies(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format("%-8s %10d %8.1fus %8.1fus %8.1fus %8.1fus %8.1fus%n", name, histogram.getCount(),
+                histogram.getMean() / 1e3, histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMax() / 1e3));
+    }
+
+    /**
+     * Helper method to read an optional positive number from the command line options.
+     *
+     * @param options      settings of the load
+     * @param name         name of the option
+     * @param defaultValue value used when the option is not provided
+     * @return the value of the option
+     * @throws IllegalArgumentException if the option is not a positive number
+     */
+    private static long positiveOption(Map<String, String> options, String name, long defaultValue)
+            throws IllegalArgumentException {
+        if (!options.containsKey(name)) {
+            return defaultValue;
+        }
+        try {
+            long value = Long.parseLong(options.get(name));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Option " + name + " must be a positive number.");
+    }
+
+    /**
+     * Helper method to log a message of the benchmark.
+     *
+     * @param message message to be logged
+     */
+    private void log(String message) {
+        Utils.log(protocol + " Benchmark", message);
+    }
+}
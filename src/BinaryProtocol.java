@@ -0,0 +1,436 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * This class contains the constants and helper methods of the binary protocol, used alongside the text protocol.
+ * A binary request is: opcode byte, varint request id, varint key length, key bytes, and for PUT a varint value length
+ * followed by the value bytes. A binary response is: status byte, varint request id, varint payload length, and the
+ * payload bytes (the value of a GET, an error message, or nothing). Strings are encoded in UTF-8 and may contain any
+ * character, including spaces.
+ * The batch requests MPUT, MGET, and MDELETE are: opcode byte, varint request id, varint count, and count keys, each
+ * followed by its value for MPUT. The payload of an MGET response is a varint count followed, for each key, by a byte
+ * set to 1 and its value if the key exists, or a 0 byte otherwise. The payload of an MDELETE response is the varint
+ * number of deleted keys. A STATS request has no key, and the payload of its response is the text of the metrics.
+ * In a cluster, a request for a key owned by another node is answered with the MOVED status, whose payload is the
+ * address host:port of the owner.
+ * Over TCP, a client switches its connection to the binary protocol by sending the text request
+ * "id:n PROTOCOL BINARY". After the "id:n Ok." response, every frame is a 4-byte length followed by a binary message.
+ * Over UDP, a datagram is binary when its first byte is an opcode, since text requests always start with "id:".
+ * The COMPRESSED flag may be set on the opcode of a PUT or MPUT, whose values are then compressed (see Compression),
+ * and on the opcode of a GET or MGET, which then accepts compressed values in its response. A GET response with the
+ * flag set on its status has a compressed payload, and a value of an MGET response is compressed when its byte is 2
+ * instead of 1. Responses are only compressed for requests accepting it, so existing clients are unaffected.
+ */
+public class BinaryProtocol {
+    public final static byte PUT = 0x01;
+    public final static byte GET = 0x02;
+    public final static byte DELETE = 0x03;
+    public final static byte MPUT = 0x04;
+    public final static byte MGET = 0x05;
+    public final static byte MDELETE = 0x06;
+    public final static byte STATS = 0x07;
+    public final static byte STATUS_OK = 0x00;
+    public final static byte STATUS_NOT_FOUND = 0x01;
+    public final static byte STATUS_ERROR = 0x02;
+    public final static byte STATUS_MOVED = 0x03;
+    public final static byte COMPRESSED = 0x20;
+    public final static String UPGRADE_REQUEST = "id:0 PROTOCOL BINARY";
+    public final static int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private final static int MAX_OPCODE = 0x1F;
+    private final static String UPGRADE_SUFFIX = " PROTOCOL BINARY";
+
+    /**
+     * Check whether a text request asks to switch the connection to the binary protocol.
+     * @param request text request received from the client
+     * @return true if the request is "id:n PROTOCOL BINARY"
+     */
+    public static boolean isUpgradeRequest(String request) {
+        // Compared in place, since every text request is checked
+        int suffix = request.length() - UPGRADE_SUFFIX.length();
+        return suffix > 0 && request.regionMatches(true, suffix, UPGRADE_SUFFIX, 0, UPGRADE_SUFFIX.length())
+                && request.lastIndexOf(' ', suffix - 1) < 0;
+    }
+
+    /**
+     * Build the text response accepting a request to switch to the binary protocol.
+     * @param request the upgrade request received from the client
+     * @return the response containing the request id of the upgrade request
+     */
+    public static String upgradeResponse(String request) {
+        return request.substring(0, request.indexOf(' ')) + " Ok.";
+    }
+
+    /**
+     * Check whether a datagram is a binary message, that is, whether it starts with an opcode.
+     * @param first first byte of the datagram
+     * @return true if the datagram is binary
+     */
+    public static boolean isBinary(byte first) {
+        byte opcode = opcode(first);
+        return opcode > 0 && opcode <= MAX_OPCODE;
+    }
+
+    /**
+     * Get the opcode of a request, without the COMPRESSED flag.
+     * @param first first byte of the request
+     * @return the opcode
+     */
+    public static byte opcode(byte first) {
+        return (byte) (first & ~COMPRESSED);
+    }
+
+    /**
+     * Check whether the COMPRESSED flag is set on the first byte of a request or response.
+     * @param first first byte of the request or response
+     * @return true if the message has compressed values or accepts them
+     */
+    public static boolean isCompressed(byte first) {
+        return (first & COMPRESSED) != 0;
+    }
+
+    /**
+     * Encode a binary request.
+     * @param opcode PUT, GET, or DELETE
+     * @param id request id
+     * @param key key of the request
+     * @param value value of a PUT request, null otherwise
+     * @return the encoded request, ready to be read
+     */
+    public static ByteBuffer request(byte opcode, long id, String key, String value) {
+        return request(opcode, id, key, value, false);
+    }
+
+    /**
+     * Encode a binary request, optionally with the COMPRESSED flag: the value of a PUT is then compressed, and a GET
+     * accepts a compressed response.
+     * @param opcode PUT, GET, or DELETE
+     * @param id request id
+     * @param key key of the request
+     * @param value value of a PUT request, null otherwise
+     * @param compress true to set the COMPRESSED flag on a PUT or GET
+     * @return the encoded request, ready to be read
+     */
+    public static ByteBuffer request(byte opcode, long id, String key, String value, boolean compress) {
+        compress &= opcode == PUT || opcode == GET;
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value == null ? null
+                : compress ? Compression.compress(value) : value.getBytes(StandardCharsets.UTF_8);
+        int size = 1 + varintSize(id) + varintSize(keyBytes.length) + keyBytes.length;
+        if (valueBytes != null) {
+            size += varintSize(valueBytes.length) + valueBytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(compress ? (byte) (opcode | COMPRESSED) : opcode);
+        writeVarint(buffer, id);
+        writeBytes(buffer, keyBytes);
+        if (valueBytes != null) {
+            writeBytes(buffer, valueBytes);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Check whether an opcode is a batch request.
+     * @param opcode opcode of the request
+     * @return true for MPUT, MGET, and MDELETE
+     */
+    public static boolean isBatch(byte opcode) {
+        return opcode >= MPUT && opcode <= MDELETE;
+    }
+
+    /**
+     * Encode a binary batch request.
+     * @param opcode MPUT, MGET, or MDELETE
+     * @param id request id
+     * @param keys keys of the request
+     * @param values values of an MPUT request, in the order of the keys, null otherwise
+     * @return the encoded request, ready to be read
+     */
+    public static ByteBuffer batchRequest(byte opcode, long id, String[] keys, String[] values) {
+        byte[][] keyBytes = new byte[keys.length][];
+        byte[][] valueBytes = new byte[values == null ? 0 : values.length][];
+        int size = 1 + varintSize(id) + varintSize(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            keyBytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+            size += varintSize(keyBytes[i].length) + keyBytes[i].length;
+            if (values != null) {
+                valueBytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                size += varintSize(valueBytes[i].length) + valueBytes[i].length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put(opcode);
+        writeVarint(buffer, id);
+        writeVarint(buffer, keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            writeBytes(buffer, keyBytes[i]);
+            if (values != null) {
+                writeBytes(buffer, valueBytes[i]);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Decode the keys and values of a binary batch request.
+     * @param opcode MPUT, MGET, or MDELETE, with the COMPRESSED flag if the values of an MPUT are compressed
+     * @param buffer request positioned after the request id
+     * @return the keys, and for MPUT the values in the order of the keys
+     * @throws IllegalArgumentException if the count or a length is negative or larger than the rest of the buffer
+     * @throws BufferUnderflowException if the buffer ends before the last key or value
+     */
+    public static String[][] readBatch(byte opcode, ByteBuffer buffer)
+            throws IllegalArgumentException, BufferUnderflowException {
+        long count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            // Every key takes at least one byte
+            throw new IllegalArgumentException("Batch count exceeds message size");
+        }
+        String[] keys = new String[(int) count];
+        String[] values = opcode(opcode) == MPUT ? new String[(int) count] : null;
+        for (int i = 0; i < count; i++) {
+            keys[i] = readString(buffer);
+            if (values != null) {
+                values[i] = isCompressed(opcode) ? readCompressedString(buffer) : readString(buffer);
+            }
+        }
+        return new String[][]{keys, values};
+    }
+
+    /**
+     * Encode the response of an MGET request.
+     * @param id request id of the request being answered
+     * @param values values in the order of the requested keys, null for keys that do not exist
+     * @return the encoded response, ready to be read
+     */
+    public static ByteBuffer batchResponse(long id, String[] values) {
+        return batchResponse(id, values, 0);
+    }
+
+    /**
+     * Encode the response of an MGET request, compressing the large values when the request accepts it.
+     * @param id request id of the request being answered
+     * @param values values in the order of the requested keys, null for keys that do not exist
+     * @param compressThreshold minimum number of characters of a value to be compressed, 0 to never compress
+     * @return the encoded response, ready to be read
+     */
+    public static ByteBuffer batchResponse(long id, String[] values, int compressThreshold) {
+        byte[][] valueBytes = new byte[values.length][];
+        boolean[] compressed = new boolean[values.length];
+        int payloadSize = varintSize(values.length);
+        for (int i = 0; i < values.length; i++) {
+            payloadSize++;
+            if (values[i] != null) {
+                if (compressThreshold > 0 && values[i].length() >= compressThreshold) {
+                    valueBytes[i] = Compression.compress(values[i]);
+                    compressed[i] = valueBytes[i].length < values[i].length();
+                }
+                if (!compressed[i]) {
+                    valueBytes[i] = values[i].getBytes(StandardCharsets.UTF_8);
+                }
+                payloadSize += varintSize(valueBytes[i].length) + valueBytes[i].length;
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(id) + varintSize(payloadSize) + payloadSize);
+        buffer.put(STATUS_OK);
+        writeVarint(buffer, id);
+        writeVarint(buffer, payloadSize);
+        writeVarint(buffer, values.length);
+        for (int i = 0; i < values.length; i++) {
+            if (valueBytes[i] == null) {
+                buffer.put((byte) 0);
+            } else {
+                buffer.put((byte) (compressed[i] ? 2 : 1));
+                writeBytes(buffer, valueBytes[i]);
+            }
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Decode the values of an MGET response.
+     * @param buffer response positioned after the payload length
+     * @return the values in the order of the requested keys, null for keys that do not exist
+     * @throws IllegalArgumentException if the count or a length is negative or larger than the rest of the buffer
+     * @throws BufferUnderflowException if the buffer ends before the last value
+     */
+    public static String[] readBatchValues(ByteBuffer buffer)
+            throws IllegalArgumentException, BufferUnderflowException {
+        long count = readVarint(buffer);
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IllegalArgumentException("Batch count exceeds message size");
+        }
+        String[] values = new String[(int) count];
+        for (int i = 0; i < count; i++) {
+            byte present = buffer.get();
+            if (present != 0) {
+                values[i] = present == 2 ? readCompressedString(buffer) : readString(buffer);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Encode the response of an MDELETE request.
+     * @param id request id of the request being answered
+     * @param count number of deleted keys
+     * @return the encoded response, ready to be read
+     */
+    public static ByteBuffer countResponse(long id, long count) {
+        int payloadSize = varintSize(count);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(id) + varintSize(payloadSize) + payloadSize);
+        buffer.put(STATUS_OK);
+        writeVarint(buffer, id);
+        writeVarint(buffer, payloadSize);
+        writeVarint(buffer, count);
+        return buffer.flip();
+    }
+
+    /**
+     * Encode a binary response.
+     * @param status STATUS_OK, STATUS_NOT_FOUND, or STATUS_ERROR
+     * @param id request id of the request being answered
+     * @param payload value of a GET or error message, null if there is no payload
+     * @return the encoded response, ready to be read
+     */
+    public static ByteBuffer response(byte status, long id, String payload) {
+        byte[] payloadBytes = payload == null ? new byte[0] : payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(id) + varintSize(payloadBytes.length)
+                + payloadBytes.length);
+        buffer.put(status);
+        writeVarint(buffer, id);
+        writeBytes(buffer, payloadBytes);
+        return buffer.flip();
+    }
+
+    /**
+     * Encode the response of a GET request accepting a compressed value. The value is compressed if that makes it
+     * smaller, and the COMPRESSED flag is then set on the status.
+     * @param id request id of the request being answered
+     * @param value value of the key
+     * @return the encoded response, ready to be read
+     */
+    public static ByteBuffer compressedResponse(long id, String value) {
+        byte[] payloadBytes = Compression.compress(value);
+        if (payloadBytes.length >= value.length()) {
+            return response(STATUS_OK, id, value);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(1 + varintSize(id) + varintSize(payloadBytes.length)
+                + payloadBytes.length);
+        buffer.put((byte) (STATUS_OK | COMPRESSED));
+        writeVarint(buffer, id);
+        writeBytes(buffer, payloadBytes);
+        return buffer.flip();
+    }
+
+    /**
+     * Read an unsigned variable-length integer: 7 bits per byte, least significant group first, with the high bit set
+     * on every byte but the last.
+     * @param buffer buffer to read from
+     * @return the decoded value
+     * @throws IllegalArgumentException if the varint is longer than 10 bytes
+     * @throws BufferUnderflowException if the buffer ends before the varint
+     */
+    public static long readVarint(ByteBuffer buffer) throws IllegalArgumentException, BufferUnderflowException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Write an unsigned variable-length integer.
+     * @param buffer buffer to write to
+     * @param value value to be encoded
+     */
+    public static void writeVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Compute the number of bytes of an encoded varint.
+     * @param value value to be encoded
+     * @return the encoded size
+     */
+    public static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string.
+     * @param buffer buffer to read from
+     * @return the decoded string
+     * @throws IllegalArgumentException if the length is negative or larger than the rest of the buffer
+     * @throws BufferUnderflowException if the buffer ends before the length
+     */
+    public static String readString(ByteBuffer buffer) throws IllegalArgumentException, BufferUnderflowException {
+        long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length exceeds message size");
+        }
+        String string;
+        if (buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), (int) length,
+                    StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + (int) length);
+        } else {
+            byte[] bytes = new byte[(int) length];
+            buffer.get(bytes);
+            string = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return string;
+    }
+
+    /**
+     * Read a length-prefixed compressed string.
+     * @param buffer buffer to read from
+     * @return the decompressed string
+     * @throws IllegalArgumentException if the length is negative or larger than the rest of the buffer, or the bytes
+     * are not a valid compressed value
+     * @throws BufferUnderflowException if the buffer ends before the length
+     */
+    public static String readCompressedString(ByteBuffer buffer)
+            throws IllegalArgumentException, BufferUnderflowException {
+        long length = readVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("String length exceeds message size");
+        }
+        byte[] bytes;
+        int offset;
+        if (buffer.hasArray()) {
+            bytes = buffer.array();
+            offset = buffer.arrayOffset() + buffer.position();
+            buffer.position(buffer.position() + (int) length);
+        } else {
+            bytes = new byte[(int) length];
+            offset = 0;
+            buffer.get(bytes);
+        }
+        return Compression.decompress(bytes, offset, (int) length);
+    }
+
+    /**
+     * Helper method to write length-prefixed bytes.
+     * @param buffer buffer to write to
+     * @param bytes bytes to be written
+     */
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        writeVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+}
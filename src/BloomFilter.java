@@ -0,0 +1,93 @@
+/**
+ * Class represents a Bloom filter telling whether a key may be in a set, in about 10 bits per key. A key that was
+ * added is always reported, and a key that was not is reported about 1% of the time.
+ * Each key sets HASHES bits, derived from two halves of a 64-bit hash of its characters. The hash only depends on the
+ * key, so that a filter written to a file can be read back by another run.
+ * Not thread-safe while keys are added: a filter is filled once, then only read.
+ */
+public class BloomFilter {
+    private final static int BITS_PER_KEY = 10;
+    private final static int HASHES = 7;
+    private final long[] words;
+
+    /**
+     * Constructor for an empty Bloom filter.
+     *
+     * @param expectedEntries number of keys expected to be added
+     */
+    public BloomFilter(long expectedEntries) {
+        long bits = Math.max(64, Math.min(expectedEntries * BITS_PER_KEY, (long) Integer.MAX_VALUE * 64));
+        words = new long[(int) ((bits + 63) / 64)];
+    }
+
+    /**
+     * Constructor for a Bloom filter read back from its words.
+     *
+     * @param words bits of the filter, as returned by getWords()
+     */
+    public BloomFilter(long[] words) {
+        this.words = words;
+    }
+
+    /**
+     * Add a key to the set.
+     *
+     * @param key key to be added
+     */
+    public void add(String key) {
+        long hash = hash(key);
+        long bits = (long) words.length * 64;
+        long combined = hash;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(combined, bits);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            combined += hash >>> 32 | 1;
+        }
+    }
+
+    /**
+     * Check whether a key may be in the set.
+     *
+     * @param key key to be checked
+     * @return false if the key was never added, true if it probably was
+     */
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        long bits = (long) words.length * 64;
+        long combined = hash;
+        for (int i = 0; i < HASHES; i++) {
+            long bit = Math.floorMod(combined, bits);
+            if ((words[(int) (bit >>> 6)] & 1L << bit) == 0) {
+                return false;
+            }
+            combined += hash >>> 32 | 1;
+        }
+        return true;
+    }
+
+    /**
+     * Get the bits of the filter, to be written to a file.
+     *
+     * @return the words of the filter, shared with the filter
+     */
+    public long[] getWords() {
+        return words;
+    }
+
+    /**
+     * Helper method to hash the characters of a key with FNV-1a, then mix the bits with the finalizer of MurmurHash3
+     * so that the low and high halves are both well distributed.
+     *
+     * @param key key to be hashed
+     * @return the 64-bit hash
+     */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash = (hash ^ key.charAt(i)) * 0x100000001B3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xFF51AFD7ED558CCDL;
+        hash = (hash ^ (hash >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,344 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store bounded by a budget of entries or estimated bytes, evicting entries with a
+ * pluggable eviction policy, and supporting a time to live per entry. Implements 3 operations: PUT, GET, and DELETE.
+ * Entries are held in a ConcurrentHashMap, so operations never wait on each other. Instead of updating the policy on
+ * every operation, reads are recorded in striped, lossy buffers and writes in a queue. They are replayed on the policy
+ * by whichever thread acquires the eviction lock without waiting, which then evicts entries until the store is within
+ * its budget. Dropping some reads when a buffer is full only makes the recency and frequency slightly less precise.
+ * Expired entries are removed lazily when read, and incrementally by sampling a few entries with a time to live on each
+ * maintenance, repeating while most sampled entries are expired, so expiry never scans the whole store.
+ */
+public class BoundedKVStore implements KVStore {
+    private final static int READ_STRIPES = 16;
+    private final static int READ_BUFFER_SIZE = 64;
+    private final static int READ_DRAIN_THRESHOLD = 32;
+    private final static int EXPIRY_SAMPLES = 20;
+    private final static long ENTRY_OVERHEAD = 64;
+    private final ConcurrentMap<String, CacheEntry> store = new ConcurrentHashMap<>();
+    private final AtomicReferenceArray<CacheEntry> readBuffers =
+            new AtomicReferenceArray<>(READ_STRIPES * READ_BUFFER_SIZE);
+    private final AtomicLong[] readWrites = new AtomicLong[READ_STRIPES]; // next slot written by readers, per stripe
+    private final long[] readReads = new long[READ_STRIPES]; // next slot drained under the lock, per stripe
+    private final Queue<Runnable> writeEvents = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final List<CacheEntry> expiring = new ArrayList<>(); // entries with a time to live, for sampling
+    private final EvictionPolicy policy;
+    private final long budget;
+    private final boolean weighByBytes;
+    private long weightedSize;
+
+    /**
+     * Constructor for a bounded key-value store.
+     *
+     * @param policy       eviction policy choosing the entries to evict
+     * @param budget       maximum number of entries, or of estimated bytes if weighByBytes is true
+     * @param weighByBytes true to weigh each entry by the estimated bytes of its key and value, false to count entries
+     */
+    public BoundedKVStore(EvictionPolicy policy, long budget, boolean weighByBytes) {
+        this.policy = policy;
+        this.budget = budget;
+        this.weighByBytes = weighByBytes;
+        for (int i = 0; i < READ_STRIPES; i++) {
+            readWrites[i] = new AtomicLong();
+        }
+        // Expire entries that are never read again, even when the store is idle
+        ScheduledExecutorService cleaner = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cache-maintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        cleaner.scheduleWithFixedDelay(this::maintenance, 100, 100, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        put(key, value, 0);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        long expiresAt = ttlSeconds > 0 ? System.currentTimeMillis() + ttlSeconds * 1000 : 0;
+        long weight = weighByBytes ? ENTRY_OVERHEAD + 2L * (key.length() + value.length()) : 1;
+        CacheEntry entry = new CacheEntry(key, value, expiresAt, weight);
+        CacheEntry previous = store.put(key, entry);
+        if (previous != null) {
+            removed(previous);
+        }
+        writeEvents.add(() -> added(entry));
+        maintenance();
+    }
+
+    @Override
+    public String get(String key) {
+        CacheEntry entry = store.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.isExpired(System.currentTimeMillis())) {
+            // Lazy expiry
+            if (store.remove(key, entry)) {
+                removed(entry);
+                maintenance();
+            }
+            return null;
+        }
+        recordRead(entry);
+        return entry.value;
+    }
+
+    @Override
+    public long expiresAt(String key) {
+        CacheEntry entry = store.get(key);
+        return entry == null ? 0 : entry.expiresAt;
+    }
+
+    @Override
+    public String delete(String key) {
+        CacheEntry entry = store.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        removed(entry);
+        maintenance();
+        return entry.isExpired(System.currentTimeMillis()) ? null : entry.value;
+    }
+
+    /**
+     * Replace the value of the key with a function of its current value, retrying without a lock when another write to
+     * the key happened meanwhile. The new value keeps the expiry time of the entry it replaces.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        while (true) {
+            CacheEntry entry = store.get(key);
+            boolean live = entry != null && !entry.isExpired(System.currentTimeMillis());
+            String next = function.apply(live ? entry.value : null);
+            if (next == null) {
+                if (!live) {
+                    return null;
+                }
+                recordRead(entry);
+                return entry.value;
+            }
+            long weight = weighByBytes ? ENTRY_OVERHEAD + 2L * (key.length() + next.length()) : 1;
+            CacheEntry replacement = new CacheEntry(key, next, live ? entry.expiresAt : 0, weight);
+            // Entries are compared by identity, so the entry is only replaced if no other write replaced it meanwhile
+            if (entry == null ? store.putIfAbsent(key, replacement) == null : store.replace(key, entry, replacement)) {
+                if (entry != null) {
+                    removed(entry);
+                }
+                writeEvents.add(() -> added(replacement));
+                maintenance();
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        long now = System.currentTimeMillis();
+        store.forEach((key, entry) -> {
+            if (!entry.isExpired(now)) {
+                action.accept(key, entry.value);
+            }
+        });
+    }
+
+    /**
+     * Get the number of entries, including expired entries that were not removed yet.
+     *
+     * @return the number of entries
+     */
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    /**
+     * Get the weighted size of the entries when the store is bounded by bytes, which is already an estimate of their
+     * memory. Otherwise, estimate the memory of every entry.
+     *
+     * @return the estimated memory in bytes
+     */
+    @Override
+    public long memoryUsage() {
+        if (!weighByBytes) {
+            return KVStore.super.memoryUsage();
+        }
+        evictionLock.lock();
+        try {
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Helper method to record a read in the buffer of the stripe of the current thread. The read is dropped if the
+     * buffer is full. When enough reads are waiting, try to replay them.
+     *
+     * @param entry entry that was read
+     */
+    private void recordRead(CacheEntry entry) {
+        int stripe = (int) Thread.currentThread().threadId() & (READ_STRIPES - 1);
+        long slot = readWrites[stripe].get();
+        if (slot - readReads[stripe] < READ_BUFFER_SIZE && readWrites[stripe].compareAndSet(slot, slot + 1)) {
+            readBuffers.lazySet(stripe * READ_BUFFER_SIZE + (int) (slot % READ_BUFFER_SIZE), entry);
+            if (slot - readReads[stripe] >= READ_DRAIN_THRESHOLD) {
+                maintenance();
+            }
+        }
+    }
+
+    /**
+     * Helper method to mark an entry removed from the map and queue its removal from the policy.
+     *
+     * @param entry entry removed from the map
+     */
+    private void removed(CacheEntry entry) {
+        entry.alive = false;
+        writeEvents.add(() -> unlink(entry));
+    }
+
+    /**
+     * Replay the recorded reads and writes on the policy, expire a sample of entries, and evict entries until the
+     * store is within its budget. Returns immediately if another thread is already doing it, and repeats if events
+     * were recorded while the lock was being released.
+     */
+    private void maintenance() {
+        while (evictionLock.tryLock()) {
+            try {
+                drainReads();
+                Runnable event;
+                while ((event = writeEvents.poll()) != null) {
+                    event.run();
+                }
+                expire();
+                while (weightedSize > budget) {
+                    CacheEntry victim = policy.evict();
+                    if (victim == null) {
+                        break;
+                    }
+                    victim.linked = false;
+                    untrack(victim);
+                    if (store.remove(victim.key, victim)) {
+                        victim.alive = false;
+                    }
+                }
+            } finally {
+                evictionLock.unlock();
+            }
+            if (writeEvents.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Helper method to replay the buffered reads on the policy.
+     */
+    private void drainReads() {
+        for (int stripe = 0; stripe < READ_STRIPES; stripe++) {
+            long end = readWrites[stripe].get();
+            for (long slot = readReads[stripe]; slot < end; slot++) {
+                CacheEntry entry = readBuffers.getAndSet(stripe * READ_BUFFER_SIZE + (int) (slot % READ_BUFFER_SIZE),
+                        null);
+                if (entry != null && entry.linked) {
+                    policy.onAccess(entry);
+                }
+            }
+            readReads[stripe] = end;
+        }
+    }
+
+    /**
+     * Helper method to start tracking a new entry, unless it was already replaced or removed.
+     *
+     * @param entry entry added to the map
+     */
+    private void added(CacheEntry entry) {
+        if (!entry.alive || entry.linked) {
+            return;
+        }
+        entry.linked = true;
+        policy.onAdd(entry);
+        weightedSize += entry.weight;
+        if (entry.expiresAt != 0) {
+            entry.expiryIndex = expiring.size();
+            expiring.add(entry);
+        }
+    }
+
+    /**
+     * Helper method to stop tracking an entry removed from the map, if it was tracked.
+     *
+     * @param entry entry removed from the map
+     */
+    private void unlink(CacheEntry entry) {
+        if (entry.linked) {
+            entry.linked = false;
+            policy.onRemove(entry);
+            untrack(entry);
+        }
+    }
+
+    /**
+     * Helper method to remove an entry that is no longer tracked by the policy from the size and the expiry samples.
+     *
+     * @param entry entry no longer tracked by the policy
+     */
+    private void untrack(CacheEntry entry) {
+        weightedSize -= entry.weight;
+        if (entry.expiryIndex >= 0) {
+            // Swap with the last entry so that removal is O(1)
+            CacheEntry last = expiring.remove(expiring.size() - 1);
+            if (last != entry) {
+                expiring.set(entry.expiryIndex, last);
+                last.expiryIndex = entry.expiryIndex;
+            }
+            entry.expiryIndex = -1;
+        }
+    }
+
+    /**
+     * Helper method to remove expired entries by sampling entries with a time to live. Sampling is repeated while more
+     * than a quarter of the sample was expired.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+        int expired;
+        do {
+            expired = 0;
+            for (int i = 0; i < EXPIRY_SAMPLES && !expiring.isEmpty(); i++) {
+                CacheEntry entry = expiring.get(ThreadLocalRandom.current().nextInt(expiring.size()));
+                if (entry.isExpired(now)) {
+                    expired++;
+                    unlink(entry);
+                    if (store.remove(entry.key, entry)) {
+                        entry.alive = false;
+                    }
+                }
+            }
+        } while (expired > EXPIRY_SAMPLES / 4);
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * Class represents an entry of the bounded key-value store. Besides the key and value, it holds the bookkeeping of the
+ * eviction policy and of expiry. The links, the queue, and the expiry index are only used under the eviction lock of
+ * the store.
+ */
+public class CacheEntry {
+    final String key;
+    final String value;
+    final long expiresAt; // time in milliseconds after which the entry is expired, 0 if it never expires
+    final long weight;
+    volatile boolean alive = true; // false once removed from the map of the store
+    boolean linked; // true while tracked by the eviction policy
+    CacheEntry previous;
+    CacheEntry next;
+    int queue; // region of the eviction policy holding the entry
+    int expiryIndex = -1; // position in the expiry sample list of the store
+
+    /**
+     * Constructor for a cache entry.
+     *
+     * @param key       key of the entry
+     * @param value     value of the entry
+     * @param expiresAt time in milliseconds after which the entry is expired, 0 if it never expires
+     * @param weight    cost of the entry against the budget of the store
+     */
+    public CacheEntry(String key, String value, long expiresAt, long weight) {
+        this.key = key;
+        this.value = value;
+        this.expiresAt = expiresAt;
+        this.weight = weight;
+    }
+
+    /**
+     * Check whether the entry is expired.
+     *
+     * @param now current time in milliseconds
+     * @return true if the entry has a time to live that has passed
+     */
+    public boolean isExpired(long now) {
+        return expiresAt != 0 && now >= expiresAt;
+    }
+}
@@ -1,5 +1,9 @@
 import java.io.IOException;
 import java.net.SocketTimeoutException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 /**
@@ -9,11 +13,26 @@ import java.util.Scanner;
  * Next, the client will do 5 test runs for each of the 3 key-value store operations.
  * Finally, the client will start accepting user inputs from the terminal, and communicate the data with the server
  * until user types 'exit' in the terminal or manually terminates it.
+ * With --pipeline=n, the pre-populated and test requests are pipelined: up to n requests are kept in flight on the
+ * connection, and each response is matched to its request by the request id. Over UDP, the requests sent together
+ * are packed into as few datagrams as possible.
+ * With --mode=bench, the client generates load against the server instead and reports its throughput and latency
+ * percentiles, see Benchmark.
+ * With --cluster=file, the client talks to the cluster listed in the file instead of a single server, sending each
+ * request straight to the node owning its key (see ClusterClient).
+ * With --replicas=host:port,..., reads are spread over the server and the given replicas of it, and writes are sent to
+ * the server.
  */
 public class Client {
+    private final static String USAGE = "Usage: java Client <host> <port> <protocol> [--pipeline=<n>]"
+            + " [--mode=interactive|bench] [--rate=<requests/s>] [--concurrency=<n>] [--keys=<n>]"
+            + " [--distribution=uniform|zipf] [--mix=<get>:<put>:<delete>] [--value-size=<bytes>]"
+            + " [--format=text|binary|compressed] [--duration-s=<n>] [--warmup-s=<n>] [--pool=<n>] [--near-cache=<n>]"
+            + " [--cluster=<path>] [--replicas=<host:port>,...]";
     private static String serviceName = Client.class.getSimpleName();
     private CommunicationClient client;
     private int reqId; // to track unsolicited request
+    private int pipeline; // maximum number of requests in flight
 
     /**
      * Constructor for the client program. Instantiate a TCP or UDP client based on the input.
@@ -21,10 +40,14 @@ public class Client {
      * @param host     hostname or IP address of the client
      * @param port     port number of the client
      * @param protocol protocol to be used, TCP or UDP
+     * @param ring     hash ring of the cluster to send the requests to, or null to send them to host and port
+     * @param pipeline maximum number of requests in flight, 1 to wait for each response before the next request
      */
-    public Client(String host, int port, String protocol) {
+    public Client(String host, int port, String protocol, HashRing ring, int pipeline) {
         try {
-            if (protocol.equals("TCP")) {
+            if (ring != null) {
+                client = new ClusterClient(ring, protocol);
+            } else if (protocol.equals("TCP")) {
                 client = new TCPClient(host, port);
             } else if (protocol.equals("UDP")) {
                 client = new UDPClient(host, port);
@@ -33,12 +56,13 @@ public class Client {
             Utils.log(serviceName, "Error starting client.");
         }
         reqId = 0;
+        this.pipeline = pipeline;
     }
 
     public static void main(String[] args) {
         // Validate command line arguments
-        if (args.length != 3) {
-            Utils.log(serviceName, "Usage: java Client <host> <port> <protocol>");
+        if (args.length < 3) {
+            Utils.log(serviceName, USAGE);
             System.exit(1);
             return;
         }
@@ -52,12 +76,67 @@ public class Client {
             System.exit(1);
             return;
         }
+        Map<String, String> options;
+        try {
+            options = Utils.parseOptions(args, 3);
+        } catch (IllegalArgumentException e) {
+            Utils.log(serviceName, e.getMessage());
+            System.exit(1);
+            return;
+        }
+        int pipeline;
+        try {
+            pipeline = Integer.parseInt(options.getOrDefault("pipeline", "1"));
+        } catch (NumberFormatException e) {
+            pipeline = 0;
+        }
+        if (pipeline < 1) {
+            Utils.log(serviceName, "Pipeline must be a positive number.");
+            System.exit(1);
+            return;
+        }
         String host = args[0];
         int port = Integer.parseInt(args[1]);
         String protocol = args[2].toUpperCase();
         serviceName = protocol + " " + serviceName;
+        HashRing ring = null;
+        if (options.containsKey("cluster")) {
+            try {
+                ring = HashRing.load(Path.of(options.get("cluster")));
+            } catch (IOException e) {
+                Utils.log(serviceName, "Cannot read cluster configuration " + options.get("cluster") + ".");
+                System.exit(1);
+                return;
+            } catch (IllegalArgumentException e) {
+                Utils.log(serviceName, e.getMessage());
+                System.exit(1);
+                return;
+            }
+        } else if (options.containsKey("replicas")) {
+            String primary = host + ":" + port;
+            try {
+                ring = new HashRing(List.of(primary), 1,
+                        Map.of(primary, List.of(options.get("replicas").split(","))));
+            } catch (IllegalArgumentException e) {
+                Utils.log(serviceName, e.getMessage());
+                System.exit(1);
+                return;
+            }
+        }
 
-        Client service = new Client(host, port, protocol);
+        if (options.getOrDefault("mode", "interactive").equalsIgnoreCase("bench")) {
+            Benchmark benchmark;
+            try {
+                benchmark = new Benchmark(host, port, protocol, ring, options);
+            } catch (IllegalArgumentException e) {
+                Utils.log(serviceName, e.getMessage());
+                System.exit(1);
+                return;
+            }
+            benchmark.run();
+            return;
+        }
+        Client service = new Client(host, port, protocol, ring, pipeline);
         service.run();
     }
 
@@ -72,19 +151,19 @@ public class Client {
             // Pre-populate keys and values
             client.log("Pre-populating data to key-value store...");
             data = loadData();
-            for (String d : data) {
-                communicateRequest(d);
-            }
+            communicateRequests(data);
 
             // Run test operations for each operation (PUT, GET, DELETE)
-            client.log("Test operations for PUT, GET, and DELETE...");
+            client.log("Test operations for PUT, GET, DELETE, and batches...");
             data = getTestData();
-            for (String d : data) {
-                communicateRequest(d);
-            }
+            communicateRequests(data);
 
             // Continue getting user input from terminal until manually stopped
-            client.log("Key-Value Store Started...Usage: PUT key value | GET key | DELETE key. Enter \"exit\" to stop.");
+            client.log("Key-Value Store Started...Usage: PUT key value | GET key | DELETE key"
+                    + " | MPUT key value [key value ...] | MGET key [key ...] | MDELETE key [key ...]"
+                    + " | SCAN start end LIMIT n | PREFIX p LIMIT n | CAS key expected new | INCR key [delta]"
+                    + " | DECR key [delta] | PUTIFABSENT key value | STATS."
+                    + " Enter \"exit\" to stop.");
             String message;
             while (!(message = getUserInput(new Scanner(System.in))).equalsIgnoreCase("exit")) {
                 communicateRequest(message);
@@ -110,13 +189,17 @@ public class Client {
             client.log("Sent to server:\n" + message);
             // Receive response from server
             try {
-                String response = client.receive();
-                // Validate request id of the response
-                if (validRequestId(response)) {
-                    client.log("Response from server:\n" + response);
-                } else {
-                    client.log("Received unsolicited response of length " + response.length() + " from server.");
-                }
+                String response;
+                do {
+                    response = client.receive();
+                    // Validate request id of the response
+                    if (validRequestId(response)) {
+                        client.log("Response from server:\n" + response);
+                    } else {
+                        client.log("Received unsolicited response of length " + response.length() + " from server.");
+                    }
+                    // The entries of a range are streamed in chunks before its last response
+                } while (isChunk(response));
             } catch (SocketTimeoutException e) {
                 client.log("Server response timeout. Moving to next request...");
             }
@@ -126,6 +209,52 @@ public class Client {
         reqId++;
     }
 
+    /**
+     * Helper method to send a list of messages to the server. Without pipelining, each message waits for its response.
+     * Otherwise, up to the pipeline size messages are sent before waiting for the responses, which are matched to their
+     * requests by request id and may arrive in any order.
+     *
+     * @param messages String messages to be sent to the server
+     */
+    private void communicateRequests(String[] messages) {
+        if (pipeline == 1) {
+            for (String message : messages) {
+                communicateRequest(message);
+            }
+            return;
+        }
+        Map<Integer, String> inFlight = new LinkedHashMap<>();
+        int next = 0;
+        try {
+            while (next < messages.length || !inFlight.isEmpty()) {
+                // Fill the pipeline
+                while (next < messages.length && inFlight.size() < pipeline) {
+                    String message = "id:" + reqId + " " + messages[next++];
+                    client.send(message);
+                    client.log("Sent to server:\n" + message);
+                    inFlight.put(reqId++, message);
+                }
+                client.flush();
+                // Receive one response and match it with its request
+                try {
+                    String response = client.receive();
+                    if (isChunk(response) ? inFlight.containsKey(responseId(response))
+                            : inFlight.remove(responseId(response)) != null) {
+                        client.log("Response from server:\n" + response);
+                    } else {
+                        client.log("Received unsolicited response of length " + response.length() + " from server.");
+                    }
+                } catch (SocketTimeoutException e) {
+                    client.log("Server response timeout for " + inFlight.size()
+                            + " requests. Moving to next request...");
+                    inFlight.clear();
+                }
+            }
+        } catch (IOException e) {
+            client.log("Server connection error. Please restart the client.");
+        }
+    }
+
     /**
      * Helper method to validate that the response contains a request id which match with current request.
      *
@@ -133,32 +262,53 @@ public class Client {
      * @return true if the response contains original request id, false otherwise
      */
     private boolean validRequestId(String response) {
-        String[] responseParts = response.split(" ");
-        return responseParts.length > 1 && responseParts[0].equals("id:" + reqId);
+        return responseId(response) == reqId;
+    }
+
+    /**
+     * Helper method to check whether a response is a chunk of the entries of a SCAN or PREFIX, followed by more
+     * responses to the same request.
+     *
+     * @param response message from the server
+     * @return true if the response is in the form "id:n CHUNK key value [key value ...]"
+     */
+    private static boolean isChunk(String response) {
+        int end = response.indexOf(' ');
+        return end >= 0 && response.startsWith("CHUNK ", end + 1);
+    }
+
+    /**
+     * Helper method to extract the request id at the beginning of a response, in the form id:n.
+     *
+     * @param response message from the server
+     * @return the request id, or -1 if the response does not start with a valid request id
+     */
+    private static int responseId(String response) {
+        int end = response.indexOf(' ');
+        if (!response.startsWith("id:") || end < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(response, 3, end, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     /**
-     * Helper method to pre-populate the Key-Value store with data and a set of keys.
+     * Helper method to pre-populate the Key-Value store with data and a set of keys, in a single batch request.
      */
     private String[] loadData() {
 
         return new String[]{
-                "put apple red",
-                "put banana yellow",
-                "put grape purple",
-                "put orange orange",
-                "put strawberry red",
-                "put blueberry blue",
-                "put kiwi green",
-                "put dragon_fruit yellow",
-                "put watermelon green",
-                "put pineapple yellow"
+                "mput apple red banana yellow grape purple orange orange strawberry red blueberry blue kiwi green"
+                        + " dragon_fruit yellow watermelon green pineapple yellow"
         };
     }
 
 
     /**
-     * Helper method to generate data to test each operation: 5 PUTs, 5 GETs, 5 DELETEs.
+     * Helper method to generate data to test each operation: 5 PUTs, 5 GETs, 5 DELETEs, and batches.
      **/
     private String[] getTestData() {
         return new String[]{
@@ -185,6 +335,22 @@ public class Client {
                 "PUT lemon yellow", // add new key
                 "put watermelon blue", // modified existing key
                 "GET strawberry", // get existing key
+                "MGET apple banana mango", // get several keys, some non-existing
+                "MPUT cherry red lime green", // add several keys
+                "MPUT cherry", // malformed request
+                "MDELETE cherry lime lemon apple", // delete several keys, some non-existing
+                "PREFIX b LIMIT 10", // get the keys starting with b, with the ordered engine
+                "SCAN a c LIMIT 3", // get the first keys of a range, with the ordered engine
+                "SCAN a c", // malformed request
+                "INCR visits", // create a counter
+                "INCR visits 10", // add to the counter
+                "DECR visits 2", // subtract from the counter
+                "INCR strawberry", // increment a value that is not an integer
+                "CAS lemon yellow green", // replace the expected value
+                "CAS lemon yellow red", // replace a value that has changed
+                "PUTIFABSENT lemon blue", // add an existing key
+                "PUTIFABSENT peach pink", // add a new key
+                "STATS", // get the server metrics
         };
     }
 
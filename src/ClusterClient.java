@@ -0,0 +1,604 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class represents a communication client of a cluster, routing every request straight to the node owning its key
+ * according to the HashRing of the cluster. It holds one TCP or UDP client per node, opened when the node is first
+ * needed. Batch requests are split into one request per owner, and their responses are merged back in the order of
+ * the keys. A node answering MOVED is followed to the node it names, a few times at most.
+ * When the nodes have replicas, GET and MGET requests are spread in turn over each node and its replicas, while writes
+ * always go to the node. Replication is asynchronous, so a read from a replica may not see the latest writes yet.
+ * SCAN and PREFIX are sent to every node, since the ranges are not partitioned. The chunks streamed by the nodes are
+ * merged in key order while they are received, and returned as chunks of the cluster, one by one, as from a single
+ * server, up to the limit of the request.
+ * Responses are returned in the order of the requests. Since a request may wait for several nodes, responses that
+ * arrive early for other requests are kept until they are asked for.
+ */
+public class ClusterClient implements CommunicationClient {
+    private final static int MAX_REDIRECTS = 3;
+    private final static String MOVED = "MOVED ";
+    private final static int CHUNK_SIZE = 16 * 1024;
+    private final HashRing ring;
+    private final String protocol;
+    private final Map<String, Node> nodes = new HashMap<>();
+    private final ArrayDeque<Pending> pending = new ArrayDeque<>();
+    private final RequestParser parser = new RequestParser();
+    private boolean started;
+    private boolean binary;
+    private long reads; // number of reads spread over the replicas
+    private Range range; // SCAN or PREFIX whose merged chunks are being returned
+
+    /**
+     * A connection to a node, with the responses received before they were asked for.
+     */
+    private static class Node {
+        private final CommunicationClient client;
+        private final Map<Long, String> early = new HashMap<>();
+        private final Map<Long, ByteBuffer> earlyBinary = new HashMap<>();
+
+        private Node(CommunicationClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * A request sent to a node. For a part of a batch, the positions of its keys in the batch.
+     */
+    private record Part(String node, String message, ByteBuffer binaryMessage, int[] positions) {
+    }
+
+    /**
+     * A request waiting for the responses of its parts. For a batch, the number of its keys, and for a SCAN or PREFIX,
+     * its limit.
+     */
+    private record Pending(long id, int command, int keys, List<Part> parts) {
+    }
+
+    /**
+     * A SCAN or PREFIX sent to every node, with the entries of the last chunk received from each node.
+     */
+    private static class Range {
+        private final Pending request;
+        private final String[][] chunks; // tokens of the last chunk of each node, starting with CHUNK
+        private final int[] positions; // position of the next key in the chunk of each node
+        private final boolean[] ended;
+        private int sent;
+        private String error;
+
+        private Range(Pending request) {
+            this.request = request;
+            int count = request.parts().size();
+            chunks = new String[count][];
+            positions = new int[count];
+            ended = new boolean[count];
+        }
+    }
+
+    /**
+     * Constructor for a cluster client.
+     *
+     * @param ring     hash ring of the cluster
+     * @param protocol protocol to be used with every node, TCP or UDP
+     */
+    public ClusterClient(HashRing ring, String protocol) {
+        this.ring = ring;
+        this.protocol = protocol;
+    }
+
+    @Override
+    public void start() throws IOException {
+        log("Client started for a cluster of " + ring.getNodes().size() + " nodes...");
+        started = true;
+        for (Node node : nodes.values()) {
+            node.client.start();
+        }
+    }
+
+    @Override
+    public void startBinary() throws IOException {
+        binary = true;
+        for (Node node : nodes.values()) {
+            node.client.startBinary();
+        }
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        long id = responseId(message);
+        List<Part> parts = new ArrayList<>();
+        int command = 0;
+        int keys = 0;
+        boolean parsed = parser.parse(message);
+        if (parsed && (parser.getCommand() == RequestParser.SCAN || parser.getCommand() == RequestParser.PREFIX)) {
+            // Ranges are not partitioned, so every node returns its own keys of the range
+            command = parser.getCommand();
+            keys = parser.getLimit();
+            for (String node : ring.getNodes()) {
+                parts.add(new Part(node, message, null, null));
+            }
+        } else if (!parsed || !parser.hasKeys()) {
+            // Any node can answer a malformed request, a PING, or report its own metrics
+            parts.add(new Part(ring.getNodes().get(0), message, null, null));
+        } else if (!parser.isBatch()) {
+            String owner = ring.owner(parser.getKey());
+            parts.add(new Part(parser.getCommand() == RequestParser.GET ? reader(owner) : owner, message, null, null));
+        } else {
+            command = parser.getCommand();
+            String[] batchKeys = parser.getKeys();
+            String[] values = parser.getValues();
+            keys = batchKeys.length;
+            String name = command == RequestParser.MPUT ? "MPUT" : command == RequestParser.MGET ? "MGET" : "MDELETE";
+            for (Map.Entry<String, List<Integer>> owner : split(batchKeys).entrySet()) {
+                StringBuilder part = new StringBuilder("id:").append(id).append(' ').append(name);
+                for (int position : owner.getValue()) {
+                    part.append(' ').append(batchKeys[position]);
+                    if (command == RequestParser.MPUT) {
+                        part.append(' ').append(values[position]);
+                    }
+                }
+                String node = command == RequestParser.MGET ? reader(owner.getKey()) : owner.getKey();
+                parts.add(new Part(node, part.toString(), null, positions(owner.getValue())));
+            }
+        }
+        for (Part part : parts) {
+            connection(part.node()).client.send(part.message());
+        }
+        pending.add(new Pending(id, command, keys, parts));
+    }
+
+    @Override
+    public String receive() throws IOException {
+        if (range != null) {
+            return receiveRange();
+        }
+        Pending request = nextPending();
+        if (request.command() == RequestParser.SCAN || request.command() == RequestParser.PREFIX) {
+            range = new Range(request);
+            return receiveRange();
+        }
+        String[] results = new String[request.parts().size()];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = receivePart(request.id(), request.parts().get(i));
+        }
+        if (request.command() == 0) {
+            if (isChunk(results[0])) {
+                // More responses of the SCAN or PREFIX follow, so it is still the next request to be answered
+                pending.addFirst(request);
+            }
+            return results[0];
+        }
+        for (int i = 0; i < results.length; i++) {
+            results[i] = results[i].substring(results[i].indexOf(' ') + 1);
+        }
+        return "id:" + request.id() + " " + merge(request, results);
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message) throws IOException {
+        ByteBuffer request = message.duplicate();
+        List<Part> parts = new ArrayList<>();
+        long id = 0;
+        int command = 0;
+        int keys = 0;
+        try {
+            byte first = request.get();
+            byte opcode = BinaryProtocol.opcode(first);
+            id = BinaryProtocol.readVarint(request);
+            if (BinaryProtocol.isBatch(opcode)) {
+                // The parts are sent without compression, since their values are decoded to be split
+                command = opcode;
+                String[][] batch = BinaryProtocol.readBatch(first, request);
+                keys = batch[0].length;
+                for (Map.Entry<String, List<Integer>> owner : split(batch[0]).entrySet()) {
+                    int[] positions = positions(owner.getValue());
+                    String[] partKeys = new String[positions.length];
+                    String[] partValues = batch[1] == null ? null : new String[positions.length];
+                    for (int i = 0; i < positions.length; i++) {
+                        partKeys[i] = batch[0][positions[i]];
+                        if (partValues != null) {
+                            partValues[i] = batch[1][positions[i]];
+                        }
+                    }
+                    String node = opcode == BinaryProtocol.MGET ? reader(owner.getKey()) : owner.getKey();
+                    parts.add(new Part(node, null, BinaryProtocol.batchRequest(opcode, id, partKeys, partValues),
+                            positions));
+                }
+            } else if (opcode != BinaryProtocol.STATS) {
+                String owner = ring.owner(BinaryProtocol.readString(request));
+                parts.add(new Part(opcode == BinaryProtocol.GET ? reader(owner) : owner, null, message, null));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Let a node report the malformed request
+            parts.clear();
+            command = 0;
+        }
+        if (parts.isEmpty()) {
+            parts.add(new Part(ring.getNodes().get(0), null, message, null));
+        }
+        for (Part part : parts) {
+            connection(part.node()).client.sendBinary(part.binaryMessage().duplicate());
+        }
+        pending.add(new Pending(id, command, keys, parts));
+    }
+
+    @Override
+    public ByteBuffer receiveBinary() throws IOException {
+        Pending request = nextPending();
+        ByteBuffer[] responses = new ByteBuffer[request.parts().size()];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = receiveBinaryPart(request.id(), request.parts().get(i));
+        }
+        if (request.command() == 0) {
+            return responses[0];
+        }
+        return mergeBinary(request, responses);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (Node node : nodes.values()) {
+            node.client.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Node node : nodes.values()) {
+            node.client.close();
+        }
+        nodes.clear();
+    }
+
+    @Override
+    public void log(String message) {
+        Utils.log(protocol + " Cluster Client", message);
+    }
+
+    /**
+     * Helper method to take the oldest request waiting for its response.
+     *
+     * @return the request
+     * @throws IOException if no request is waiting for a response
+     */
+    private Pending nextPending() throws IOException {
+        Pending request = pending.poll();
+        if (request == null) {
+            throw new IOException("No request is waiting for a response");
+        }
+        flush();
+        return request;
+    }
+
+    /**
+     * Helper method to check whether a text response is a chunk of the entries of a SCAN or PREFIX, followed by more
+     * responses to the same request.
+     *
+     * @param response response with its request id
+     * @return true if the response is in the form "id:n CHUNK key value [key value ...]"
+     */
+    private static boolean isChunk(String response) {
+        int end = response.indexOf(' ');
+        return end >= 0 && response.startsWith("CHUNK ", end + 1);
+    }
+
+    /**
+     * Helper method to get the connection to a node, connecting to it first if needed.
+     *
+     * @param address address of the node, in the form host:port
+     * @return the connection to the node
+     * @throws IOException if the connection failed
+     */
+    private Node connection(String address) throws IOException {
+        Node node = nodes.get(address);
+        if (node == null) {
+            String host = HashRing.host(address);
+            int port = HashRing.parsePort(address);
+            CommunicationClient client = protocol.equals("TCP") ? new TCPClient(host, port)
+                    : new UDPClient(host, port);
+            if (started) {
+                client.start();
+            }
+            if (binary) {
+                client.startBinary();
+            }
+            node = new Node(client);
+            nodes.put(address, node);
+        }
+        return node;
+    }
+
+    /**
+     * Helper method to choose the server to read the keys of a node from, in turn the node and each of its replicas.
+     * A replica that cannot be reached is skipped for the node itself.
+     *
+     * @param owner address of the node owning the keys
+     * @return the address of the node or of one of its replicas
+     */
+    private String reader(String owner) {
+        List<String> replicas = ring.getReplicas(owner);
+        if (replicas.isEmpty()) {
+            return owner;
+        }
+        int choice = (int) (reads++ % (replicas.size() + 1));
+        if (choice == 0) {
+            return owner;
+        }
+        String replica = replicas.get(choice - 1);
+        try {
+            connection(replica);
+            return replica;
+        } catch (IOException e) {
+            log("Cannot reach replica " + replica + ", reading from " + owner);
+            return owner;
+        }
+    }
+
+    /**
+     * Helper method to group the keys of a batch by owner.
+     *
+     * @param keys keys of the batch
+     * @return the positions of the keys in the batch, by node
+     */
+    private Map<String, List<Integer>> split(String[] keys) {
+        Map<String, List<Integer>> owners = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            owners.computeIfAbsent(ring.owner(keys[i]), node -> new ArrayList<>()).add(i);
+        }
+        return owners;
+    }
+
+    /**
+     * Helper method to convert a list of positions to an array.
+     *
+     * @param positions positions of keys in a batch
+     * @return the positions
+     */
+    private static int[] positions(List<Integer> positions) {
+        return positions.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Helper method to receive the text response of a part of a request, following the redirects of the nodes.
+     *
+     * @param id   request id of the request
+     * @param part part of the request
+     * @return the response of the node owning the keys, with its request id
+     * @throws IOException if the operation failed
+     */
+    private String receivePart(long id, Part part) throws IOException {
+        Node node = nodes.get(part.node());
+        for (int redirects = 0; ; redirects++) {
+            String response = node.early.remove(id);
+            while (response == null) {
+                String received = node.client.receive();
+                long receivedId = responseId(received);
+                if (receivedId == id) {
+                    response = received;
+                } else {
+                    node.early.put(receivedId, received);
+                }
+            }
+            String result = response.substring(response.indexOf(' ') + 1);
+            if (!result.startsWith(MOVED) || redirects == MAX_REDIRECTS) {
+                return response;
+            }
+            String owner = result.substring(MOVED.length());
+            log("Request " + id + " redirected to " + owner);
+            node = connection(owner);
+            node.client.send(part.message());
+        }
+    }
+
+    /**
+     * Helper method to return the next chunk of a SCAN or PREFIX, taking the smallest key of the nodes in turn, or its
+     * final "END n" once the limit is reached or every node ended. The first node answering with an error gives the
+     * final response instead, once the other nodes are done.
+     *
+     * @return the next response of the range, with its request id
+     * @throws IOException if the operation failed
+     */
+    private String receiveRange() throws IOException {
+        Range current = range;
+        long id = current.request.id();
+        StringBuilder chunk = new StringBuilder("id:").append(id).append(" CHUNK");
+        int header = chunk.length();
+        while (current.error == null && current.sent < current.request.keys()) {
+            int next = -1;
+            for (int i = 0; i < current.chunks.length; i++) {
+                if (hasEntry(current, i) && (next < 0 || current.chunks[i][current.positions[i]]
+                        .compareTo(current.chunks[next][current.positions[next]]) < 0)) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                break;
+            }
+            String key = current.chunks[next][current.positions[next]];
+            String value = current.chunks[next][current.positions[next] + 1];
+            current.positions[next] += 2;
+            current.sent++;
+            chunk.append(' ').append(key).append(' ').append(value);
+            if (chunk.length() >= CHUNK_SIZE) {
+                return chunk.toString();
+            }
+        }
+        if (chunk.length() > header) {
+            return chunk.toString();
+        }
+        // The nodes stop at the limit too, so their remaining entries are few
+        for (int i = 0; i < current.chunks.length; i++) {
+            while (!current.ended[i]) {
+                current.chunks[i] = null;
+                hasEntry(current, i);
+            }
+        }
+        range = null;
+        return "id:" + id + " " + (current.error != null ? current.error : "END " + current.sent);
+    }
+
+    /**
+     * Helper method to check whether a node of a range has an entry left, receiving its next chunk when needed.
+     *
+     * @param current range being merged
+     * @param index   index of the node in the parts of the range
+     * @return true if the node has an entry at its position
+     * @throws IOException if the operation failed
+     */
+    private boolean hasEntry(Range current, int index) throws IOException {
+        while (!current.ended[index]
+                && (current.chunks[index] == null || current.positions[index] + 1 >= current.chunks[index].length)) {
+            String response = receivePart(current.request.id(), current.request.parts().get(index));
+            String result = response.substring(response.indexOf(' ') + 1);
+            if (result.startsWith("CHUNK ")) {
+                current.chunks[index] = result.split(" ");
+                current.positions[index] = 1;
+            } else {
+                current.ended[index] = true;
+                if (!result.startsWith("END ") && current.error == null) {
+                    current.error = result;
+                }
+            }
+        }
+        return !current.ended[index];
+    }
+
+    /**
+     * Helper method to receive the binary response of a part of a request, following the redirects of the nodes.
+     *
+     * @param id   request id of the request
+     * @param part part of the request
+     * @return the response of the node owning the keys
+     * @throws IOException if the operation failed
+     */
+    private ByteBuffer receiveBinaryPart(long id, Part part) throws IOException {
+        Node node = nodes.get(part.node());
+        for (int redirects = 0; ; redirects++) {
+            ByteBuffer response = node.earlyBinary.remove(id);
+            while (response == null) {
+                ByteBuffer received = node.client.receiveBinary();
+                ByteBuffer header = received.duplicate();
+                header.get();
+                long receivedId = BinaryProtocol.readVarint(header);
+                if (receivedId == id) {
+                    response = received;
+                } else {
+                    node.earlyBinary.put(receivedId, received);
+                }
+            }
+            ByteBuffer header = response.duplicate();
+            if (header.get() != BinaryProtocol.STATUS_MOVED || redirects == MAX_REDIRECTS) {
+                return response;
+            }
+            BinaryProtocol.readVarint(header);
+            String owner = BinaryProtocol.readString(header);
+            log("Request " + id + " redirected to " + owner);
+            node = connection(owner);
+            node.client.sendBinary(part.binaryMessage().duplicate());
+        }
+    }
+
+    /**
+     * Helper method to merge the text results of the parts of a batch. The first part that failed gives its result.
+     *
+     * @param request batch request
+     * @param results results of its parts, without the request id
+     * @return the result of the batch
+     */
+    private static String merge(Pending request, String[] results) {
+        switch (request.command()) {
+            case RequestParser.MGET:
+                String[] values = new String[request.keys()];
+                for (int i = 0; i < results.length; i++) {
+                    int[] positions = request.parts().get(i).positions();
+                    String[] partValues = results[i].split(" ");
+                    if (partValues.length != positions.length) {
+                        return results[i];
+                    }
+                    for (int j = 0; j < positions.length; j++) {
+                        values[positions[j]] = partValues[j];
+                    }
+                }
+                return String.join(" ", values);
+            case RequestParser.MDELETE:
+                long deleted = 0;
+                for (String result : results) {
+                    try {
+                        deleted += Long.parseLong(result);
+                    } catch (NumberFormatException e) {
+                        return result;
+                    }
+                }
+                return Long.toString(deleted);
+            default:
+                for (String result : results) {
+                    if (!result.equals("Ok.")) {
+                        return result;
+                    }
+                }
+                return "Ok.";
+        }
+    }
+
+    /**
+     * Helper method to merge the binary responses of the parts of a batch. The first part that failed gives its
+     * response.
+     *
+     * @param request   batch request
+     * @param responses responses of its parts
+     * @return the response of the batch
+     */
+    private static ByteBuffer mergeBinary(Pending request, ByteBuffer[] responses) {
+        String[] values = new String[request.keys()];
+        long deleted = 0;
+        for (int i = 0; i < responses.length; i++) {
+            ByteBuffer response = responses[i].duplicate();
+            if (response.get() != BinaryProtocol.STATUS_OK) {
+                return responses[i];
+            }
+            BinaryProtocol.readVarint(response);
+            BinaryProtocol.readVarint(response);
+            if (request.command() == BinaryProtocol.MGET) {
+                int[] positions = request.parts().get(i).positions();
+                String[] partValues = BinaryProtocol.readBatchValues(response);
+                for (int j = 0; j < positions.length; j++) {
+                    values[positions[j]] = partValues[j];
+                }
+            } else if (request.command() == BinaryProtocol.MDELETE) {
+                deleted += BinaryProtocol.readVarint(response);
+            }
+        }
+        switch (request.command()) {
+            case BinaryProtocol.MGET:
+                return BinaryProtocol.batchResponse(request.id(), values);
+            case BinaryProtocol.MDELETE:
+                return BinaryProtocol.countResponse(request.id(), deleted);
+            default:
+                return BinaryProtocol.response(BinaryProtocol.STATUS_OK, request.id(), null);
+        }
+    }
+
+    /**
+     * Helper method to extract the request id at the beginning of a text message, in the form id:n.
+     *
+     * @param message request or response
+     * @return the request id, or -1 if the message does not start with a valid request id
+     */
+    private static long responseId(String message) {
+        int end = message.indexOf(' ');
+        if (!message.startsWith("id:") || end < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(message, 3, end, 10);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
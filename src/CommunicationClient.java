@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * This interface defines the methods that a communication client should implement. The client is communicating over
@@ -31,6 +32,44 @@ public interface CommunicationClient {
      */
     String receive() throws IOException;
 
+    /**
+     * Switch to the binary protocol by sending the upgrade request and checking the server accepted it.
+     *
+     * @throws IOException if the operation failed, or the server does not support the binary protocol
+     */
+    default void startBinary() throws IOException {
+        send(BinaryProtocol.UPGRADE_REQUEST);
+        if (!receive().equals(BinaryProtocol.upgradeResponse(BinaryProtocol.UPGRADE_REQUEST))) {
+            throw new IOException("Server does not support the binary protocol");
+        }
+    }
+
+    /**
+     * Send a binary message to the server, as defined by BinaryProtocol. Requires startBinary() to be called first.
+     *
+     * @param message message to be sent to the server, from its position to its limit
+     * @throws IOException if the operation failed
+     */
+    void sendBinary(ByteBuffer message) throws IOException;
+
+    /**
+     * Receive a binary message from the server.
+     *
+     * @return the message from the server
+     * @throws IOException if the operation failed
+     */
+    ByteBuffer receiveBinary() throws IOException;
+
+    /**
+     * Send the messages the client is holding back to send together, if any. Receiving a message flushes the client
+     * first.
+     *
+     * @throws IOException if the operation failed
+     */
+    default void flush() throws IOException {
+        // Messages are sent immediately by default
+    }
+
     /**
      * Close the opened connections gracefully.
      *
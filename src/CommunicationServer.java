@@ -2,7 +2,8 @@ import java.io.IOException;
 
 /**
  * This interface defines the methods that a communication server should implement. The server is communicating over
- * either TCP or UDP.
+ * either TCP or UDP. The messages are exchanged over its connections (see ServerConnection), so a server that only
+ * accepts connections, such as the NIOServer, does not send or receive messages itself.
  */
 public interface CommunicationServer {
 
@@ -14,39 +15,42 @@ public interface CommunicationServer {
     void start() throws IOException;
 
     /**
-     * Send the provided message to the client.
+     * Close the opened connections gracefully.
      *
-     * @param message message to be sent to the client.
-     * @throws IOException if the operation failed, or no destination address for UDP server
+     * @throws IOException if the operations failed
      */
-    void send(String message) throws IOException;
+    void close() throws IOException;
 
     /**
-     * Receive message from the client.
+     * Get the IP address and port number of the connection to include in the logs.
      *
-     * @return String of the message from the client.
-     * @throws IOException if the operation failed
+     * @return a string containing the connections IP address and port number
      */
-    String receive() throws IOException;
+    String getConnectionAddress();
 
     /**
-     * Close the opened connections gracefully.
+     * Format the log message to include the server name, and log it at the provided level.
      *
-     * @throws IOException if the operations failed
+     * @param level   level of the message
+     * @param message message to be logged
      */
-    void close() throws IOException;
+    void log(Log.Level level, String message);
 
     /**
-     * Get the IP address and port number of the connection to include in the logs.
+     * Format an informational log message to include the server name.
      *
-     * @return a string containing the connections IP address and port number
+     * @param message message to be logged
      */
-    String getConnectionAddress();
+    default void log(String message) {
+        log(Log.Level.INFO, message);
+    }
 
     /**
-     * Format the log message to include the server name.
+     * Serve client requests until the server is closed, or until the client disconnects for a server serving one
+     * client at a time. Each received request is passed to the handler and its result is sent back to the client.
      *
-     * @param message message to be logged
+     * @param handler handler processing each request
+     * @throws IOException if the operation failed, or the client disconnected
      */
-    void log(String message);
+    void serve(RequestHandler handler) throws IOException;
 }
@@ -0,0 +1,203 @@
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store compressing the large values it stores in the wrapped store, so that compressible
+ * values such as JSON documents take several times less memory. Values of at least the threshold are compressed (see
+ * Compression), and kept compressed only if that makes them smaller. A compressed value is stored as the MARKER
+ * character followed by one Latin-1 character per compressed byte, which the heap engines store in one byte per
+ * character. The rare values starting with the MARKER are stored with a second MARKER in front, so that every value
+ * reads back unchanged. The offheap and lsm engines store values in UTF-8, which takes two bytes for half the
+ * compressed bytes: they save less.
+ * Recently read values are kept decompressed in a small cache, each slot holding a key, its stored value, and its
+ * decompressed value. A slot only answers a read if the store still holds the same stored value, so that writes never
+ * need to invalidate it, and a key read often is only decompressed again once it is written or its slot is taken by
+ * another key. Scans do not go through the cache.
+ */
+public class CompressedKVStore implements KVStore {
+    private final static char MARKER = '\u0000';
+    private final static String ESCAPE = "\u0000\u0000";
+    private final KVStore store;
+    private final int threshold;
+    private final AtomicReferenceArray<Decoded> cache;
+
+    /**
+     * A value read recently, with the stored value it was decompressed from.
+     */
+    private record Decoded(String key, String stored, String value) {
+    }
+
+    /**
+     * Constructor for a compressed key-value store.
+     *
+     * @param store     store holding the compressed values
+     * @param threshold minimum number of characters of a value to be compressed
+     * @param cacheSize number of decompressed values kept in the cache, rounded up to a power of two of at least 2
+     * @throws IllegalArgumentException if the threshold or the cache size is not positive
+     */
+    public CompressedKVStore(KVStore store, int threshold, int cacheSize) throws IllegalArgumentException {
+        if (threshold <= 0 || cacheSize <= 0 || cacheSize > 1 << 30) {
+            throw new IllegalArgumentException("Compression threshold and cache size must be positive.");
+        }
+        this.store = store;
+        this.threshold = threshold;
+        cache = new AtomicReferenceArray<>(Integer.highestOneBit(Math.max(cacheSize - 1, 1)) << 1);
+    }
+
+    @Override
+    public void put(String key, String value) {
+        store.put(key, encode(value));
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        store.put(key, encode(value), ttlSeconds);
+    }
+
+    @Override
+    public long expiresAt(String key) {
+        return store.expiresAt(key);
+    }
+
+    @Override
+    public String get(String key) {
+        return decode(key, store.get(key));
+    }
+
+    @Override
+    public String delete(String key) {
+        return decode(key, store.delete(key));
+    }
+
+    /**
+     * Replace the value of the key with a function of its current value, through the update of the wrapped store: the
+     * function receives the decompressed value, and its result is compressed before being stored.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        String[] next = new String[1];
+        String stored = store.update(key, current -> {
+            next[0] = function.apply(decode(key, current));
+            return next[0] == null ? null : encode(next[0]);
+        });
+        // The last call of the function decided the result
+        return next[0] != null ? next[0] : decode(key, stored);
+    }
+
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        String[] encoded = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            encoded[i] = encode(values[i]);
+        }
+        store.putAll(keys, encoded);
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        String[] values = store.getAll(keys);
+        for (int i = 0; i < values.length; i++) {
+            values[i] = decode(keys[i], values[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public int deleteAll(String[] keys) {
+        return store.deleteAll(keys);
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach((key, value) -> action.accept(key, decode(value)));
+    }
+
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        return store.scan(start, end, limit, (key, value) -> action.accept(key, decode(value)));
+    }
+
+    @Override
+    public int scanPrefix(String prefix, int limit, BiConsumer<String, String> action) {
+        return store.scanPrefix(prefix, limit, (key, value) -> action.accept(key, decode(value)));
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return store.memoryUsage();
+    }
+
+    /**
+     * Helper method to convert a value to its stored form.
+     *
+     * @param value value of the entry
+     * @return the compressed value if it is large enough and compresses, the value itself otherwise
+     */
+    private String encode(String value) {
+        if (value.length() >= threshold) {
+            byte[] compressed = Compression.compress(value);
+            if (compressed.length + 1 < value.length()) {
+                return MARKER + new String(compressed, StandardCharsets.ISO_8859_1);
+            }
+        }
+        return value.isEmpty() || value.charAt(0) != MARKER ? value : ESCAPE + value;
+    }
+
+    /**
+     * Helper method to convert a stored value back to the value of the entry, without the cache.
+     *
+     * @param stored stored value, or null if the key does not exist
+     * @return the value of the entry, or null if the key does not exist
+     */
+    private static String decode(String stored) {
+        if (stored == null || stored.isEmpty() || stored.charAt(0) != MARKER) {
+            return stored;
+        }
+        if (stored.length() > 1 && stored.charAt(1) == MARKER) {
+            return stored.substring(2);
+        }
+        byte[] bytes = stored.getBytes(StandardCharsets.ISO_8859_1);
+        try {
+            return Compression.decompress(bytes, 1, bytes.length - 1);
+        } catch (IllegalArgumentException e) {
+            // Stored as is, such as by a run of the lsm engine without compression
+            return stored;
+        }
+    }
+
+    /**
+     * Helper method to convert a stored value back to the value of the entry, through the cache of decompressed
+     * values.
+     *
+     * @param key    key of the entry
+     * @param stored stored value, or null if the key does not exist
+     * @return the value of the entry, or null if the key does not exist
+     */
+    private String decode(String key, String stored) {
+        if (stored == null || stored.length() < 2 || stored.charAt(0) != MARKER || stored.charAt(1) == MARKER) {
+            return decode(stored);
+        }
+        int hash = key.hashCode();
+        int slot = (hash ^ hash >>> 16) & (cache.length() - 1);
+        Decoded decoded = cache.get(slot);
+        // Comparing the compressed values is much cheaper than decompressing, and is immediate for the heap engines,
+        // which return the same string object
+        if (decoded != null && decoded.key().equals(key) && decoded.stored().equals(stored)) {
+            return decoded.value();
+        }
+        String value = decode(stored);
+        cache.lazySet(slot, new Decoded(key, stored, value));
+        return value;
+    }
+}
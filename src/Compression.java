@@ -0,0 +1,108 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * This class contains the helper methods compressing values, both in the store (see CompressedKVStore) and on the
+ * binary protocol. A compressed value is the varint length of its UTF-8 bytes followed by the deflate stream of those
+ * bytes, at the fastest level: JSON and other text compress several times while costing less CPU than the memory and
+ * network bytes they save. The length lets the value be inflated into an array of the right size in a single pass. A
+ * length larger than deflate can produce from the compressed bytes is rejected before allocating that array, so a
+ * corrupt value cannot claim more memory than its own size allows.
+ * Deflaters and inflaters hold native memory until they are garbage collected, so they are reused from pools rather
+ * than created per call or kept per thread, since virtual threads would each hold their own.
+ */
+public class Compression {
+    // Deflate expands its input at most 1032 times, reached by long runs of a single byte
+    private final static int MAX_RATIO = 1032;
+    private final static ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private final static ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Compress a string.
+     * @param value string to be compressed
+     * @return the compressed value: the varint length of the UTF-8 bytes, then their deflate stream
+     */
+    public static byte[] compress(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        int header = BinaryProtocol.varintSize(bytes.length);
+        byte[] compressed = new byte[header + bytes.length / 2 + 64];
+        BinaryProtocol.writeVarint(ByteBuffer.wrap(compressed), bytes.length);
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            int size = header;
+            while (!deflater.finished()) {
+                if (size == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length * 2);
+                }
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            return Arrays.copyOf(compressed, size);
+        } finally {
+            deflater.reset();
+            deflaters.offer(deflater);
+        }
+    }
+
+    /**
+     * Decompress a string compressed by compress().
+     * @param compressed array holding the compressed value
+     * @param offset index of the first byte of the compressed value
+     * @param length number of bytes of the compressed value
+     * @return the decompressed string
+     * @throws IllegalArgumentException if the bytes are not a valid compressed value
+     */
+    public static String decompress(byte[] compressed, int offset, int length) throws IllegalArgumentException {
+        ByteBuffer buffer = ByteBuffer.wrap(compressed, offset, length);
+        long size;
+        try {
+            size = BinaryProtocol.readVarint(buffer);
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Corrupt compressed value");
+        }
+        if (size < 0 || size > BinaryProtocol.MAX_FRAME_SIZE || size > (long) MAX_RATIO * buffer.remaining() + 64) {
+            throw new IllegalArgumentException("Corrupt compressed value size " + size);
+        }
+        byte[] bytes = new byte[(int) size];
+        byte[] excess = new byte[1];
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        try {
+            inflater.setInput(compressed, buffer.position(), buffer.remaining());
+            int inflated = 0;
+            // Inflate until the end of the stream, so that a stream longer than the declared size is detected
+            while (!inflater.finished()) {
+                int read = inflated < bytes.length
+                        ? inflater.inflate(bytes, inflated, bytes.length - inflated)
+                        : inflater.inflate(excess);
+                if (inflated == bytes.length && read > 0) {
+                    throw new IllegalArgumentException("Compressed value longer than its size " + size);
+                }
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += read;
+            }
+            if (!inflater.finished() || inflated != bytes.length) {
+                throw new IllegalArgumentException("Corrupt compressed value");
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed value");
+        } finally {
+            inflater.reset();
+            inflaters.offer(inflater);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
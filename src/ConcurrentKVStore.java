@@ -0,0 +1,58 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a thread-safe key-value store using ConcurrentHashMap. Implements 3 operations: PUT, GET, and
+ * DELETE.
+ * Reads never take a lock, and writes only lock the bin of the written key, so operations on unrelated keys do not
+ * block each other. Atomic updates are lock-free: the new value is only written if the key still holds the value it
+ * was computed from, and computed again otherwise.
+ */
+public class ConcurrentKVStore implements KVStore {
+    private final ConcurrentHashMap<String, String> store;
+
+    public ConcurrentKVStore() {
+        // Size the table for many cores so that writers rarely contend on the same bin
+        store = new ConcurrentHashMap<>(1024, 0.75f, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Override
+    public void put(String key, String value) {
+        store.put(key, value);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String delete(String key) {
+        return store.remove(key);
+    }
+
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        while (true) {
+            String current = store.get(key);
+            String next = function.apply(current);
+            if (next == null) {
+                return current;
+            }
+            if (current == null ? store.putIfAbsent(key, next) == null : store.replace(key, current, next)) {
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public long size() {
+        return store.mappingCount();
+    }
+}
@@ -0,0 +1,356 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store that records every PUT and DELETE in a write-ahead log before acknowledging it.
+ * A write is applied to the wrapped store first and only logged once it succeeded, so that a write rejected by the
+ * store, for example when it is full, is never replayed.
+ * A PUT with a time to live is recorded with its absolute expiry time, so that it is replayed with the time it has
+ * left, or not at all once expired.
+ * Reads and writes are served by the wrapped store, which is rebuilt from the log on startup.
+ * Writes to the same key apply to the store and append to the log under the same lock stripe, so that the order of the
+ * log always matches the order of the store for each key. A batch locks the stripes of all its keys, in a fixed order,
+ * so that it still reaches the wrapped store as a single batch. Waiting for the fsync happens outside the lock, so that
+ * concurrent writes share a group commit.
+ * Optionally, snapshots of the store are written periodically while operations continue. On startup, the latest
+ * snapshot is restored first and only the log records after it are replayed. Records contained in a snapshot are then
+ * discarded from the log.
+ */
+public class DurableKVStore implements KVStore {
+    private final static int STRIPES = 64;
+    private final KVStore store;
+    private final WriteAheadLog log;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+    private final Path snapshotPath;
+    private volatile long snapshotSequence; // sequence number of the last operation in the latest snapshot
+
+    /**
+     * Constructor for a durable key-value store without snapshots. Replays the write-ahead log into the wrapped store.
+     *
+     * @param store store serving the operations
+     * @param log   write-ahead log recording the operations
+     * @throws IOException when failed to replay the log
+     */
+    public DurableKVStore(KVStore store, WriteAheadLog log) throws IOException {
+        this(store, log, null, 0);
+    }
+
+    /**
+     * Constructor for a durable key-value store. Restores the latest snapshot, then replays the newer records of the
+     * write-ahead log into the wrapped store.
+     *
+     * @param store           store serving the operations
+     * @param log             write-ahead log recording the operations
+     * @param snapshotPath    path of the snapshot file, null to disable snapshots
+     * @param intervalSeconds time between two snapshots, 0 to only write snapshots by calling snapshot()
+     * @throws IOException when failed to restore the snapshot or replay the log
+     */
+    public DurableKVStore(KVStore store, WriteAheadLog log, Path snapshotPath, long intervalSeconds)
+            throws IOException {
+        this.store = store;
+        this.log = log;
+        this.snapshotPath = snapshotPath;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        long sequence = 0;
+        if (snapshotPath != null) {
+            long start = System.currentTimeMillis();
+            sequence = Snapshot.restore(snapshotPath, store);
+            snapshotSequence = sequence;
+            Utils.log("Snapshot", "Restored snapshot up to operation " + sequence + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+        long replayed = log.replay(store, sequence);
+        Utils.log("Write-Ahead Log", "Replayed " + replayed + " operations");
+        if (snapshotPath != null && intervalSeconds > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    snapshot();
+                } catch (IOException e) {
+                    Utils.log(Log.Level.ERROR, "Snapshot", "Error writing snapshot: " + e.getMessage());
+                }
+            }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Write a snapshot of the store while operations continue, then discard the log records it contains.
+     * The snapshot is fuzzy: writes made during the iteration may or may not be included. It is still consistent
+     * once restored, because every write is applied to the store before it is logged, and every write after its
+     * sequence number is replayed from the log on top of it.
+     *
+     * @throws IOException when failed to write the snapshot or rewrite the log
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        long sequence = log.getSequence();
+        if (sequence == snapshotSequence) {
+            // Nothing was written since the latest snapshot
+            return;
+        }
+        long count = Snapshot.write(store, sequence, snapshotPath);
+        log.discardUpTo(sequence);
+        snapshotSequence = sequence;
+        Utils.log("Snapshot", "Wrote " + count + " entries up to operation " + sequence + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public void put(String key, String value) {
+        long sequence;
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            store.put(key, value);
+            sequence = append(BinaryProtocol.PUT, key, value);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(sequence);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            put(key, value);
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + ttlSeconds * 1000;
+        long sequence;
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            store.put(key, value, ttlSeconds);
+            sequence = append(BinaryProtocol.PUT, key, value, expiresAt);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(sequence);
+    }
+
+    @Override
+    public long expiresAt(String key) {
+        return store.expiresAt(key);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String delete(String key) {
+        long sequence;
+        String value;
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            value = store.delete(key);
+            sequence = append(BinaryProtocol.DELETE, key, null);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(sequence);
+        return value;
+    }
+
+    /**
+     * Apply the update to the wrapped store under the lock stripe of the key, which every write to the key holds, then
+     * log the new value as a PUT with the expiry time the key kept, and wait for it to be durable.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        long sequence;
+        String value;
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            // The engine may call the function again when it retries, only its last result is applied
+            String[] next = new String[1];
+            value = store.update(key, current -> next[0] = function.apply(current));
+            if (next[0] == null) {
+                return value;
+            }
+            sequence = append(BinaryProtocol.PUT, key, value, store.expiresAt(key));
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(sequence);
+        return value;
+    }
+
+    /**
+     * Apply the batch to the wrapped store, then log each of its entries and wait once for the whole batch to be
+     * durable.
+     *
+     * @param keys   keys of the entries
+     * @param values values of the entries, in the order of the keys
+     */
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        long sequence = 0;
+        int[] stripes = lockAll(keys);
+        try {
+            store.putAll(keys, values);
+            for (int i = 0; i < keys.length; i++) {
+                sequence = append(BinaryProtocol.PUT, keys[i], values[i]);
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        awaitDurable(sequence);
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        return store.getAll(keys);
+    }
+
+    /**
+     * Remove the keys of the batch from the wrapped store, then log the removal of each of them and wait once for the
+     * whole batch to be durable.
+     *
+     * @param keys keys of the entries
+     * @return the number of keys that existed and were removed
+     */
+    @Override
+    public int deleteAll(String[] keys) {
+        long sequence = 0;
+        int deleted;
+        int[] stripes = lockAll(keys);
+        try {
+            deleted = store.deleteAll(keys);
+            for (String key : keys) {
+                sequence = append(BinaryProtocol.DELETE, key, null);
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+        awaitDurable(sequence);
+        return deleted;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        return store.scan(start, end, limit, action);
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return store.memoryUsage();
+    }
+
+    /**
+     * Helper method to find the lock stripe of a key.
+     *
+     * @param key key of the operation
+     * @return the index of the lock guarding the key
+     */
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Helper method to lock the stripes of the keys of a batch, in increasing order so that two batches never wait for
+     * each other.
+     *
+     * @param keys keys of the batch
+     * @return the locked stripes
+     */
+    private int[] lockAll(String[] keys) {
+        int[] stripes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            stripes[i] = stripe(keys[i]);
+        }
+        stripes = Arrays.stream(stripes).sorted().distinct().toArray();
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Helper method to unlock the stripes locked by lockAll().
+     *
+     * @param stripes locked stripes
+     */
+    private void unlockAll(int[] stripes) {
+        for (int stripe : stripes) {
+            locks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Helper method to append an operation to the log.
+     *
+     * @param opcode BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key    key of the operation
+     * @param value  value of a PUT, null for a DELETE
+     * @return the sequence number of the operation
+     * @throws UncheckedIOException if the log cannot be written, so that the operation is not acknowledged
+     */
+    private long append(byte opcode, String key, String value) {
+        return append(opcode, key, value, 0);
+    }
+
+    /**
+     * Helper method to append an operation to the log, with the expiry time of a PUT.
+     *
+     * @param opcode    BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key       key of the operation
+     * @param value     value of a PUT, null for a DELETE
+     * @param expiresAt expiry time of a PUT in milliseconds since the epoch, 0 for no expiry
+     * @return the sequence number of the operation
+     * @throws UncheckedIOException if the log cannot be written, so that the operation is not acknowledged
+     */
+    private long append(byte opcode, String key, String value, long expiresAt) {
+        try {
+            return log.append(opcode, key, value, expiresAt);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Helper method to wait for an operation to be durable.
+     *
+     * @param sequence sequence number of the operation
+     * @throws UncheckedIOException if the log cannot be written, so that the operation is not acknowledged
+     */
+    private void awaitDurable(long sequence) {
+        try {
+            log.awaitDurable(sequence);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
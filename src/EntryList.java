@@ -0,0 +1,68 @@
+/**
+ * Class represents a doubly linked list of cache entries, linked through the entries themselves so that adding,
+ * removing, and moving an entry are O(1) and allocate nothing. The head is the least recently used entry.
+ * Not thread-safe: only used under the eviction lock of the store.
+ */
+public class EntryList {
+    private CacheEntry head;
+    private CacheEntry tail;
+    private int size;
+
+    /**
+     * Add an entry at the tail of the list.
+     *
+     * @param entry entry not in any list
+     */
+    public void add(CacheEntry entry) {
+        entry.previous = tail;
+        entry.next = null;
+        if (tail == null) {
+            head = entry;
+        } else {
+            tail.next = entry;
+        }
+        tail = entry;
+        size++;
+    }
+
+    /**
+     * Remove an entry from the list.
+     *
+     * @param entry entry in this list
+     */
+    public void remove(CacheEntry entry) {
+        if (entry.previous == null) {
+            head = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if (entry.next == null) {
+            tail = entry.previous;
+        } else {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+        size--;
+    }
+
+    /**
+     * Move an entry of the list to its tail, marking it as the most recently used.
+     *
+     * @param entry entry in this list
+     */
+    public void moveToTail(CacheEntry entry) {
+        if (entry != tail) {
+            remove(entry);
+            add(entry);
+        }
+    }
+
+    public CacheEntry getHead() {
+        return head;
+    }
+
+    public int size() {
+        return size;
+    }
+}
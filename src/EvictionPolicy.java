@@ -0,0 +1,35 @@
+/**
+ * This interface defines an eviction policy of the bounded key-value store, deciding which entry to evict when the
+ * store is over its budget. The store calls every method under its eviction lock, so implementations do not need to be
+ * thread-safe, but every method must run in constant time.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Start tracking a new entry.
+     *
+     * @param entry entry added to the store
+     */
+    void onAdd(CacheEntry entry);
+
+    /**
+     * Record a read of a tracked entry.
+     *
+     * @param entry entry read from the store
+     */
+    void onAccess(CacheEntry entry);
+
+    /**
+     * Stop tracking an entry that was removed, replaced, or expired.
+     *
+     * @param entry entry removed from the store
+     */
+    void onRemove(CacheEntry entry);
+
+    /**
+     * Choose an entry to evict and stop tracking it.
+     *
+     * @return the evicted entry, or null if no entry is tracked
+     */
+    CacheEntry evict();
+}
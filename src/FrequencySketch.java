@@ -0,0 +1,86 @@
+/**
+ * Class represents a count-min sketch estimating how often keys were accessed, in constant space.
+ * Each key has a 4-bit counter in each of 4 rows, packed 16 to a long. The estimate of a key is the smallest of its
+ * counters, which may over-count because of collisions but never under-counts. Once the number of increments reaches
+ * ten times the width of the rows, every counter is halved, so that the estimates favor recent accesses.
+ * Not thread-safe: only used under the eviction lock of the store.
+ */
+public class FrequencySketch {
+    private final static long[] SEEDS = {0x97CB3127L, 0xB8AD31C5L, 0xF7A17E4BL, 0x91C5B9C3L};
+    private final static long RESET_MASK = 0x7777777777777777L;
+    private final long[] table;
+    private final int rowMask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Constructor for a frequency sketch.
+     *
+     * @param expectedEntries number of entries expected in the store
+     */
+    public FrequencySketch(long expectedEntries) {
+        int width = Integer.highestOneBit((int) Math.max(16, Math.min(expectedEntries, 1 << 28)) - 1) << 1;
+        table = new long[width / 16 * SEEDS.length];
+        rowMask = width - 1;
+        sampleSize = width * 10;
+    }
+
+    /**
+     * Record an access to a key.
+     *
+     * @param hash hash of the key
+     */
+    public void increment(int hash) {
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            int word = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            if (((table[word] >>> shift) & 15) < 15) {
+                table[word] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    /**
+     * Estimate the number of recent accesses to a key.
+     *
+     * @param hash hash of the key
+     * @return the estimated frequency, from 0 to 15
+     */
+    public int frequency(int hash) {
+        int frequency = 15;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = counter(hash, row);
+            frequency = Math.min(frequency, (int) ((table[counter >>> 4] >>> ((counter & 15) << 2)) & 15));
+        }
+        return frequency;
+    }
+
+    /**
+     * Helper method to find the counter of a key in a row.
+     *
+     * @param hash hash of the key
+     * @param row  row of the sketch
+     * @return the index of the counter over the whole table
+     */
+    private int counter(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        int column = (int) (mixed ^ (mixed >>> 32)) & rowMask;
+        return row * (rowMask + 1) + column;
+    }
+
+    /**
+     * Helper method to halve every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+}
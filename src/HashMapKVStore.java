@@ -0,0 +1,88 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store using Hashmap. Implements 3 operations: PUT, GET, and DELETE.
+ * Operations are synchronized so that the store can be shared by several connections served at the same time.
+ */
+public class HashMapKVStore implements KVStore {
+    private Map<String, String> store;
+
+    public HashMapKVStore() {
+        store = new HashMap<>();
+    }
+
+    @Override
+    public synchronized void put(String key, String value) {
+        store.put(key, value);
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public synchronized String delete(String key) {
+        return store.remove(key);
+    }
+
+    @Override
+    public synchronized String update(String key, UnaryOperator<String> function) {
+        String next = function.apply(store.get(key));
+        if (next == null) {
+            return store.get(key);
+        }
+        store.put(key, next);
+        return next;
+    }
+
+    @Override
+    public synchronized void putAll(String[] keys, String[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            store.put(keys[i], values[i]);
+        }
+    }
+
+    @Override
+    public synchronized String[] getAll(String[] keys) {
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = store.get(keys[i]);
+        }
+        return values;
+    }
+
+    @Override
+    public synchronized int deleteAll(String[] keys) {
+        int deleted = 0;
+        for (String key : keys) {
+            if (store.remove(key) != null) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Copy the entries under the lock, then perform the action on the copy so operations are only blocked for the
+     * time of the copy.
+     *
+     * @param action action to perform on each key and value
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        Map<String, String> copy;
+        synchronized (this) {
+            copy = new HashMap<>(store);
+        }
+        copy.forEach(action);
+    }
+
+    @Override
+    public synchronized long size() {
+        return store.size();
+    }
+}
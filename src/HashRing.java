@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class assigns keys to the nodes of a cluster with consistent hashing. Each node is placed at many points of a
+ * 64-bit ring, its virtual nodes, and a key belongs to the node of the first point at or after the hash of the key.
+ * Virtual nodes spread the keys evenly, and adding or removing a node only moves the keys of its own ranges.
+ * The servers and the clients of a cluster load the same configuration file, so they agree on the owner of every key
+ * without asking each other. The file lists one node address host:port per line, and may set the number of virtual
+ * nodes per node with a virtual-nodes=n line. Blank lines and lines starting with # are ignored.
+ * A node line may be followed by the addresses of the replicas of the node, separated by spaces. Replicas own no range
+ * of the ring, but clients may read the keys of their primary from them.
+ */
+public class HashRing {
+    public final static int DEFAULT_VIRTUAL_NODES = 128;
+    private final List<String> nodes;
+    private final Map<String, List<String>> replicas = new HashMap<>();
+    private final Map<String, String> primaries = new HashMap<>();
+    private final long[] points;
+    private final String[] owners;
+
+    /**
+     * Constructor for a hash ring.
+     *
+     * @param nodes        addresses of the nodes, in the form host:port
+     * @param virtualNodes number of points of each node on the ring
+     * @throws IllegalArgumentException if there is no node, or the number of virtual nodes is not positive
+     */
+    public HashRing(List<String> nodes, int virtualNodes) throws IllegalArgumentException {
+        this(nodes, virtualNodes, Map.of());
+    }
+
+    /**
+     * Constructor for a hash ring whose nodes have replicas.
+     *
+     * @param nodes        addresses of the nodes, in the form host:port
+     * @param virtualNodes number of points of each node on the ring
+     * @param replicas     addresses of the replicas of each node having some
+     * @throws IllegalArgumentException if there is no node, the number of virtual nodes is not positive, or an address
+     *                                  is listed twice
+     */
+    public HashRing(List<String> nodes, int virtualNodes, Map<String, List<String>> replicas)
+            throws IllegalArgumentException {
+        if (nodes.isEmpty()) {
+            throw new IllegalArgumentException("A cluster needs at least one node.");
+        }
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("The number of virtual nodes must be a positive number.");
+        }
+        this.nodes = List.copyOf(nodes);
+        for (String node : nodes) {
+            if (primaries.put(node, node) != null) {
+                throw new IllegalArgumentException("Node " + node + " is listed twice in the cluster configuration.");
+            }
+        }
+        for (Map.Entry<String, List<String>> node : replicas.entrySet()) {
+            for (String replica : node.getValue()) {
+                parsePort(replica);
+                if (primaries.put(replica, node.getKey()) != null) {
+                    throw new IllegalArgumentException("Node " + replica
+                            + " is listed twice in the cluster configuration.");
+                }
+            }
+            this.replicas.put(node.getKey(), List.copyOf(node.getValue()));
+        }
+        // Sort the points of every node together, each point remembering its node
+        long[][] placed = new long[nodes.size() * virtualNodes][];
+        for (int n = 0; n < nodes.size(); n++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                placed[n * virtualNodes + v] = new long[]{hash(nodes.get(n) + "#" + v), n};
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = nodes.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * Load a hash ring from a cluster configuration file.
+     *
+     * @param file configuration file listing the nodes of the cluster
+     * @return the hash ring of the nodes
+     * @throws IOException              if the file could not be read
+     * @throws IllegalArgumentException if the file is not a valid configuration
+     */
+    public static HashRing load(Path file) throws IOException, IllegalArgumentException {
+        Map<String, List<String>> nodes = new LinkedHashMap<>();
+        int virtualNodes = DEFAULT_VIRTUAL_NODES;
+        for (String line : Files.readAllLines(file)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (line.startsWith("virtual-nodes=")) {
+                try {
+                    virtualNodes = Integer.parseInt(line.substring("virtual-nodes=".length()));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Invalid cluster configuration line " + line + ".");
+                }
+                continue;
+            }
+            String[] addresses = line.split("\\s+");
+            parsePort(addresses[0]);
+            if (nodes.put(addresses[0], List.of(addresses).subList(1, addresses.length)) != null) {
+                throw new IllegalArgumentException("Node " + addresses[0]
+                        + " is listed twice in the cluster configuration.");
+            }
+        }
+        return new HashRing(new ArrayList<>(nodes.keySet()), virtualNodes, nodes);
+    }
+
+    /**
+     * Find the node owning a key.
+     *
+     * @param key key to be located
+     * @return the address of the node, in the form host:port
+     */
+    public String owner(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            // Not a point itself, so the key belongs to the next point, wrapping around the end of the ring
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Get the nodes of the ring.
+     *
+     * @return the addresses of the nodes, in the order of the configuration
+     */
+    public List<String> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    /**
+     * Get the replicas of a node.
+     *
+     * @param node address of the node
+     * @return the addresses of its replicas, empty if it has none
+     */
+    public List<String> getReplicas(String node) {
+        return replicas.getOrDefault(node, List.of());
+    }
+
+    /**
+     * Find the node whose keys a server of the cluster holds.
+     *
+     * @param server address of a node or of a replica
+     * @return the address of the node itself, or of the primary of the replica, null if the server is not listed
+     */
+    public String primaryOf(String server) {
+        return primaries.get(server);
+    }
+
+    /**
+     * Get the host name of a node address.
+     *
+     * @param node address of the node, in the form host:port
+     * @return the host name
+     */
+    public static String host(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * Get the port number of a node address.
+     *
+     * @param node address of the node, in the form host:port
+     * @return the port number
+     * @throws IllegalArgumentException if the address is not in the form host:port
+     */
+    public static int parsePort(String node) throws IllegalArgumentException {
+        int separator = node.lastIndexOf(':');
+        try {
+            if (separator > 0) {
+                int port = Integer.parseInt(node.substring(separator + 1));
+                if (!Utils.invalidPort(port)) {
+                    return port;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Invalid node address " + node + ". Nodes must be in the form host:port"
+                + " with a port between 1024 - 65535.");
+    }
+
+    /**
+     * Helper method to hash a string to a point of the ring: FNV-1a over the characters, followed by the finalizer of
+     * MurmurHash3 so that similar strings, such as the virtual nodes of a node, land far apart.
+     *
+     * @param text string to be hashed
+     * @return the 64-bit hash
+     */
+    private static long hash(String text) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < text.length(); i++) {
+            hash = (hash ^ text.charAt(i)) * 0x100000001b3L;
+        }
+        hash = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+        hash = (hash ^ (hash >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
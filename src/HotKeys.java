@@ -0,0 +1,115 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Class represents a detector of the keys read the most, from a sample of the reads. One read in SAMPLE_RATE is
+ * counted in a count-min sketch: each key has a counter in each of DEPTH rows, and its estimate is the smallest of
+ * them, which may over-count because of collisions but never under-counts. The keys with the highest estimates are
+ * kept as candidates, up to CANDIDATES of them, a new key replacing the coldest candidate once its estimate is higher.
+ * Once the sampled reads reach ten times the width of the rows, every counter and candidate is halved, so that keys
+ * that cool down make room for the keys that are hot now.
+ * Unlike the 4-bit FrequencySketch, which only needs to tell warm keys from cold ones, the counters are full integers
+ * so that the hottest keys can be ranked.
+ * Samples are recorded under a lock that is only tried: a sample arriving while another is being recorded is dropped,
+ * so that reads never wait for the detector.
+ */
+public class HotKeys {
+    public final static int CANDIDATES = 256;
+    private final static int SAMPLE_RATE = 16;
+    private final static int DEPTH = 4;
+    private final static int WIDTH = 1 << 14;
+    private final static long[] SEEDS = {0x97CB3127L, 0xB8AD31C5L, 0xF7A17E4BL, 0x91C5B9C3L};
+    private final int[] counters = new int[DEPTH * WIDTH];
+    private final Map<String, Integer> candidates = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private int samples;
+
+    /**
+     * Record a read of a key, which is only counted if it is sampled.
+     *
+     * @param key key that was read
+     */
+    public void record(String key) {
+        if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) != 0 || !lock.tryLock()) {
+            return;
+        }
+        try {
+            int hash = key.hashCode();
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                int counter = counter(hash, row);
+                counters[counter]++;
+                estimate = Math.min(estimate, counters[counter]);
+            }
+            if (candidates.containsKey(key) || candidates.size() < CANDIDATES) {
+                candidates.put(key, estimate);
+            } else {
+                String coldest = null;
+                int lowest = estimate;
+                for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+                    if (candidate.getValue() < lowest) {
+                        coldest = candidate.getKey();
+                        lowest = candidate.getValue();
+                    }
+                }
+                if (coldest != null) {
+                    candidates.remove(coldest);
+                    candidates.put(key, estimate);
+                }
+            }
+            if (++samples >= WIDTH * 10) {
+                age();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the keys read the most recently, with their estimated number of reads.
+     *
+     * @param limit maximum number of keys, at most CANDIDATES
+     * @return the keys and their estimates, from the hottest to the coldest
+     */
+    public List<Map.Entry<String, Long>> hottest(int limit) {
+        List<Map.Entry<String, Long>> hottest = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+                hottest.add(Map.entry(candidate.getKey(), (long) candidate.getValue() * SAMPLE_RATE));
+            }
+        } finally {
+            lock.unlock();
+        }
+        hottest.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        return hottest.subList(0, Math.min(limit, hottest.size()));
+    }
+
+    /**
+     * Helper method to find the counter of a key in a row.
+     *
+     * @param hash hash of the key
+     * @param row  row of the sketch
+     * @return the index of the counter over the whole table
+     */
+    private static int counter(int hash, int row) {
+        long mixed = (hash + SEEDS[row]) * SEEDS[row];
+        return row * WIDTH + ((int) (mixed ^ (mixed >>> 32)) & (WIDTH - 1));
+    }
+
+    /**
+     * Helper method to halve every counter and candidate, dropping the candidates no longer counted.
+     */
+    private void age() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] >>>= 1;
+        }
+        candidates.replaceAll((key, estimate) -> estimate >>> 1);
+        candidates.values().removeIf(estimate -> estimate == 0);
+        samples /= 2;
+    }
+}
@@ -1,23 +1,249 @@
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
 
 /**
- * Class represents a key-value store using Hashmap. Implements 3 operations: PUT, GET, and DELETE.
+ * This interface defines the operations of a key-value store: PUT, GET, and DELETE, and the atomic updates built on
+ * update(): compare-and-set, increment, and put-if-absent.
+ * Implementations are shared by every connection of the server, so they must be safe to use from multiple threads.
  */
-public class KVStore {
-    private Map<String, String> store;
+public interface KVStore {
 
-    public KVStore() {
-        store = new HashMap<>();
+    /**
+     * Associate the value with the key, replacing any existing value.
+     *
+     * @param key   key of the entry
+     * @param value value of the entry
+     */
+    void put(String key, String value);
+
+    /**
+     * Associate the value with the key for a limited time, replacing any existing value. Only engines supporting
+     * expiry accept a time to live.
+     *
+     * @param key        key of the entry
+     * @param value      value of the entry
+     * @param ttlSeconds time to live of the entry in seconds, 0 for no expiry
+     * @throws IllegalStateException if the engine does not support expiry
+     */
+    default void put(String key, String value, long ttlSeconds) throws IllegalStateException {
+        if (ttlSeconds > 0) {
+            throw new IllegalStateException("Expiry is only supported by the cache engine");
+        }
+        put(key, value);
+    }
+
+    /**
+     * Get the time at which the entry of the key expires, so that wrappers recording the writes can record its expiry.
+     *
+     * @param key key of the entry
+     * @return the expiry time in milliseconds since the epoch, or 0 if the entry does not expire or does not exist
+     */
+    default long expiresAt(String key) {
+        return 0;
+    }
+
+    /**
+     * Get the value associated with the key.
+     *
+     * @param key key of the entry
+     * @return the value, or null if the key does not exist
+     */
+    String get(String key);
+
+    /**
+     * Remove the key and its value from the store in a single atomic step.
+     *
+     * @param key key of the entry
+     * @return the removed value, or null if the key did not exist
+     */
+    String delete(String key);
+
+    /**
+     * Replace the value of the key with a function of its current value, in a single atomic step: no other write to
+     * the key happens between reading the current value and writing the new one. The function may be called more than
+     * once when the update races with other writes, and only the result of its last call is applied.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, null if the key does not exist, returning the new value, or null
+     *                 to leave the key unchanged. An exception thrown by the function leaves the key unchanged and is
+     *                 thrown by update()
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    String update(String key, UnaryOperator<String> function);
+
+    /**
+     * Associate the value with the key, only if the key does not exist.
+     *
+     * @param key   key of the entry
+     * @param value value of the entry
+     * @return the current value if the key exists and was left unchanged, or null if the value was put
+     */
+    default String putIfAbsent(String key, String value) {
+        String[] existing = new String[1];
+        update(key, current -> {
+            existing[0] = current;
+            return current == null ? value : null;
+        });
+        return existing[0];
+    }
+
+    /**
+     * Replace the value of the key, only if its current value is the expected one.
+     *
+     * @param key      key of the entry
+     * @param expected expected current value
+     * @param value    new value of the entry
+     * @return the value the key had, equal to the expected value if it was replaced, or null if the key does not exist
+     */
+    default String compareAndExchange(String key, String expected, String value) {
+        String[] witness = new String[1];
+        update(key, current -> {
+            witness[0] = current;
+            return expected.equals(current) ? value : null;
+        });
+        return witness[0];
+    }
+
+    /**
+     * Add a delta to the integer value of the key, a key that does not exist counting as 0.
+     *
+     * @param key   key of the entry
+     * @param delta number to add, negative to subtract
+     * @return the new value
+     * @throws IllegalStateException if the value is not an integer, or the result overflows
+     */
+    default long increment(String key, long delta) throws IllegalStateException {
+        return Long.parseLong(update(key, current -> add(current, delta)));
     }
 
-    public void put(String key, String value) {
-        store.put(key, value);
+    /**
+     * Helper method to add a delta to a value holding an integer.
+     *
+     * @param value current value, null for 0
+     * @param delta number to add, negative to subtract
+     * @return the sum, as a value
+     * @throws IllegalStateException if the value is not an integer, or the sum overflows
+     */
+    private static String add(String value, long delta) throws IllegalStateException {
+        long number;
+        try {
+            number = value == null ? 0 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Value is not an integer");
+        }
+        try {
+            return Long.toString(Math.addExact(number, delta));
+        } catch (ArithmeticException e) {
+            throw new IllegalStateException("Increment would overflow");
+        }
     }
-    public String get(String key) {
-        return store.get(key);
+
+    /**
+     * Associate each value with its key. Engines override this method to apply the whole batch with a single lock
+     * acquisition, or a single pass over their lock stripes.
+     *
+     * @param keys   keys of the entries
+     * @param values values of the entries, in the order of the keys
+     */
+    default void putAll(String[] keys, String[] values) {
+        for (int i = 0; i < keys.length; i++) {
+            put(keys[i], values[i]);
+        }
+    }
+
+    /**
+     * Get the value associated with each key.
+     *
+     * @param keys keys of the entries
+     * @return the values in the order of the keys, null for keys that do not exist
+     */
+    default String[] getAll(String[] keys) {
+        String[] values = new String[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = get(keys[i]);
+        }
+        return values;
+    }
+
+    /**
+     * Remove each key and its value from the store.
+     *
+     * @param keys keys of the entries
+     * @return the number of keys that existed and were removed
+     */
+    default int deleteAll(String[] keys) {
+        int deleted = 0;
+        for (String key : keys) {
+            if (delete(key) != null) {
+                deleted++;
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Perform the action on every entry of the store. Operations may continue during the iteration, and entries
+     * modified during the iteration may or may not be seen.
+     *
+     * @param action action to perform on each key and value
+     */
+    void forEach(BiConsumer<String, String> action);
+
+    /**
+     * Perform the action on the entries whose keys are in a range, in increasing order of their keys. Only ordered
+     * engines support range scans. Operations may continue during the scan, and entries modified during the scan may
+     * or may not be seen.
+     *
+     * @param start  first key of the range, inclusive
+     * @param end    last key of the range, exclusive, or null for no upper bound
+     * @param limit  maximum number of entries to visit
+     * @param action action to perform on each key and value
+     * @return the number of entries visited
+     * @throws IllegalStateException if the engine does not keep its keys in order
+     */
+    default int scan(String start, String end, int limit, BiConsumer<String, String> action)
+            throws IllegalStateException {
+        throw new IllegalStateException("Range scans are only supported by the ordered engine");
+    }
+
+    /**
+     * Perform the action on the entries whose keys start with a prefix, in increasing order of their keys.
+     *
+     * @param prefix prefix of the keys
+     * @param limit  maximum number of entries to visit
+     * @param action action to perform on each key and value
+     * @return the number of entries visited
+     * @throws IllegalStateException if the engine does not keep its keys in order
+     */
+    default int scanPrefix(String prefix, int limit, BiConsumer<String, String> action) throws IllegalStateException {
+        // The keys starting with the prefix are the keys from the prefix up to, excluding, the next prefix of the same
+        // length: the prefix with its last character incremented, dropping the characters that cannot be incremented
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE) {
+            last--;
+        }
+        String end = last < 0 ? null : prefix.substring(0, last) + (char) (prefix.charAt(last) + 1);
+        return scan(prefix, end, limit, action);
     }
-    public void delete(String key) {
-        store.remove(key);
+
+    /**
+     * Get the number of entries of the store. The result may be approximate while the store is being modified.
+     *
+     * @return the number of entries
+     */
+    long size();
+
+    /**
+     * Estimate the memory used by the entries of the store, in bytes. By default, every entry is counted as two heap
+     * strings and a hash map node, which requires a walk over the whole store: callers should not call it per
+     * request. Engines that know their memory override this method.
+     *
+     * @return the estimated memory in bytes
+     */
+    default long memoryUsage() {
+        long[] bytes = new long[1];
+        // Two string objects with their arrays and a map node, with compact Latin-1 strings of one byte per character
+        forEach((key, value) -> bytes[0] += 120 + key.length() + value.length());
+        return bytes[0];
     }
 }
@@ -0,0 +1,179 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records latencies in a histogram with a bounded relative error, in the style of HdrHistogram. Values are
+ * counted in log-linear buckets: every power of two is split into 64 linear sub-buckets, so a recorded value is known
+ * to within 1.6% no matter its magnitude, from nanoseconds to hours, in a fixed array of counters.
+ * Recording is lock-free, so a histogram can be shared by several threads: it increments the counter of one bucket and
+ * the sum, and only writes the maximum when it grows. Latencies cluster in a few buckets, so each bucket counts in a
+ * striped LongAdder, created on its first value, rather than in a single slot that every thread would contend on.
+ * The number of values is the sum of the buckets, computed when it is read. Reading while values are being recorded
+ * gives an approximate result.
+ */
+public class LatencyHistogram {
+    private final static int SUB_BUCKET_BITS = 6;
+    private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private final static int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS;
+    private final AtomicReferenceArray<LongAdder> counts = new AtomicReferenceArray<>(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record a value.
+     *
+     * @param value value to be recorded, such as a latency in nanoseconds. Negative values are recorded as 0
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        bucket(index(value)).increment();
+        sum.add(value);
+        updateMax(value);
+    }
+
+    /**
+     * Add the values recorded by another histogram to this histogram.
+     *
+     * @param other histogram whose values are added
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.count(i);
+            if (count > 0) {
+                bucket(i).add(count);
+            }
+        }
+        sum.add(other.sum.sum());
+        updateMax(other.getMax());
+    }
+
+    /**
+     * Get the number of recorded values.
+     *
+     * @return the number of values
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += count(i);
+        }
+        return count;
+    }
+
+    /**
+     * Get the sum of the recorded values.
+     *
+     * @return the sum, 0 if no value was recorded
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Get the largest recorded value.
+     *
+     * @return the maximum, 0 if no value was recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get the mean of the recorded values.
+     *
+     * @return the mean, 0 if no value was recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Get the value at a percentile of the recorded values, that is, the highest value of the bucket holding it.
+     *
+     * @param percentile percentile between 0 and 100, such as 99.9
+     * @return the value at the percentile, 0 if no value was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += count(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * Helper method to get the counter of a bucket, creating it on the first value of the bucket.
+     *
+     * @param index index of the bucket
+     * @return the counter of the bucket
+     */
+    private LongAdder bucket(int index) {
+        LongAdder bucket = counts.get(index);
+        if (bucket == null) {
+            bucket = new LongAdder();
+            if (!counts.compareAndSet(index, null, bucket)) {
+                // Another thread created it first
+                bucket = counts.get(index);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Helper method to get the number of values counted by a bucket.
+     *
+     * @param index index of the bucket
+     * @return the number of values, 0 if the bucket has none
+     */
+    private long count(int index) {
+        LongAdder bucket = counts.get(index);
+        return bucket == null ? 0 : bucket.sum();
+    }
+
+    /**
+     * Helper method to raise the maximum to a value. The maximum is only written when it grows, which is rare once
+     * the histogram has seen its first values.
+     *
+     * @param value value that may be the new maximum
+     */
+    private void updateMax(long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // Retry until the maximum is at least the value
+        }
+    }
+
+    /**
+     * Helper method to find the bucket of a value.
+     *
+     * @param value value to be recorded, not negative
+     * @return the index of the bucket counting the value
+     */
+    private static int index(long value) {
+        // Values below 2 * SUB_BUCKETS are counted exactly, larger values keep their top SUB_BUCKET_BITS + 1 bits
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    /**
+     * Helper method to find the highest value counted by a bucket.
+     *
+     * @param index index of the bucket
+     * @return the highest value of the bucket
+     */
+    private static long highestValue(int index) {
+        int shift = Math.max(0, (index >> SUB_BUCKET_BITS) - 1);
+        long lowest = (long) (index - shift * SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class contains the logging used across the Server and Client classes.
+ * Messages below the configured level are discarded. Call sites building an expensive message should check
+ * isEnabled() first, so that a disabled level costs a single comparison.
+ * Until start() is called, messages are written synchronously to the console. After start(), messages are appended to
+ * a lock-free ring buffer, and a background thread formats and writes them to the console or a file, so that request
+ * threads never wait on the output. If the buffer is full, messages are dropped and counted rather than blocking.
+ */
+public class Log {
+
+    /**
+     * Severity of a log message, from the most to the least verbose.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR, OFF
+    }
+
+    private final static int CAPACITY = 8192;
+    private final static DateTimeFormatter FORMATTER =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+    private final static AtomicReferenceArray<Entry> ring = new AtomicReferenceArray<>(CAPACITY);
+    private final static AtomicLong tail = new AtomicLong(); // next slot to be claimed by a producer
+    private final static LongAdder dropped = new LongAdder();
+    private static volatile long head; // next slot to be written by the background thread
+    private static volatile Level level = Level.INFO;
+    private static volatile PrintStream output = System.out;
+    private static volatile boolean async;
+
+    /**
+     * Set the minimum level of the messages to be logged.
+     * @param minimum the minimum level
+     */
+    public static void setLevel(Level minimum) {
+        level = minimum;
+    }
+
+    /**
+     * Start writing messages from a background thread.
+     * @param file path of the file to append the messages to, or null for the console
+     * @throws IOException if the file cannot be opened
+     */
+    public static synchronized void start(String file) throws IOException {
+        if (file != null) {
+            OutputStream stream = new FileOutputStream(file, true);
+            output = new PrintStream(stream, false);
+        }
+        if (async) {
+            return;
+        }
+        async = true;
+        Thread writer = new Thread(Log::drain, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Check whether messages of the provided level are logged.
+     * @param messageLevel level of the message
+     * @return true if the message would be logged
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && level != Level.OFF;
+    }
+
+    /**
+     * Log a message if its level is enabled.
+     * @param messageLevel level of the message
+     * @param serviceName the service name to be included at the beginning of the message
+     * @param message the message of the log
+     */
+    public static void log(Level messageLevel, String serviceName, String message) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), serviceName, message);
+        if (!async) {
+            output.println(entry.format());
+            return;
+        }
+        long slot;
+        do {
+            slot = tail.get();
+            if (slot - head >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        ring.lazySet((int) (slot % CAPACITY), entry);
+    }
+
+    /**
+     * Helper method run by the background thread to write the buffered messages in order. A claimed slot may not be
+     * filled yet by its producer, in which case the thread waits for it.
+     */
+    private static void drain() {
+        while (true) {
+            int index = (int) (head % CAPACITY);
+            Entry entry = ring.get(index);
+            if (entry == null) {
+                output.flush();
+                long lost = dropped.sumThenReset();
+                if (lost > 0) {
+                    output.println(new Entry(System.currentTimeMillis(), "Log", lost + " messages dropped").format());
+                }
+                LockSupport.parkNanos(1_000_000);
+                continue;
+            }
+            ring.set(index, null);
+            head = head + 1;
+            output.println(entry.format());
+        }
+    }
+
+    /**
+     * A message waiting to be written, formatted only when written.
+     */
+    private record Entry(long timestamp, String serviceName, String message) {
+
+        private String format() {
+            return "[" + serviceName + "] " + FORMATTER.format(Instant.ofEpochMilli(timestamp)) + " " + message;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * Class represents the least recently used eviction policy: the entry that was read or written the longest time ago is
+ * evicted first.
+ */
+public class LruPolicy implements EvictionPolicy {
+    private final EntryList entries = new EntryList();
+
+    @Override
+    public void onAdd(CacheEntry entry) {
+        entries.add(entry);
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        entries.moveToTail(entry);
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        entries.remove(entry);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        CacheEntry victim = entries.getHead();
+        if (victim != null) {
+            entries.remove(victim);
+        }
+        return victim;
+    }
+}
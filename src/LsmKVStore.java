@@ -0,0 +1,682 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a log-structured key-value store holding more entries than the memory, in a directory of
+ * SortedSegment files. Writes go to an in-memory memtable, a ConcurrentSkipListMap where a deletion is recorded as a
+ * DELETED value. Once the memtable reaches its size, it is frozen and a background thread writes it to a new segment,
+ * while writes continue in a new memtable. A GET looks at the memtable, the frozen memtables, then the segments from
+ * the newest to the oldest, and the first one holding the key answers. The Bloom filter of each segment lets a GET skip
+ * the segments that do not hold its key without reading them, so a miss rarely touches the disk.
+ * A second background thread compacts the segments once there are COMPACTION_THRESHOLD of them: the newest segments are
+ * merged into one, extended to older segments while they are not much larger than the merged ones, so that each entry
+ * is rewritten a logarithmic number of times. Deletions are dropped once they are merged into the oldest segment. When
+ * the compactions fall behind, flushes wait for them, and writers in turn wait for the flushes.
+ * The live segments are listed, newest first, in a MANIFEST file replaced atomically, so that a crash during a flush or
+ * a compaction leaves the previous segments in place. The memtables are only in memory: with --wal, the write-ahead log
+ * replays the writes that were not flushed yet.
+ * The store is ordered, so it supports range scans and prefix queries. Only the memtables, the sparse indexes, and the
+ * Bloom filters of the segments are on the heap; the operating system caches the hot parts of the mapped segments.
+ */
+public class LsmKVStore implements KVStore {
+    private final static String MANIFEST = "MANIFEST";
+    private final static String SUFFIX = ".seg";
+    private final static int MAX_FROZEN = 2;
+    private final static int COMPACTION_THRESHOLD = 4;
+    private final static int MAX_SEGMENTS = 16;
+    private final static long ENTRY_OVERHEAD = 96; // skip list node, index nodes, and two string headers
+    private final static long RETRY_MS = 1000;
+    private final Path directory;
+    private final long memtableSize;
+    // Writers share the read lock, and freezing the memtable takes the write lock so that no write is lost in it
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Condition flushed = lock.writeLock().newCondition();
+    private final Condition compacted = lock.writeLock().newCondition();
+    private final AtomicLong memtableBytes = new AtomicLong();
+    private final Semaphore flushes = new Semaphore(0);
+    private final Semaphore compactions = new Semaphore(0);
+    // Flushes and compactions replace the segments one at a time, so that the manifest follows the same order
+    private final Object manifestLock = new Object();
+    private final AtomicLong nextSegment = new AtomicLong();
+    private volatile State state;
+
+    /**
+     * Background work of the store, which may fail with an IOException.
+     */
+    private interface Work {
+        void run() throws IOException;
+    }
+
+    /**
+     * The memtables and segments of the store at a point in time, replaced as a whole so that a reader always sees a
+     * consistent set.
+     *
+     * @param memtable memtable receiving the writes
+     * @param frozen   frozen memtables waiting to be flushed, newest first
+     * @param segments segments, newest first
+     */
+    private record State(ConcurrentSkipListMap<String, String> memtable,
+                         List<ConcurrentSkipListMap<String, String>> frozen, List<SortedSegment> segments) {
+    }
+
+    /**
+     * Constructor for a log-structured key-value store. Opens the segments listed in the manifest of the directory,
+     * removes the files of an interrupted flush or compaction, and starts the background threads.
+     *
+     * @param directory    directory of the segment files, created if needed
+     * @param memtableSize size in bytes at which a memtable is flushed to a segment
+     * @throws IOException when failed to open the directory or a segment
+     */
+    public LsmKVStore(Path directory, long memtableSize) throws IOException {
+        this.directory = directory;
+        this.memtableSize = memtableSize;
+        Files.createDirectories(directory);
+        Path manifest = directory.resolve(MANIFEST);
+        List<String> names = Files.exists(manifest) ? Files.readAllLines(manifest, StandardCharsets.UTF_8) : List.of();
+        List<SortedSegment> segments = new ArrayList<>();
+        Set<String> live = new HashSet<>();
+        for (String name : names) {
+            if (!name.isBlank()) {
+                segments.add(SortedSegment.open(directory.resolve(name)));
+                live.add(name);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                nextSegment.accumulateAndGet(segmentNumber(name) + 1, Math::max);
+                if (!live.contains(name)) {
+                    Files.delete(file);
+                }
+            }
+        }
+        state = new State(new ConcurrentSkipListMap<>(), List.of(), List.copyOf(segments));
+        Utils.log("LSM", "Opened " + segments.size() + " segments in " + directory);
+        startBackground("lsm-flush", flushes, this::flush);
+        startBackground("lsm-compaction", compactions, this::compact);
+        compactions.release();
+    }
+
+    @Override
+    public void put(String key, String value) {
+        lock.readLock().lock();
+        try {
+            state.memtable().put(key, value);
+            memtableBytes.addAndGet(ENTRY_OVERHEAD + key.length() + value.length());
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull();
+    }
+
+    @Override
+    public String get(String key) {
+        String value = find(state, key, true);
+        return value == SortedSegment.DELETED ? null : value;
+    }
+
+    /**
+     * Record the deletion of the key in the memtable. The previous value is taken from the memtable, or otherwise from
+     * the frozen memtables and segments, which no longer change.
+     *
+     * @param key key of the entry
+     * @return the removed value, or null if the key did not exist
+     */
+    @Override
+    public String delete(String key) {
+        String previous;
+        lock.readLock().lock();
+        try {
+            previous = delete(state, key);
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull();
+        return previous;
+    }
+
+    /**
+     * Replace the value of the key with a function of its current value, writing the new value to the memtable only if
+     * the memtable still holds the value it was computed from, and computing it again otherwise. The frozen memtables
+     * and segments no longer change, so a value found there stays current until the memtable holds the key.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        String result;
+        lock.readLock().lock();
+        try {
+            State current = state;
+            while (true) {
+                String inMemtable = current.memtable().get(key);
+                String value = inMemtable != null ? inMemtable : find(current, key, false);
+                String existing = value == SortedSegment.DELETED ? null : value;
+                String next = function.apply(existing);
+                if (next == null) {
+                    result = existing;
+                    break;
+                }
+                if (inMemtable == null ? current.memtable().putIfAbsent(key, next) == null
+                        : current.memtable().replace(key, inMemtable, next)) {
+                    memtableBytes.addAndGet(ENTRY_OVERHEAD + key.length() + next.length());
+                    result = next;
+                    break;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull();
+        return result;
+    }
+
+    /**
+     * Put the whole batch into the memtable under a single acquisition of the lock.
+     *
+     * @param keys   keys of the entries
+     * @param values values of the entries, in the order of the keys
+     */
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        lock.readLock().lock();
+        try {
+            ConcurrentSkipListMap<String, String> memtable = state.memtable();
+            long bytes = 0;
+            for (int i = 0; i < keys.length; i++) {
+                memtable.put(keys[i], values[i]);
+                bytes += ENTRY_OVERHEAD + keys[i].length() + values[i].length();
+            }
+            memtableBytes.addAndGet(bytes);
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull();
+    }
+
+    @Override
+    public int deleteAll(String[] keys) {
+        int deleted = 0;
+        lock.readLock().lock();
+        try {
+            State current = state;
+            for (String key : keys) {
+                if (delete(current, key) != null) {
+                    deleted++;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        freezeIfFull();
+        return deleted;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        Iterator<Map.Entry<String, String>> entries = merge(state, null, false);
+        while (entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            action.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Walk the entries of the range in increasing order of their keys, merging the memtables and the segments that
+     * have entries in the range.
+     *
+     * @param start  first key of the range, inclusive
+     * @param end    last key of the range, exclusive, or null for no upper bound
+     * @param limit  maximum number of entries to visit
+     * @param action action to perform on each key and value
+     * @return the number of entries visited
+     */
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        if (end != null && start.compareTo(end) >= 0) {
+            return 0;
+        }
+        Iterator<Map.Entry<String, String>> entries = merge(state, start, false);
+        int visited = 0;
+        while (visited < limit && entries.hasNext()) {
+            Map.Entry<String, String> entry = entries.next();
+            if (end != null && entry.getKey().compareTo(end) >= 0) {
+                break;
+            }
+            action.accept(entry.getKey(), entry.getValue());
+            visited++;
+        }
+        return visited;
+    }
+
+    /**
+     * Estimate the number of entries without merging the segments. A key written again after it was flushed is counted
+     * once per segment holding it, until the segments are compacted.
+     *
+     * @return the estimated number of entries
+     */
+    @Override
+    public long size() {
+        State current = state;
+        long size = current.memtable().size();
+        for (ConcurrentSkipListMap<String, String> frozen : current.frozen()) {
+            size += frozen.size();
+        }
+        for (SortedSegment segment : current.segments()) {
+            size += segment.entries() - 2 * segment.deletions();
+        }
+        return Math.max(size, 0);
+    }
+
+    /**
+     * Estimate the heap memory of the store: the memtables, and the indexes and Bloom filters of the segments. The
+     * entries of the segments are on disk and are not counted.
+     *
+     * @return the estimated memory in bytes
+     */
+    @Override
+    public long memoryUsage() {
+        State current = state;
+        long bytes = memtableBytes.get() + current.frozen().size() * memtableSize;
+        for (SortedSegment segment : current.segments()) {
+            bytes += segment.memoryUsage();
+        }
+        return bytes;
+    }
+
+    /**
+     * Helper method to record a deletion in the memtable of a state, the caller holding the read lock.
+     *
+     * @param current state of the store
+     * @param key     key of the entry
+     * @return the removed value, or null if the key did not exist
+     */
+    private String delete(State current, String key) {
+        String older = null;
+        if (current.memtable().get(key) == null) {
+            older = find(current, key, false);
+            if (older == null || older == SortedSegment.DELETED) {
+                // No value to hide, so no deletion is recorded. A write racing with it counts as coming after it
+                return null;
+            }
+        }
+        String previous = current.memtable().put(key, SortedSegment.DELETED);
+        memtableBytes.addAndGet(ENTRY_OVERHEAD + key.length());
+        if (previous == null) {
+            previous = older;
+        }
+        return previous == SortedSegment.DELETED ? null : previous;
+    }
+
+    /**
+     * Helper method to find the newest value of a key in a state.
+     *
+     * @param current  state of the store
+     * @param key      key of the entry
+     * @param memtable true to look in the memtable receiving the writes first
+     * @return the value, DELETED if the key was deleted, or null if no memtable or segment holds the key
+     */
+    private static String find(State current, String key, boolean memtable) {
+        String value = memtable ? current.memtable().get(key) : null;
+        for (int i = 0; value == null && i < current.frozen().size(); i++) {
+            value = current.frozen().get(i).get(key);
+        }
+        for (int i = 0; value == null && i < current.segments().size(); i++) {
+            value = current.segments().get(i).get(key);
+        }
+        return value;
+    }
+
+    /**
+     * Helper method to iterate over the newest entries of all the memtables and segments of a state, in order.
+     *
+     * @param current   state of the store
+     * @param from      first key of the iteration, inclusive, or null to start from the first entry
+     * @param deletions true to return the deleted keys, with the DELETED value
+     * @return an iterator of the entries
+     */
+    private static Iterator<Map.Entry<String, String>> merge(State current, String from, boolean deletions) {
+        List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+        sources.add(iterator(current.memtable(), from));
+        for (ConcurrentSkipListMap<String, String> frozen : current.frozen()) {
+            sources.add(iterator(frozen, from));
+        }
+        for (SortedSegment segment : current.segments()) {
+            sources.add(segment.iterator(from));
+        }
+        return new MergeIterator(sources, deletions);
+    }
+
+    /**
+     * Helper method to iterate over the entries of a memtable.
+     *
+     * @param memtable memtable to iterate over
+     * @param from     first key of the iteration, inclusive, or null to start from the first entry
+     * @return an iterator of the entries
+     */
+    private static Iterator<Map.Entry<String, String>> iterator(ConcurrentSkipListMap<String, String> memtable,
+                                                                String from) {
+        return (from == null ? memtable : memtable.tailMap(from, true)).entrySet().iterator();
+    }
+
+    /**
+     * Helper method to freeze the memtable once it is full, so that it gets flushed. When the flushes fall behind,
+     * writers wait for them, rather than filling the memory with frozen memtables.
+     */
+    private void freezeIfFull() {
+        if (memtableBytes.get() < memtableSize) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            // Another writer may have frozen the memtable meanwhile
+            while (memtableBytes.get() >= memtableSize) {
+                State current = state;
+                if (current.frozen().size() >= MAX_FROZEN) {
+                    flushed.awaitUninterruptibly();
+                    continue;
+                }
+                List<ConcurrentSkipListMap<String, String>> frozen = new ArrayList<>();
+                frozen.add(current.memtable());
+                frozen.addAll(current.frozen());
+                state = new State(new ConcurrentSkipListMap<>(), List.copyOf(frozen), current.segments());
+                memtableBytes.set(0);
+                flushes.release();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Helper method to start a background thread doing some work each time it is signaled, until the process exits.
+     * Errors are logged and the work is retried after a delay.
+     *
+     * @param name   name of the thread
+     * @param signal semaphore released when there is work to do
+     * @param work   work to do
+     */
+    private void startBackground(String name, Semaphore signal, Work work) {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                signal.acquireUninterruptibly();
+                signal.drainPermits();
+                try {
+                    work.run();
+                } catch (IOException e) {
+                    Log.log(Log.Level.ERROR, "LSM", name + " failed: " + e.getMessage());
+                    try {
+                        TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    signal.release();
+                }
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Helper method to write the frozen memtables to new segments, from the oldest, replacing each with its segment.
+     *
+     * @throws IOException when failed to write a segment or the manifest
+     */
+    private void flush() throws IOException {
+        while (!state.frozen().isEmpty()) {
+            List<ConcurrentSkipListMap<String, String>> frozen = state.frozen();
+            ConcurrentSkipListMap<String, String> memtable = frozen.get(frozen.size() - 1);
+            lock.writeLock().lock();
+            try {
+                // Reads slow down with each segment, so flushes wait for the compactions to catch up
+                while (state.segments().size() >= MAX_SEGMENTS) {
+                    compacted.awaitUninterruptibly();
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+            long start = System.currentTimeMillis();
+            SortedSegment segment = SortedSegment.write(newSegmentPath(), memtable.entrySet().iterator(),
+                    memtable.size());
+            synchronized (manifestLock) {
+                List<SortedSegment> segments = new ArrayList<>();
+                segments.add(segment);
+                segments.addAll(state.segments());
+                writeManifest(segments);
+                lock.writeLock().lock();
+                try {
+                    State current = state;
+                    // Writers may have frozen newer memtables meanwhile, before the flushed one
+                    List<ConcurrentSkipListMap<String, String>> remaining = current.frozen()
+                            .subList(0, current.frozen().size() - 1);
+                    state = new State(current.memtable(), List.copyOf(remaining), List.copyOf(segments));
+                    flushed.signalAll();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            compactions.release();
+            Log.log(Log.Level.DEBUG, "LSM", "Flushed " + segment.entries() + " entries to " + segment.getPath()
+                    + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Helper method to merge the newest segments into one, until there are less than COMPACTION_THRESHOLD segments.
+     * Each merge starts with the two newest segments and extends to each older segment that is at most twice as large
+     * as the segments merged so far. Flushes continue during a merge, adding newer segments before its inputs.
+     *
+     * @throws IOException when failed to write a merged segment or the manifest
+     */
+    private void compact() throws IOException {
+        while (state.segments().size() >= COMPACTION_THRESHOLD) {
+            List<SortedSegment> segments = state.segments();
+            int count = 2;
+            long merged = segments.get(0).fileSize() + segments.get(1).fileSize();
+            long entries = segments.get(0).entries() + segments.get(1).entries();
+            while (count < segments.size() && segments.get(count).fileSize() <= merged * 2) {
+                merged += segments.get(count).fileSize();
+                entries += segments.get(count).entries();
+                count++;
+            }
+            List<SortedSegment> inputs = segments.subList(0, count);
+            List<Iterator<Map.Entry<String, String>>> sources = new ArrayList<>();
+            for (SortedSegment input : inputs) {
+                sources.add(input.iterator(null));
+            }
+            long start = System.currentTimeMillis();
+            // A deletion still hides the values of the older segments, unless the oldest segment is merged too
+            SortedSegment output = SortedSegment.write(newSegmentPath(),
+                    new MergeIterator(sources, count < segments.size()), entries);
+            synchronized (manifestLock) {
+                List<SortedSegment> replaced = new ArrayList<>(state.segments());
+                int position = replaced.indexOf(inputs.get(0));
+                replaced.subList(position, position + count).clear();
+                replaced.add(position, output);
+                writeManifest(replaced);
+                lock.writeLock().lock();
+                try {
+                    State current = state;
+                    state = new State(current.memtable(), current.frozen(), List.copyOf(replaced));
+                    compacted.signalAll();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            }
+            // Readers still using the merged segments keep their mappings, which outlive the files
+            for (SortedSegment input : inputs) {
+                Files.deleteIfExists(input.getPath());
+            }
+            Utils.log("LSM", "Compacted " + count + " segments into " + output.getPath().getFileName() + " ("
+                    + output.entries() + " entries) in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+    /**
+     * Helper method to choose the path of a new segment file.
+     *
+     * @return the path, named after the next segment number
+     */
+    private Path newSegmentPath() {
+        return directory.resolve(String.format("%012d", nextSegment.getAndIncrement()) + SUFFIX);
+    }
+
+    /**
+     * Helper method to replace the manifest with the list of the live segments, through a synced temporary file and
+     * an atomic rename.
+     *
+     * @param segments live segments, newest first
+     * @throws IOException when failed to write the manifest
+     */
+    private void writeManifest(List<SortedSegment> segments) throws IOException {
+        StringBuilder names = new StringBuilder();
+        for (SortedSegment segment : segments) {
+            names.append(segment.getPath().getFileName()).append('\n');
+        }
+        Path temporary = directory.resolve(MANIFEST + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer bytes = ByteBuffer.wrap(names.toString().getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(MANIFEST), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Helper method to read the number of a segment from its file name.
+     *
+     * @param name file name of the segment
+     * @return the number of the segment, or -1 if the name is not a segment number
+     */
+    private static long segmentNumber(String name) {
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * An iterator merging sorted sources, newest first, into the newest entry of each key.
+     */
+    private static class MergeIterator implements Iterator<Map.Entry<String, String>> {
+        private final PriorityQueue<Source> queue = new PriorityQueue<>();
+        private final boolean deletions;
+        private Map.Entry<String, String> next;
+
+        /**
+         * A source of the merge with its current entry. Among equal keys, the newest source comes first.
+         */
+        private static class Source implements Comparable<Source> {
+            private final Iterator<Map.Entry<String, String>> entries;
+            private final int age;
+            private Map.Entry<String, String> current;
+
+            private Source(Iterator<Map.Entry<String, String>> entries, int age) {
+                this.entries = entries;
+                this.age = age;
+            }
+
+            @Override
+            public int compareTo(Source other) {
+                int order = current.getKey().compareTo(other.current.getKey());
+                return order != 0 ? order : Integer.compare(age, other.age);
+            }
+        }
+
+        /**
+         * Constructor for a merge iterator.
+         *
+         * @param sources   iterators of the sources in increasing order of their keys, newest first
+         * @param deletions true to return the deleted keys, with the DELETED value
+         */
+        private MergeIterator(List<Iterator<Map.Entry<String, String>>> sources, boolean deletions) {
+            this.deletions = deletions;
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = new Source(sources.get(i), i);
+                if (source.entries.hasNext()) {
+                    source.current = source.entries.next();
+                    queue.add(source);
+                }
+            }
+            next = advance();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = next;
+            next = advance();
+            return entry;
+        }
+
+        /**
+         * Take the newest entry of the smallest key, skipping the older entries of the same key.
+         *
+         * @return the entry, or null when every source is exhausted
+         */
+        private Map.Entry<String, String> advance() {
+            while (!queue.isEmpty()) {
+                Source newest = queue.poll();
+                Map.Entry<String, String> entry = newest.current;
+                step(newest);
+                while (!queue.isEmpty() && queue.peek().current.getKey().equals(entry.getKey())) {
+                    step(queue.poll());
+                }
+                if (deletions || entry.getValue() != SortedSegment.DELETED) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Move a source to its next entry, putting it back in the queue unless it is exhausted.
+         *
+         * @param source source whose current entry was taken
+         */
+        private void step(Source source) {
+            if (source.entries.hasNext()) {
+                source.current = source.entries.next();
+                queue.add(source);
+            }
+        }
+    }
+}
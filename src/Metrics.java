@@ -0,0 +1,172 @@
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class records the metrics of the server: the number of requests and the latency of each command, the errors,
+ * the active connections, the bytes received and sent, and the size and memory of the key-value store.
+ * Recording is lock-free: counters are striped LongAdders and latencies go to a LatencyHistogram per command, so that
+ * concurrent requests do not contend on the same cache line and the metrics can stay enabled in production.
+ * The metrics are formatted in the Prometheus text format, returned by the STATS command and served over HTTP on a
+ * separate port for scrapers.
+ */
+public class Metrics {
+    public final static int ERROR = 0;
+    private final static String[] COMMANDS = {"error", "put", "get", "delete", "mput", "mget", "mdelete", "stats",
+            "ping", "scan", "prefix", "cas", "incr", "decr", "putifabsent",
+            "hotkeys", "track"};
+    private final static long MEMORY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(10);
+    private final LongAdder[] requests = new LongAdder[COMMANDS.length];
+    private final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final KVStore store;
+    private long memory;
+    private long memoryMeasuredAt;
+
+    /**
+     * Constructor for the metrics of a server.
+     *
+     * @param store key-value store of the server, whose size and memory are reported
+     */
+    public Metrics(KVStore store) {
+        this.store = store;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            requests[i] = new LongAdder();
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record a processed request.
+     *
+     * @param command       RequestParser command or BinaryProtocol opcode of the request, which share their values, or
+     *                      ERROR if the request failed
+     * @param received      size of the request
+     * @param sent          size of the response
+     * @param latencyNanos  time spent processing the request, in nanoseconds
+     */
+    public void record(int command, long received, long sent, long latencyNanos) {
+        if (command < 0 || command >= COMMANDS.length) {
+            command = ERROR;
+        }
+        requests[command].increment();
+        latencies[command].record(latencyNanos);
+        bytesReceived.add(received);
+        bytesSent.add(sent);
+    }
+
+    /**
+     * Record a new client connection.
+     */
+    public void connectionOpened() {
+        connections.increment();
+    }
+
+    /**
+     * Record a closed client connection.
+     */
+    public void connectionClosed() {
+        connections.decrement();
+    }
+
+    /**
+     * Format every metric in the Prometheus text format. Latencies are summaries in seconds.
+     *
+     * @return one metric per line
+     */
+    public String format() {
+        StringBuilder text = new StringBuilder(2048);
+        text.append("# TYPE kvstore_requests_total counter\n");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            text.append("kvstore_requests_total{command=\"").append(COMMANDS[i]).append("\"} ")
+                    .append(requests[i].sum()).append('\n');
+        }
+        text.append("# TYPE kvstore_request_latency_seconds summary\n");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            LatencyHistogram histogram = latencies[i];
+            long count = histogram.getCount();
+            if (count == 0) {
+                continue;
+            }
+            String labels = "kvstore_request_latency_seconds{command=\"" + COMMANDS[i] + "\"";
+            for (String quantile : new String[]{"0.5", "0.99", "0.999"}) {
+                text.append(labels).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.getValueAtPercentile(Double.parseDouble(quantile) * 100)))
+                        .append('\n');
+            }
+            text.append(labels).append(",quantile=\"1\"} ").append(seconds(histogram.getMax())).append('\n');
+            text.append("kvstore_request_latency_seconds_sum{command=\"").append(COMMANDS[i]).append("\"} ")
+                    .append(seconds(histogram.getSum())).append('\n');
+            text.append("kvstore_request_latency_seconds_count{command=\"").append(COMMANDS[i]).append("\"} ")
+                    .append(count).append('\n');
+        }
+        text.append("# TYPE kvstore_active_connections gauge\n");
+        text.append("kvstore_active_connections ").append(connections.sum()).append('\n');
+        text.append("# TYPE kvstore_received_bytes_total counter\n");
+        text.append("kvstore_received_bytes_total ").append(bytesReceived.sum()).append('\n');
+        text.append("# TYPE kvstore_sent_bytes_total counter\n");
+        text.append("kvstore_sent_bytes_total ").append(bytesSent.sum()).append('\n');
+        text.append("# TYPE kvstore_keys gauge\n");
+        text.append("kvstore_keys ").append(store.size()).append('\n');
+        text.append("# TYPE kvstore_memory_bytes gauge\n");
+        text.append("kvstore_memory_bytes ").append(memoryUsage()).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Serve the metrics over HTTP on a separate port, on a background thread. Every path answers with the metrics.
+     *
+     * @param port port number to listen for scrapers
+     * @throws IOException when failed to open the port
+     */
+    public void serve(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/", exchange -> {
+            byte[] body = format().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        http.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        http.start();
+        Utils.log("Metrics", "Serving metrics on port: " + port);
+    }
+
+    /**
+     * Helper method to get the memory of the store. Estimating it may walk the whole store, so the estimate is reused
+     * for a few seconds.
+     *
+     * @return the estimated memory in bytes
+     */
+    private synchronized long memoryUsage() {
+        long now = System.nanoTime();
+        if (memoryMeasuredAt == 0 || now - memoryMeasuredAt > MEMORY_REFRESH_NANOS) {
+            memory = store.memoryUsage();
+            memoryMeasuredAt = now;
+        }
+        return memory;
+    }
+
+    /**
+     * Helper method to convert nanoseconds to seconds.
+     *
+     * @param nanos duration in nanoseconds
+     * @return the duration in seconds
+     */
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / 1e9);
+    }
+}
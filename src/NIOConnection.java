@@ -0,0 +1,342 @@
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class represents a single non-blocking client connection of a NIO server. It decodes and encodes the same
+ * length-prefixed frames as DataInputStream.readUTF and DataOutputStream.writeUTF: a 2-byte length followed by the
+ * message in modified UTF-8.
+ * The read and write buffers are direct buffers kept for the life of the connection. They start small and only grow
+ * when a larger frame is received or sent, so idle connections stay cheap.
+ * After the client switches the connection to the binary protocol, frames are a 4-byte length followed by a binary
+ * message instead.
+ * Messages pushed by other threads are queued, and the reactor is woken up to write them with the next responses.
+ * A handler sending many messages for a single request, such as the chunks of a SCAN, is paused whenever more than
+ * MAX_PENDING_BYTES wait to be written, until the client has read enough of them, so that the write buffer does not
+ * grow with the whole response.
+ */
+public class NIOConnection implements ServerConnection {
+    private final static int INITIAL_BUFFER_SIZE = 4096;
+    private final static int MAX_FRAME_SIZE = 2 + Utils.MAX_UTF_LENGTH;
+    private final static int MAX_PENDING_BYTES = 256 * 1024;
+    private final static long WRITE_TIMEOUT_MS = 30_000;
+    private final SocketChannel channel;
+    private final String address;
+    private ByteBuffer readBuffer; // kept in read mode between calls to fill()
+    private ByteBuffer writeBuffer; // kept in write mode between calls to flush()
+    private char[] chars;
+    private volatile boolean binary;
+    private final Queue<String> pushed = new ConcurrentLinkedQueue<>();
+    private volatile SelectionKey key;
+
+    /**
+     * Constructor for a NIO connection.
+     *
+     * @param channel non-blocking channel accepted by the server
+     * @throws IOException when failed to read the remote address of the channel
+     */
+    public NIOConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        this.address = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+        readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE).flip();
+        writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+        chars = new char[INITIAL_BUFFER_SIZE];
+    }
+
+    /**
+     * Get the channel of this connection.
+     *
+     * @return the socket channel
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Read the available bytes from the channel into the read buffer without blocking.
+     *
+     * @return false if the client closed the connection
+     * @throws IOException if the operation failed
+     */
+    public boolean fill() throws IOException {
+        readBuffer.compact();
+        // Grow the buffer when the pending frame does not fit
+        int maxFrameSize = binary ? 4 + BinaryProtocol.MAX_FRAME_SIZE : MAX_FRAME_SIZE;
+        if (!readBuffer.hasRemaining() && readBuffer.capacity() < maxFrameSize) {
+            readBuffer = grow(readBuffer, Math.min(readBuffer.capacity() * 2, maxFrameSize));
+        }
+        int read = channel.read(readBuffer);
+        readBuffer.flip();
+        return read >= 0;
+    }
+
+    /**
+     * Write as many pending response bytes as the channel accepts without blocking.
+     *
+     * @return true if every pending byte was written
+     * @throws IOException if the operation failed
+     */
+    public boolean flush() throws IOException {
+        writeBuffer.flip();
+        channel.write(writeBuffer);
+        boolean done = !writeBuffer.hasRemaining();
+        writeBuffer.compact();
+        return done;
+    }
+
+    /**
+     * Set the selection key of the connection, once it is registered with its reactor.
+     *
+     * @param key selection key of the channel
+     */
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Move the pushed messages to the write buffer, or drop them once the connection is binary. Only called by the
+     * reactor of the connection.
+     *
+     * @throws IOException if a message is too long for a single frame
+     */
+    public void drainPushed() throws IOException {
+        String message;
+        while ((message = pushed.poll()) != null) {
+            if (!binary) {
+                send(message);
+            }
+        }
+    }
+
+    /**
+     * Check whether pushed messages are waiting to be moved to the write buffer.
+     *
+     * @return true if messages were pushed since the last call to drainPushed()
+     */
+    public boolean hasPushed() {
+        return !pushed.isEmpty();
+    }
+
+    @Override
+    public boolean canPush() {
+        return !binary;
+    }
+
+    /**
+     * Queue a message to be written by the reactor, and wake the reactor up to write it.
+     *
+     * @param message message to be sent to the client
+     * @throws IOException if the connection is closed or was switched to the binary protocol
+     */
+    @Override
+    public void push(String message) throws IOException {
+        SelectionKey registered = key;
+        if (binary || registered == null || !registered.isValid()) {
+            throw new IOException("Connection cannot receive pushed messages");
+        }
+        pushed.add(message);
+        try {
+            registered.interestOpsOr(SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            throw new IOException("Connection closed", e);
+        }
+        registered.selector().wakeup();
+    }
+
+    /**
+     * Check whether the connection was switched to the binary protocol.
+     *
+     * @return true if frames are binary messages
+     */
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switch the connection to the binary protocol. Every following frame is a binary message.
+     */
+    public void setBinary() {
+        binary = true;
+    }
+
+    /**
+     * Get the next complete binary frame from the read buffer, without copying it.
+     *
+     * @return the message, only valid until the next call to fill(), or null if no complete frame has been received yet
+     * @throws IOException if the frame length is not valid
+     */
+    public ByteBuffer receiveBinary() throws IOException {
+        if (readBuffer.remaining() < 4) {
+            return null;
+        }
+        int start = readBuffer.position();
+        int length = readBuffer.getInt(start);
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid binary frame length " + length);
+        }
+        if (readBuffer.remaining() < 4 + length) {
+            return null;
+        }
+        readBuffer.position(start + 4 + length);
+        return readBuffer.slice(start + 4, length);
+    }
+
+    /**
+     * Queue a binary message in the write buffer. The message is sent on the next call to flush().
+     *
+     * @param message message to be sent to the client, from its position to its limit
+     */
+    public void sendBinary(ByteBuffer message) {
+        if (writeBuffer.remaining() < 4 + message.remaining()) {
+            writeBuffer = grow(writeBuffer, Math.max(writeBuffer.capacity() * 2,
+                    writeBuffer.position() + 4 + message.remaining()));
+        }
+        writeBuffer.putInt(message.remaining());
+        writeBuffer.put(message);
+    }
+
+    @Override
+    public void start() throws IOException {
+        // Connection already established by the server channel
+    }
+
+    /**
+     * Queue the message in the write buffer. The message is sent on the next call to flush(), or right away when too
+     * many bytes are waiting to be written, in which case the caller waits for the client to read them.
+     *
+     * @param message message to be sent to the client.
+     * @throws IOException if the message is too long for a single frame, or the client stopped reading
+     */
+    @Override
+    public void send(String message) throws IOException {
+        if (writeBuffer.position() >= MAX_PENDING_BYTES) {
+            awaitWritten();
+        }
+        int length = Utils.encodedLength(message);
+        if (length > Utils.MAX_UTF_LENGTH) {
+            throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        }
+        if (writeBuffer.remaining() < 2 + length) {
+            writeBuffer = grow(writeBuffer, Math.max(writeBuffer.capacity() * 2, writeBuffer.position() + 2 + length));
+        }
+        writeBuffer.putShort((short) length);
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                writeBuffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                writeBuffer.put((byte) (0xC0 | (c >> 6)));
+                writeBuffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                writeBuffer.put((byte) (0xE0 | (c >> 12)));
+                writeBuffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                writeBuffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Decode the next complete frame from the read buffer.
+     *
+     * @return the message, or null if no complete frame has been received yet
+     * @throws IOException if the frame is not valid modified UTF-8
+     */
+    @Override
+    public String receive() throws IOException {
+        if (readBuffer.remaining() < 2) {
+            return null;
+        }
+        int start = readBuffer.position();
+        int length = readBuffer.getShort(start) & 0xFFFF;
+        if (readBuffer.remaining() < 2 + length) {
+            return null;
+        }
+        if (chars.length < length) {
+            chars = new char[Math.max(chars.length * 2, length)];
+        }
+        int count = 0;
+        int i = start + 2;
+        int end = i + length;
+        while (i < end) {
+            int b = readBuffer.get(i++) & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && i < end) {
+                chars[count++] = (char) (((b & 0x1F) << 6) | (readBuffer.get(i++) & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && i + 1 < end) {
+                chars[count++] = (char) (((b & 0x0F) << 12) | ((readBuffer.get(i++) & 0x3F) << 6)
+                        | (readBuffer.get(i++) & 0x3F));
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + (i - start - 2));
+            }
+        }
+        readBuffer.position(end);
+        return new String(chars, 0, count);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String getConnectionAddress() {
+        return address;
+    }
+
+    @Override
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "TCP Server", message);
+    }
+
+    @Override
+    public int getMaxMessageLength() {
+        return Utils.MAX_UTF_LENGTH;
+    }
+
+    /**
+     * Helper method to write the pending bytes until less than MAX_PENDING_BYTES are left, waiting for the channel to
+     * accept them on a selector of its own, since the reactor is busy with the current request.
+     *
+     * @throws IOException if the operation failed, or the client did not read for WRITE_TIMEOUT_MS
+     */
+    private void awaitWritten() throws IOException {
+        if (flush() || writeBuffer.position() < MAX_PENDING_BYTES) {
+            return;
+        }
+        try (Selector writable = Selector.open()) {
+            channel.register(writable, SelectionKey.OP_WRITE);
+            long deadline = System.currentTimeMillis() + WRITE_TIMEOUT_MS;
+            while (!flush() && writeBuffer.position() >= MAX_PENDING_BYTES) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new IOException("Client did not read its responses for " + WRITE_TIMEOUT_MS + " ms");
+                }
+                writable.select(remaining);
+                writable.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * Helper method to copy a buffer into a larger direct buffer, keeping its position and limit.
+     *
+     * @param buffer   buffer to be copied
+     * @param capacity capacity of the new buffer
+     * @return the new buffer
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer larger = ByteBuffer.allocateDirect(capacity);
+        int position = buffer.position();
+        buffer.flip();
+        larger.put(buffer);
+        larger.position(position);
+        return larger;
+    }
+}
@@ -0,0 +1,205 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class represents communication server using TCP protocol with non-blocking channels.
+ * An acceptor accepts new connections and hands them over, round-robin, to a fixed number of reactors. Each reactor
+ * runs an event loop on its own thread and selector, serving all of its connections without blocking. The number of
+ * threads therefore stays fixed, no matter how many clients are connected.
+ * The server speaks the same text and binary frames as the blocking TCPServer, so the same clients can be used.
+ */
+public class NIOServer implements CommunicationServer {
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+
+    /**
+     * Constructor for a NIO server.
+     *
+     * @param port     port number to listen for requests
+     * @param reactors number of event loops serving the connections
+     * @throws IOException when failed to create NIO server
+     */
+    public NIOServer(int port, int reactors) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        this.reactors = new Reactor[reactors];
+        for (int i = 0; i < reactors; i++) {
+            this.reactors[i] = new Reactor(Selector.open());
+        }
+        log("Listening on port: " + port);
+    }
+
+    @Override
+    public void start() throws IOException {
+        // Connections are accepted in serve()
+    }
+
+    /**
+     * Start the reactors, then keep accepting connections and handing them over to the reactors.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if failed to accept a connection
+     */
+    @Override
+    public void serve(RequestHandler handler) throws IOException {
+        for (int i = 0; i < reactors.length; i++) {
+            if (reactors[i].handler == null) {
+                reactors[i].handler = handler;
+                Thread thread = new Thread(reactors[i], "reactor-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        int next = 0;
+        while (true) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            NIOConnection connection = new NIOConnection(channel);
+            log("Connected to client at " + connection.getConnectionAddress());
+            reactors[next].register(connection);
+            next = (next + 1) % reactors.length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverChannel.close();
+        for (Reactor reactor : reactors) {
+            reactor.selector.close();
+        }
+    }
+
+    @Override
+    public String getConnectionAddress() {
+        return serverChannel.socket().getLocalSocketAddress().toString();
+    }
+
+    @Override
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "TCP Server", message);
+    }
+
+    /**
+     * An event loop serving the connections registered with its selector.
+     */
+    private class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<NIOConnection> pending = new ConcurrentLinkedQueue<>();
+        private volatile RequestHandler handler;
+
+        private Reactor(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Queue a new connection to be registered by the reactor thread, then wake the reactor up.
+         *
+         * @param connection the accepted connection
+         */
+        private void register(NIOConnection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (selector.isOpen()) {
+                try {
+                    selector.select();
+                    NIOConnection connection;
+                    while ((connection = pending.poll()) != null) {
+                        connection.setKey(connection.getChannel().register(selector, SelectionKey.OP_READ, connection));
+                        handler.connectionOpened(connection);
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handle(key);
+                    }
+                } catch (ClosedChannelException e) {
+                    // Client closed before its registration, nothing to serve
+                } catch (IOException e) {
+                    log(Log.Level.ERROR, "Reactor error: " + e.getMessage());
+                }
+            }
+        }
+
+        /**
+         * Helper method to serve a ready connection. Every complete request is processed, and the responses are written
+         * together. If the client does not accept all of them, reading stops until the responses are written.
+         * A connection failing for any reason is closed, without affecting the other connections of the reactor.
+         *
+         * @param key selection key of the connection
+         */
+        private void handle(SelectionKey key) {
+            NIOConnection connection = (NIOConnection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    if (!connection.fill()) {
+                        throw new IOException("End of stream");
+                    }
+                    while (true) {
+                        if (connection.isBinary()) {
+                            ByteBuffer request = connection.receiveBinary();
+                            if (request == null) {
+                                break;
+                            }
+                            connection.sendBinary(handler.handleBinary(request, connection));
+                        } else {
+                            String data = connection.receive();
+                            if (data == null) {
+                                break;
+                            }
+                            if (BinaryProtocol.isUpgradeRequest(data)) {
+                                connection.send(BinaryProtocol.upgradeResponse(data));
+                                connection.setBinary();
+                            } else {
+                                connection.send(handler.handle(data, connection));
+                            }
+                        }
+                    }
+                }
+                connection.drainPushed();
+                key.interestOps(connection.flush() ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+                // A message pushed since the queue was drained asked for OP_WRITE, which was just overwritten
+                if (connection.hasPushed()) {
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                }
+            } catch (IOException e) {
+                connection.log("Client " + connection.getConnectionAddress() + " disconnected");
+                close(key, connection);
+            } catch (RuntimeException e) {
+                // Close the connection rather than the reactor, which serves every other connection
+                connection.log(Log.Level.WARN, "Error serving client " + connection.getConnectionAddress() + ": " + e);
+                close(key, connection);
+            }
+        }
+
+        /**
+         * Helper method to close a connection and stop selecting it.
+         *
+         * @param key        selection key of the connection
+         * @param connection connection to be closed
+         */
+        private void close(SelectionKey key, NIOConnection connection) {
+            handler.connectionClosed(connection);
+            key.cancel();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                connection.log(Log.Level.WARN, "Error closing connection.");
+            }
+        }
+    }
+}
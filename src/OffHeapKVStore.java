@@ -0,0 +1,689 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store keeping its keys and values outside the Java heap. Implements 3 operations: PUT,
+ * GET, and DELETE.
+ * Keys are spread over shards by hash. Each shard appends its entries to an off-heap data segment, as a 4-byte key
+ * length, a 4-byte value length, and the UTF-8 key and value bytes, and finds them through an off-heap open-addressing
+ * index of 16-byte slots (record offset and key hash) probed linearly. Neither the entries nor the index are objects,
+ * so the garbage collector never scans them, whatever the size of the store.
+ * The live entries of all the shards share a fixed capacity, so that a single shard can hold a large entry or more
+ * than its share of the keys. A PUT that would take the live entries over the capacity fails, counting the entry it
+ * overwrites as freed. Overwritten and deleted entries leave dead bytes behind, which are reclaimed by compacting the
+ * data segment in place once they make up half of it, so the data segments reserve at most a few times the capacity.
+ * Each shard has its own read-write lock, so reads of a shard run in parallel and only wait for writes to the same
+ * shard. Batch operations group their keys by shard and take each lock once per batch.
+ */
+public class OffHeapKVStore implements KVStore {
+    private final static int SHARDS = 64;
+    private final static long INITIAL_DATA_SIZE = 64 * 1024;
+    private final static int INITIAL_SLOTS = 1024;
+    private final static int SLOT_SIZE = 16;
+    private final static int FOR_EACH_SLOTS = 1024;
+    private final static int RECORD_HEADER_SIZE = 8;
+    private final static long EMPTY = 0;
+    private final static long TOMBSTONE = -1;
+    private final Shard[] shards = new Shard[SHARDS];
+    private final long capacity;
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    /**
+     * Constructor for an off-heap key-value store.
+     *
+     * @param capacity maximum number of bytes of live keys and values, including an 8-byte header per entry
+     */
+    public OffHeapKVStore(long capacity) {
+        this.capacity = capacity;
+        for (int i = 0; i < SHARDS; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        shard(hash).put(keyBytes, hash, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        byte[] value = shard(hash).get(keyBytes, hash);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String delete(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        byte[] value = shard(hash).delete(keyBytes, hash);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Replace the value of the key with a function of its current value, under the write lock of its shard.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        Shard shard = shard(hash);
+        shard.lock.writeLock().lock();
+        try {
+            byte[] value = shard.getLocked(keyBytes, hash);
+            String current = value == null ? null : new String(value, StandardCharsets.UTF_8);
+            String next = function.apply(current);
+            if (next == null) {
+                return current;
+            }
+            shard.putLocked(keyBytes, hash, next.getBytes(StandardCharsets.UTF_8));
+            return next;
+        } finally {
+            shard.lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        byte[][] keyBytes = encode(keys);
+        int[] hashes = hashes(keyBytes);
+        int[] order = byShard(hashes);
+        int i = 0;
+        while (i < order.length) {
+            Shard shard = shard(hashes[order[i]]);
+            shard.lock.writeLock().lock();
+            try {
+                for (; i < order.length && shard(hashes[order[i]]) == shard; i++) {
+                    int k = order[i];
+                    shard.putLocked(keyBytes[k], hashes[k], values[k].getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        byte[][] keyBytes = encode(keys);
+        int[] hashes = hashes(keyBytes);
+        int[] order = byShard(hashes);
+        String[] values = new String[keys.length];
+        int i = 0;
+        while (i < order.length) {
+            Shard shard = shard(hashes[order[i]]);
+            shard.lock.readLock().lock();
+            try {
+                for (; i < order.length && shard(hashes[order[i]]) == shard; i++) {
+                    int k = order[i];
+                    byte[] value = shard.getLocked(keyBytes[k], hashes[k]);
+                    values[k] = value == null ? null : new String(value, StandardCharsets.UTF_8);
+                }
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public int deleteAll(String[] keys) {
+        byte[][] keyBytes = encode(keys);
+        int[] hashes = hashes(keyBytes);
+        int[] order = byShard(hashes);
+        int deleted = 0;
+        int i = 0;
+        while (i < order.length) {
+            Shard shard = shard(hashes[order[i]]);
+            shard.lock.writeLock().lock();
+            try {
+                for (; i < order.length && shard(hashes[order[i]]) == shard; i++) {
+                    if (shard.deleteLocked(keyBytes[order[i]], hashes[order[i]]) != null) {
+                        deleted++;
+                    }
+                }
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+        return deleted;
+    }
+
+    /**
+     * Perform the action on every entry. The entries of a shard are copied in batches under its read lock, and the
+     * action runs on each batch once the lock is released, so writes only wait for the copy of a batch.
+     *
+     * @param action action to perform on each key and value
+     */
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        for (Shard shard : shards) {
+            shard.forEach(action);
+        }
+    }
+
+    @Override
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                size += shard.live;
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Get the off-heap memory reserved by the data segments and the indexes of every shard, including the dead bytes
+     * not reclaimed yet.
+     *
+     * @return the reserved memory in bytes
+     */
+    @Override
+    public long memoryUsage() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            shard.lock.readLock().lock();
+            try {
+                bytes += shard.data.byteSize() + shard.index.byteSize();
+            } finally {
+                shard.lock.readLock().unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Reclaim the dead bytes of every shard.
+     */
+    public void compact() {
+        for (Shard shard : shards) {
+            shard.lock.writeLock().lock();
+            try {
+                shard.compact();
+            } finally {
+                shard.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Helper method to find the shard of a key.
+     *
+     * @param hash hash of the key
+     * @return the shard owning the key
+     */
+    private Shard shard(int hash) {
+        return shards[shardIndex(hash)];
+    }
+
+    /**
+     * Helper method to find the index of the shard of a key.
+     *
+     * @param hash hash of the key
+     * @return the index of the shard owning the key
+     */
+    private static int shardIndex(int hash) {
+        return (hash >>> 26) & (SHARDS - 1);
+    }
+
+    /**
+     * Helper method to encode keys in UTF-8.
+     *
+     * @param keys keys to be encoded
+     * @return the key bytes, in the order of the keys
+     */
+    private static byte[][] encode(String[] keys) {
+        byte[][] bytes = new byte[keys.length][];
+        for (int i = 0; i < keys.length; i++) {
+            bytes[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+        }
+        return bytes;
+    }
+
+    /**
+     * Helper method to hash encoded keys.
+     *
+     * @param keys key bytes
+     * @return the hashes, in the order of the keys
+     */
+    private static int[] hashes(byte[][] keys) {
+        int[] hashes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            hashes[i] = hash(keys[i]);
+        }
+        return hashes;
+    }
+
+    /**
+     * Helper method to order the keys of a batch by shard with a counting sort, keeping the order of the batch within
+     * each shard.
+     *
+     * @param hashes hashes of the keys
+     * @return the indexes of the keys, grouped by shard
+     */
+    private static int[] byShard(int[] hashes) {
+        int[] starts = new int[SHARDS + 1];
+        for (int hash : hashes) {
+            starts[shardIndex(hash) + 1]++;
+        }
+        for (int i = 0; i < SHARDS; i++) {
+            starts[i + 1] += starts[i];
+        }
+        int[] order = new int[hashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            order[starts[shardIndex(hashes[i])]++] = i;
+        }
+        return order;
+    }
+
+    /**
+     * Helper method to hash the bytes of a key. The same hash is computed from off-heap bytes during compaction.
+     *
+     * @param key key bytes
+     * @return the hash of the key
+     */
+    private static int hash(byte[] key) {
+        int hash = 0;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Helper method to hash the bytes of a key stored off-heap.
+     *
+     * @param segment segment containing the key
+     * @param offset  offset of the first byte of the key
+     * @param length  length of the key
+     * @return the hash of the key
+     */
+    private static int hash(MemorySegment segment, long offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + segment.get(ValueLayout.JAVA_BYTE, offset + i);
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Helper method to spread the bits of a hash, so that both the low bits (index slot) and the high bits (shard)
+     * are well distributed.
+     *
+     * @param hash hash to be mixed
+     * @return the mixed hash
+     */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Helper method to reserve room for live bytes in the capacity of the store.
+     *
+     * @param bytes number of bytes added to the live entries, negative when they shrink
+     * @throws IllegalStateException if the live entries would exceed the capacity
+     */
+    private void reserve(long bytes) throws IllegalStateException {
+        if (liveBytes.addAndGet(bytes) > capacity && bytes > 0) {
+            liveBytes.addAndGet(-bytes);
+            throw new IllegalStateException("Store capacity exceeded");
+        }
+    }
+
+    /**
+     * A part of the store with its own data segment, index, and lock.
+     */
+    private class Shard {
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private Arena dataArena;
+        private MemorySegment data;
+        private long top; // offset where the next record is appended
+        private long dead; // bytes of overwritten and deleted records
+        private Arena indexArena;
+        private MemorySegment index;
+        private int slots;
+        private int used; // slots that are not empty, including tombstones
+        private int live; // slots pointing to a record
+
+        private Shard() {
+            dataArena = Arena.ofShared();
+            data = dataArena.allocate(INITIAL_DATA_SIZE);
+            indexArena = Arena.ofShared();
+            slots = INITIAL_SLOTS;
+            index = indexArena.allocate((long) slots * SLOT_SIZE, 8);
+        }
+
+        private void put(byte[] key, int hash, byte[] value) {
+            lock.writeLock().lock();
+            try {
+                putLocked(key, hash, value);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private byte[] get(byte[] key, int hash) {
+            lock.readLock().lock();
+            try {
+                return getLocked(key, hash);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        private byte[] delete(byte[] key, int hash) {
+            lock.writeLock().lock();
+            try {
+                return deleteLocked(key, hash);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void putLocked(byte[] key, int hash, byte[] value) {
+            long size = RECORD_HEADER_SIZE + key.length + value.length;
+            int slot = find(key, hash);
+            long old = slot >= 0 ? recordSize(reference(slot)) : 0;
+            reserve(size - old);
+            if (ensureSpace(size) && slot >= 0) {
+                // The compaction moved the record of the key
+                slot = find(key, hash);
+            }
+            if (slot >= 0) {
+                dead += old;
+            } else {
+                slot = insertionSlot(hash);
+                if (reference(slot) == EMPTY) {
+                    used++;
+                }
+                live++;
+            }
+            data.set(ValueLayout.JAVA_INT_UNALIGNED, top, key.length);
+            data.set(ValueLayout.JAVA_INT_UNALIGNED, top + 4, value.length);
+            MemorySegment.copy(key, 0, data, ValueLayout.JAVA_BYTE, top + RECORD_HEADER_SIZE, key.length);
+            MemorySegment.copy(value, 0, data, ValueLayout.JAVA_BYTE, top + RECORD_HEADER_SIZE + key.length,
+                    value.length);
+            setSlot(slot, top + 1, hash);
+            top += size;
+            if (used * 4L > slots * 3L) {
+                // Double the index if it is mostly live entries, otherwise only clear the tombstones
+                resize(live * 2L > slots ? slots * 2 : slots);
+            }
+        }
+
+        private byte[] getLocked(byte[] key, int hash) {
+            int slot = find(key, hash);
+            return slot < 0 ? null : value(reference(slot) - 1);
+        }
+
+        private byte[] deleteLocked(byte[] key, int hash) {
+            int slot = find(key, hash);
+            if (slot < 0) {
+                return null;
+            }
+            long offset = reference(slot) - 1;
+            byte[] value = value(offset);
+            long size = recordSize(offset + 1);
+            dead += size;
+            reserve(-size);
+            setSlot(slot, TOMBSTONE, 0);
+            live--;
+            return value;
+        }
+
+        /**
+         * Perform the action on every entry of the shard, one batch of home slots at a time. The batches are ranges
+         * of the home slots in the index as it is when the iteration starts. The index only grows by doubling, so an
+         * entry present during the whole iteration is found in the batch of its hash even if the index grows between
+         * two batches, and is visited exactly once.
+         *
+         * @param action action to perform on each key and value
+         */
+        private void forEach(BiConsumer<String, String> action) {
+            int base;
+            lock.readLock().lock();
+            try {
+                base = slots;
+            } finally {
+                lock.readLock().unlock();
+            }
+            List<byte[]> batch = new ArrayList<>();
+            for (int from = 0; from < base; from += FOR_EACH_SLOTS) {
+                lock.readLock().lock();
+                try {
+                    copyRange(base, from, Math.min(from + FOR_EACH_SLOTS, base), batch);
+                } finally {
+                    lock.readLock().unlock();
+                }
+                for (int i = 0; i < batch.size(); i += 2) {
+                    action.accept(new String(batch.get(i), StandardCharsets.UTF_8),
+                            new String(batch.get(i + 1), StandardCharsets.UTF_8));
+                }
+                batch.clear();
+            }
+        }
+
+        /**
+         * Copy the keys and values of the entries whose home slot in an index of base slots is in a range. In the
+         * current index, which has a multiple of base slots, those entries are in the clusters starting at every copy
+         * of the range, so only those slots are scanned, each at most once.
+         *
+         * @param base  number of slots of the index the range refers to
+         * @param from  first home slot of the range, inclusive
+         * @param to    last home slot of the range, exclusive
+         * @param batch list receiving each key followed by its value
+         */
+        private void copyRange(int base, int from, int to, List<byte[]> batch) {
+            long next = from; // the slots are scanned as positions from "from" to "from + slots", wrapping around
+            for (long start = from; start < slots; start += base) {
+                long position = Math.max(start, next);
+                for (; position < from + slots && (position < start + to - from
+                        || reference((int) (position & (slots - 1))) != EMPTY); position++) {
+                    int slot = (int) (position & (slots - 1));
+                    long reference = reference(slot);
+                    int home = slotHash(slot) & (base - 1);
+                    if (reference > 0 && home >= from && home < to) {
+                        long offset = reference - 1;
+                        int keyLength = data.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+                        byte[] key = new byte[keyLength];
+                        MemorySegment.copy(data, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_SIZE, key, 0,
+                                keyLength);
+                        batch.add(key);
+                        batch.add(value(offset));
+                    }
+                }
+                next = position;
+            }
+        }
+
+        /**
+         * Make room for a record at the end of the data segment: compact when at least half of the segment is dead,
+         * then grow the segment if the record still does not fit. The record was already reserved in the capacity of
+         * the store.
+         *
+         * @param size size of the record
+         * @return true if the segment was compacted, moving the records
+         */
+        private boolean ensureSpace(long size) {
+            if (top + size <= data.byteSize()) {
+                return false;
+            }
+            boolean compacted = false;
+            if (dead * 2 >= top) {
+                compact();
+                compacted = true;
+            }
+            if (top + size > data.byteSize()) {
+                long grown = data.byteSize();
+                while (grown < top + size) {
+                    grown *= 2;
+                }
+                Arena grownArena = Arena.ofShared();
+                MemorySegment grownData = grownArena.allocate(grown);
+                MemorySegment.copy(data, 0, grownData, 0, top);
+                dataArena.close();
+                dataArena = grownArena;
+                data = grownData;
+            }
+            return compacted;
+        }
+
+        /**
+         * Slide the live records to the beginning of the data segment, in order, and update their index slots. A
+         * record is live if the index slot of its key points to it.
+         */
+        private void compact() {
+            long read = 0;
+            long write = 0;
+            while (read < top) {
+                int keyLength = data.get(ValueLayout.JAVA_INT_UNALIGNED, read);
+                long size = recordSize(read + 1);
+                int hash = hash(data, read + RECORD_HEADER_SIZE, keyLength);
+                int slot = slotOf(read + 1, hash);
+                if (slot >= 0) {
+                    if (write != read) {
+                        MemorySegment.copy(data, read, data, write, size);
+                    }
+                    setSlot(slot, write + 1, hash);
+                    write += size;
+                }
+                read += size;
+            }
+            top = write;
+            dead = 0;
+        }
+
+        /**
+         * Rebuild the index with the provided number of slots, dropping the tombstones.
+         *
+         * @param newSlots number of slots, a power of two
+         */
+        private void resize(int newSlots) {
+            Arena oldArena = indexArena;
+            MemorySegment oldIndex = index;
+            int oldSlots = slots;
+            indexArena = Arena.ofShared();
+            index = indexArena.allocate((long) newSlots * SLOT_SIZE, 8);
+            slots = newSlots;
+            used = live;
+            for (int slot = 0; slot < oldSlots; slot++) {
+                long reference = oldIndex.get(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE);
+                if (reference > 0) {
+                    int hash = (int) oldIndex.get(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE + 8);
+                    int target = hash & (slots - 1);
+                    while (reference(target) != EMPTY) {
+                        target = (target + 1) & (slots - 1);
+                    }
+                    setSlot(target, reference, hash);
+                }
+            }
+            oldArena.close();
+        }
+
+        /**
+         * Find the index slot of a key by probing from the slot of its hash until an empty slot.
+         *
+         * @param key  key bytes
+         * @param hash hash of the key
+         * @return the slot pointing to the record of the key, or -1 if the key does not exist
+         */
+        private int find(byte[] key, int hash) {
+            int slot = hash & (slots - 1);
+            long reference;
+            while ((reference = reference(slot)) != EMPTY) {
+                if (reference > 0 && slotHash(slot) == hash) {
+                    long offset = reference - 1;
+                    if (data.get(ValueLayout.JAVA_INT_UNALIGNED, offset) == key.length
+                            && MemorySegment.mismatch(data, offset + RECORD_HEADER_SIZE,
+                            offset + RECORD_HEADER_SIZE + key.length, MemorySegment.ofArray(key), 0, key.length) < 0) {
+                        return slot;
+                    }
+                }
+                slot = (slot + 1) & (slots - 1);
+            }
+            return -1;
+        }
+
+        /**
+         * Find the index slot pointing to a record, comparing references only.
+         *
+         * @param reference record offset plus one
+         * @param hash      hash of the key of the record
+         * @return the slot, or -1 if no slot points to the record
+         */
+        private int slotOf(long reference, int hash) {
+            int slot = hash & (slots - 1);
+            long current;
+            while ((current = reference(slot)) != EMPTY) {
+                if (current == reference) {
+                    return slot;
+                }
+                slot = (slot + 1) & (slots - 1);
+            }
+            return -1;
+        }
+
+        /**
+         * Find the first empty or deleted slot to insert a new key.
+         *
+         * @param hash hash of the key
+         * @return the slot
+         */
+        private int insertionSlot(int hash) {
+            int slot = hash & (slots - 1);
+            while (reference(slot) > 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            return slot;
+        }
+
+        private long reference(int slot) {
+            return index.get(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE);
+        }
+
+        private int slotHash(int slot) {
+            return (int) index.get(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE + 8);
+        }
+
+        private void setSlot(int slot, long reference, int hash) {
+            index.set(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE, reference);
+            index.set(ValueLayout.JAVA_LONG, (long) slot * SLOT_SIZE + 8, hash);
+        }
+
+        private long recordSize(long reference) {
+            long offset = reference - 1;
+            return RECORD_HEADER_SIZE + data.get(ValueLayout.JAVA_INT_UNALIGNED, offset)
+                    + data.get(ValueLayout.JAVA_INT_UNALIGNED, offset + 4);
+        }
+
+        private byte[] value(long offset) {
+            int keyLength = data.get(ValueLayout.JAVA_INT_UNALIGNED, offset);
+            int valueLength = data.get(ValueLayout.JAVA_INT_UNALIGNED, offset + 4);
+            byte[] value = new byte[valueLength];
+            MemorySegment.copy(data, ValueLayout.JAVA_BYTE, offset + RECORD_HEADER_SIZE + keyLength, value, 0,
+                    valueLength);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a thread-safe key-value store keeping its keys in order, using ConcurrentSkipListMap. Besides PUT,
+ * GET, and DELETE, it supports range scans and prefix queries, which walk the keys of the range in order without
+ * visiting the rest of the store.
+ * Reads and scans never take a lock, and writes only update the nodes next to the written key. A scan sees a weakly
+ * consistent view: the entries written during the scan may or may not be seen.
+ */
+public class OrderedKVStore implements KVStore {
+    private final ConcurrentSkipListMap<String, String> store = new ConcurrentSkipListMap<>();
+    // The size of a skip list is a walk over all its nodes, so the entries are counted as they are added and removed
+    private final LongAdder count = new LongAdder();
+
+    @Override
+    public void put(String key, String value) {
+        if (store.put(key, value) == null) {
+            count.increment();
+        }
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String delete(String key) {
+        String value = store.remove(key);
+        if (value != null) {
+            count.decrement();
+        }
+        return value;
+    }
+
+    /**
+     * Replace the value of the key with a function of its current value, retrying without a lock when another write to
+     * the key happened meanwhile.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        while (true) {
+            String current = store.get(key);
+            String next = function.apply(current);
+            if (next == null) {
+                return current;
+            }
+            if (current == null ? store.putIfAbsent(key, next) == null : store.replace(key, current, next)) {
+                if (current == null) {
+                    count.increment();
+                }
+                return next;
+            }
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    /**
+     * Walk the entries of the range in increasing order of their keys, stopping at the limit.
+     *
+     * @param start  first key of the range, inclusive
+     * @param end    last key of the range, exclusive, or null for no upper bound
+     * @param limit  maximum number of entries to visit
+     * @param action action to perform on each key and value
+     * @return the number of entries visited
+     */
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        if (end != null && start.compareTo(end) >= 0) {
+            return 0;
+        }
+        ConcurrentNavigableMap<String, String> range = end == null ? store.tailMap(start, true)
+                : store.subMap(start, true, end, false);
+        int visited = 0;
+        for (Map.Entry<String, String> entry : range.entrySet()) {
+            if (visited == limit) {
+                break;
+            }
+            action.accept(entry.getKey(), entry.getValue());
+            visited++;
+        }
+        return visited;
+    }
+
+    @Override
+    public long size() {
+        return Math.max(count.sum(), 0);
+    }
+}
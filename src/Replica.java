@@ -0,0 +1,205 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class keeps the store of a replica up to date with its primary, on a background thread. It connects to the
+ * ReplicationServer of the primary with the id and offset of the stream it has applied so far, restores a snapshot if
+ * the primary asks it to, then applies the streamed PUT and DELETE operations in order.
+ * When the connection is lost, the replica reconnects after a delay and continues from its offset, which only needs
+ * a new snapshot if the primary no longer has the operations following it, or was restarted.
+ */
+public class Replica {
+    private final static long RETRY_MS = 1000;
+    private final String primary;
+    private final KVStore store;
+    private volatile long id;
+    private volatile long offset;
+
+    /**
+     * Constructor for a replica.
+     *
+     * @param primary address of the replication port of the primary, in the form host:port
+     * @param store   store of the replica, receiving the writes of the primary
+     */
+    public Replica(String primary, KVStore store) {
+        this.primary = primary;
+        this.store = store;
+    }
+
+    /**
+     * Follow the primary on a background thread until the process exits.
+     */
+    public void start() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                try {
+                    follow();
+                } catch (EOFException e) {
+                    log(Log.Level.WARN, "Lost primary " + primary + ": connection closed");
+                } catch (IOException e) {
+                    log(Log.Level.WARN, "Lost primary " + primary + ": " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "replica");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Get the offset of the replica in the stream of the primary.
+     *
+     * @return the sequence number of the last applied operation
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * Helper method to connect to the primary and apply its stream until the connection is lost.
+     *
+     * @throws IOException when the connection failed or the stream is corrupt
+     */
+    private void follow() throws IOException {
+        try (Socket socket = new Socket(HashRing.host(primary), HashRing.parsePort(primary))) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(id);
+            out.writeLong(offset);
+            out.flush();
+            byte mode = in.readByte();
+            long streamId = in.readLong();
+            if (mode == ReplicationServer.SNAPSHOT) {
+                restore(in);
+            } else if (mode != ReplicationServer.CONTINUE) {
+                throw new IOException("Invalid replication mode " + mode);
+            }
+            id = streamId;
+            log("Following primary " + primary + " from operation " + offset);
+            byte[] frame = new byte[1024];
+            while (true) {
+                int length = in.readInt();
+                if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Invalid replication frame length " + length);
+                }
+                if (frame.length < length) {
+                    frame = new byte[Math.max(frame.length * 2, length)];
+                }
+                in.readFully(frame, 0, length);
+                apply(ByteBuffer.wrap(frame, 0, length));
+            }
+        }
+    }
+
+    /**
+     * Helper method to replace the content of the store with a snapshot sent by the primary.
+     *
+     * @param in stream of the primary, positioned at the size of the snapshot
+     * @throws IOException when failed to receive or restore the snapshot
+     */
+    private void restore(DataInputStream in) throws IOException {
+        long size = in.readLong();
+        Path file = Files.createTempFile("replica", ".snapshot");
+        try {
+            try (OutputStream snapshot = Files.newOutputStream(file)) {
+                byte[] buffer = new byte[64 * 1024];
+                for (long left = size; left > 0; ) {
+                    int read = in.read(buffer, 0, (int) Math.min(buffer.length, left));
+                    if (read < 0) {
+                        throw new IOException("Primary closed the connection during the snapshot");
+                    }
+                    snapshot.write(buffer, 0, read);
+                    left -= read;
+                }
+            }
+            // Keys deleted on the primary since the last sync must not survive the snapshot. Until the snapshot is
+            // restored, the store no longer matches any offset of the stream
+            id = 0;
+            offset = 0;
+            List<String> keys = new ArrayList<>();
+            store.forEach((key, value) -> keys.add(key));
+            store.deleteAll(keys.toArray(new String[0]));
+            long start = System.currentTimeMillis();
+            offset = Snapshot.restore(file, store);
+            log("Restored snapshot of primary " + primary + " up to operation " + offset + " in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Helper method to apply an operation of the stream to the store.
+     *
+     * @param operation binary PUT or DELETE request, whose request id is its sequence number, followed by the expiry
+     *                  time of a PUT with a time to live
+     * @throws IOException if the operation is not the next one of the stream
+     */
+    private void apply(ByteBuffer operation) throws IOException {
+        byte opcode;
+        long sequence;
+        String key;
+        String value = null;
+        long expiresAt = 0;
+        try {
+            opcode = operation.get();
+            sequence = BinaryProtocol.readVarint(operation);
+            key = BinaryProtocol.readString(operation);
+            if (opcode == BinaryProtocol.PUT) {
+                value = BinaryProtocol.readString(operation);
+                expiresAt = operation.hasRemaining() ? BinaryProtocol.readVarint(operation) : 0;
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt replication frame", e);
+        }
+        if (sequence != offset + 1) {
+            throw new IOException("Expected operation " + (offset + 1) + " but received " + sequence);
+        }
+        try {
+            if (value != null) {
+                // An entry that expired in transit is removed, like on the primary
+                Snapshot.put(store, key, value, expiresAt);
+            } else {
+                store.delete(key);
+            }
+        } catch (IllegalStateException e) {
+            // The primary accepted a write this store cannot hold, such as a smaller capacity
+            log(Log.Level.WARN, "Operation " + sequence + " rejected: " + e.getMessage());
+        }
+        offset = sequence;
+    }
+
+    /**
+     * Helper method to log a message of the replica.
+     *
+     * @param message message to be logged
+     */
+    private static void log(String message) {
+        Utils.log("Replica", message);
+    }
+
+    /**
+     * Helper method to log a message of the replica at the provided level.
+     *
+     * @param level   level of the message
+     * @param message message to be logged
+     */
+    private static void log(Log.Level level, String message) {
+        Utils.log(level, "Replica", message);
+    }
+}
@@ -0,0 +1,231 @@
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents the key-value store of a primary, recording every PUT and DELETE in a ReplicationLog once it is
+ * applied, for the replicas to stream. Reads are served by the wrapped store and are not recorded. A PUT with a time
+ * to live is recorded with its absolute expiry time, and an update with the expiry time the key kept.
+ * Writes to the same key apply to the store and append to the log under the same lock stripe, so that the replicas
+ * apply the writes of each key in the order of the primary. A batch locks the stripes of all its keys, in a fixed
+ * order, so that it still reaches the wrapped store as a single batch.
+ */
+public class ReplicatedKVStore implements KVStore {
+    private final static int STRIPES = 256;
+    private final KVStore store;
+    private final ReplicationLog log;
+    private final ReentrantLock[] locks = new ReentrantLock[STRIPES];
+
+    /**
+     * Constructor for a replicated key-value store.
+     *
+     * @param store store serving the operations
+     * @param log   replication log recording the writes
+     */
+    public ReplicatedKVStore(KVStore store, ReplicationLog log) {
+        this.store = store;
+        this.log = log;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    @Override
+    public void put(String key, String value) {
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            store.put(key, value);
+            log.append(BinaryProtocol.PUT, key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        if (ttlSeconds <= 0) {
+            put(key, value);
+            return;
+        }
+        long expiresAt = System.currentTimeMillis() + ttlSeconds * 1000;
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            store.put(key, value, ttlSeconds);
+            log.append(BinaryProtocol.PUT, key, value, expiresAt);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long expiresAt(String key) {
+        return store.expiresAt(key);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String delete(String key) {
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            String value = store.delete(key);
+            log.append(BinaryProtocol.DELETE, key, null);
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply the update to the wrapped store under the lock stripe of the key, which every write to the key holds, then
+     * record the new value as a PUT with the expiry time the key kept.
+     *
+     * @param key      key of the entry
+     * @param function function of the current value, returning the new value, or null to leave the key unchanged
+     * @return the value of the key after the update, or null if the key does not exist
+     */
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        ReentrantLock lock = locks[stripe(key)];
+        lock.lock();
+        try {
+            // The engine may call the function again when it retries, only its last result is applied
+            String[] next = new String[1];
+            String value = store.update(key, current -> next[0] = function.apply(current));
+            if (next[0] != null) {
+                log.append(BinaryProtocol.PUT, key, value, store.expiresAt(key));
+            }
+            return value;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Apply the batch to the wrapped store, then record each of its entries.
+     *
+     * @param keys   keys of the entries
+     * @param values values of the entries, in the order of the keys
+     */
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        int[] stripes = lockAll(keys);
+        try {
+            store.putAll(keys, values);
+            for (int i = 0; i < keys.length; i++) {
+                log.append(BinaryProtocol.PUT, keys[i], values[i]);
+            }
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        return store.getAll(keys);
+    }
+
+    /**
+     * Remove the keys of the batch from the wrapped store, then record the removal of each of them.
+     *
+     * @param keys keys of the entries
+     * @return the number of keys that existed and were removed
+     */
+    @Override
+    public int deleteAll(String[] keys) {
+        int[] stripes = lockAll(keys);
+        try {
+            int deleted = store.deleteAll(keys);
+            for (String key : keys) {
+                log.append(BinaryProtocol.DELETE, key, null);
+            }
+            return deleted;
+        } finally {
+            unlockAll(stripes);
+        }
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        return store.scan(start, end, limit, action);
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return store.memoryUsage();
+    }
+
+    /**
+     * Wait for the writes recorded up to now to be applied to the store. A snapshot started afterwards contains every
+     * write up to the current sequence number of the log.
+     *
+     * @return the sequence number of the last write applied to the store
+     */
+    public long quiesce() {
+        long sequence = log.getSequence();
+        for (ReentrantLock lock : locks) {
+            // The writer of the stripe, if any, has appended its operation once it releases the lock
+            lock.lock();
+            lock.unlock();
+        }
+        return sequence;
+    }
+
+    /**
+     * Helper method to find the lock stripe of a key.
+     *
+     * @param key key of the operation
+     * @return the index of the lock guarding the key
+     */
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Helper method to lock the stripes of the keys of a batch, in increasing order so that two batches never wait for
+     * each other.
+     *
+     * @param keys keys of the batch
+     * @return the locked stripes
+     */
+    private int[] lockAll(String[] keys) {
+        int[] stripes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            stripes[i] = stripe(keys[i]);
+        }
+        stripes = Arrays.stream(stripes).sorted().distinct().toArray();
+        for (int stripe : stripes) {
+            locks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Helper method to unlock the stripes locked by lockAll().
+     *
+     * @param stripes locked stripes
+     */
+    private void unlockAll(int[] stripes) {
+        for (int stripe : stripes) {
+            locks[stripe].unlock();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * This class keeps the most recent PUT and DELETE operations of a primary in memory, in the order they were applied,
+ * for the replicas to stream. Every operation gets the next sequence number, its offset in the stream, and is stored
+ * already encoded as a binary request whose request id is its sequence number, so that it is encoded once however many
+ * replicas read it. A PUT with a time to live is followed by the varint expiry time of the entry, in milliseconds since
+ * the epoch, so that the replicas expire it at the same time as the primary.
+ * The log is a ring buffer of a fixed number of operations. A replica whose offset is still in the buffer continues
+ * the stream from it, and a replica too far behind, or following another primary, needs a snapshot first. The id of
+ * the log tells the streams of two primaries, or of two runs of the same primary, apart.
+ */
+public class ReplicationLog {
+    private final long id = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+    private final ByteBuffer[] operations;
+    private long sequence; // sequence number of the last operation
+    private int waiting; // number of readers waiting for the next operation
+
+    /**
+     * Constructor for a replication log.
+     *
+     * @param capacity number of recent operations kept for the replicas
+     */
+    public ReplicationLog(int capacity) {
+        operations = new ByteBuffer[capacity];
+    }
+
+    /**
+     * Append an operation to the log, and wake up the readers waiting for it.
+     *
+     * @param opcode BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key    key of the operation
+     * @param value  value of a PUT, null for a DELETE
+     * @return the sequence number of the operation
+     */
+    public synchronized long append(byte opcode, String key, String value) {
+        return append(opcode, key, value, 0);
+    }
+
+    /**
+     * Append an operation to the log, with the expiry time of a PUT, and wake up the readers waiting for it.
+     *
+     * @param opcode    BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key       key of the operation
+     * @param value     value of a PUT, null for a DELETE
+     * @param expiresAt expiry time of a PUT in milliseconds since the epoch, 0 for no expiry
+     * @return the sequence number of the operation
+     */
+    public synchronized long append(byte opcode, String key, String value, long expiresAt) {
+        sequence++;
+        ByteBuffer operation = BinaryProtocol.request(opcode, sequence, key, value);
+        if (expiresAt > 0) {
+            operation = ByteBuffer.allocate(operation.remaining() + BinaryProtocol.varintSize(expiresAt))
+                    .put(operation);
+            BinaryProtocol.writeVarint(operation, expiresAt);
+            operation.flip();
+        }
+        operations[(int) (sequence % operations.length)] = operation;
+        if (waiting > 0) {
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    /**
+     * Read the operations following an offset, waiting for one when there is none yet.
+     *
+     * @param offset    sequence number of the last operation the reader has
+     * @param max       maximum number of operations to read
+     * @param timeoutMs maximum time to wait for an operation
+     * @return the encoded operations, in order and possibly none, or null if the operations following the offset are
+     * no longer in the log
+     * @throws InterruptedException if the reader was interrupted while waiting
+     */
+    public synchronized List<ByteBuffer> read(long offset, int max, long timeoutMs) throws InterruptedException {
+        if (offset == sequence) {
+            waiting++;
+            try {
+                wait(timeoutMs);
+            } finally {
+                waiting--;
+            }
+        }
+        if (!contains(offset)) {
+            return null;
+        }
+        int count = (int) Math.min(max, sequence - offset);
+        List<ByteBuffer> read = new ArrayList<>(count);
+        for (long next = offset + 1; next <= offset + count; next++) {
+            read.add(operations[(int) (next % operations.length)].duplicate());
+        }
+        return read;
+    }
+
+    /**
+     * Check whether a reader can continue the stream from an offset.
+     *
+     * @param offset sequence number of the last operation the reader has
+     * @return true if every operation following the offset is still in the log
+     */
+    public synchronized boolean contains(long offset) {
+        return offset <= sequence && sequence - offset <= operations.length;
+    }
+
+    /**
+     * Get the sequence number of the last operation.
+     *
+     * @return the sequence number, 0 if no operation was appended
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get the id of the stream of this log.
+     *
+     * @return the id, a random positive number
+     */
+    public long getId() {
+        return id;
+    }
+}
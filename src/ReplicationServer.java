@@ -0,0 +1,159 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * This class streams the writes of a primary to its replicas, each replica being served by its own thread.
+ * A replica connects with the id of the stream it follows and its offset in it, both 8-byte numbers. If the primary
+ * still has the operations following the offset in its ReplicationLog, it answers CONTINUE and the id, then streams
+ * them. Otherwise it answers SNAPSHOT, the id, and the 8-byte size of a snapshot of the store followed by the snapshot
+ * itself, in the format of Snapshot, then streams the operations following the sequence number of the snapshot.
+ * Every operation is a 4-byte length followed by a binary PUT or DELETE request whose request id is its sequence
+ * number. Replication is asynchronous: writes are acknowledged to the clients without waiting for any replica.
+ */
+public class ReplicationServer {
+    public final static byte CONTINUE = 'C';
+    public final static byte SNAPSHOT = 'S';
+    private final static int BATCH_SIZE = 1024;
+    private final static long WAIT_MS = 1000;
+    private final ServerSocket serverSocket;
+    private final ReplicatedKVStore store;
+    private final ReplicationLog log;
+
+    /**
+     * Constructor for a replication server. Opens the port the replicas connect to.
+     *
+     * @param port  port number to listen for replicas on
+     * @param store store of the primary
+     * @param log   replication log of the store
+     * @throws IOException when failed to open the port
+     */
+    public ReplicationServer(int port, ReplicatedKVStore store, ReplicationLog log) throws IOException {
+        serverSocket = new ServerSocket(port);
+        this.store = store;
+        this.log = log;
+    }
+
+    /**
+     * Accept replicas on a background thread until the process exits.
+     */
+    public void start() {
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getRemoteSocketAddress());
+                    sender.setDaemon(true);
+                    sender.start();
+                } catch (IOException e) {
+                    log(Log.Level.WARN, "Error accepting replica: " + e.getMessage());
+                }
+            }
+        }, "replication");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log("Serving replicas on port: " + serverSocket.getLocalPort());
+    }
+
+    /**
+     * Helper method to stream the writes to a replica until it disconnects.
+     *
+     * @param socket connection of the replica
+     */
+    private void serve(Socket socket) {
+        String replica = socket.getRemoteSocketAddress().toString();
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            long id = in.readLong();
+            long offset = in.readLong();
+            if (id == log.getId() && log.contains(offset)) {
+                log("Replica " + replica + " continues from operation " + offset);
+                out.writeByte(CONTINUE);
+                out.writeLong(log.getId());
+            } else {
+                offset = sendSnapshot(out);
+                log("Replica " + replica + " restores a snapshot up to operation " + offset);
+            }
+            out.flush();
+            while (true) {
+                List<ByteBuffer> operations = log.read(offset, BATCH_SIZE, WAIT_MS);
+                if (operations == null) {
+                    log(Log.Level.WARN, "Replica " + replica + " fell behind the replication log, disconnecting it");
+                    return;
+                }
+                for (ByteBuffer operation : operations) {
+                    out.writeInt(operation.remaining());
+                    out.write(operation.array(), operation.arrayOffset() + operation.position(), operation.remaining());
+                }
+                // Operations read together are sent together
+                out.flush();
+                offset += operations.size();
+            }
+        } catch (IOException e) {
+            log("Replica " + replica + " disconnected");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Helper method to send a snapshot of the store to a replica, written to a temporary file first so that its size
+     * is known.
+     *
+     * @param out stream of the replica
+     * @return the sequence number of the last operation contained in the snapshot
+     * @throws IOException when failed to write or send the snapshot
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        Path file = Files.createTempFile("replication", ".snapshot");
+        try {
+            long sequence = store.quiesce();
+            Snapshot.write(store, sequence, file);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                out.writeByte(SNAPSHOT);
+                out.writeLong(log.getId());
+                out.writeLong(channel.size());
+                out.flush();
+                long sent = 0;
+                while (sent < channel.size()) {
+                    sent += channel.transferTo(sent, channel.size() - sent, Channels.newChannel(out));
+                }
+            }
+            return sequence;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Helper method to log a message of the replication.
+     *
+     * @param message message to be logged
+     */
+    private static void log(String message) {
+        Utils.log("Replication", message);
+    }
+
+    /**
+     * Helper method to log a message of the replication at the provided level.
+     *
+     * @param level   level of the message
+     * @param message message to be logged
+     */
+    private static void log(Log.Level level, String message) {
+        Utils.log(level, "Replication", message);
+    }
+}
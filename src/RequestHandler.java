@@ -0,0 +1,44 @@
+import java.nio.ByteBuffer;
+
+/**
+ * This interface defines how a communication server hands a received request over to the application logic. The
+ * handler is shared by every connection of a server, so implementations must be safe to call from multiple threads.
+ */
+public interface RequestHandler {
+
+    /**
+     * Process a single text request received from a client.
+     *
+     * @param request    the request message received from the client
+     * @param connection the connection the request was received on, used for logging
+     * @return the response message to be sent back to the client
+     */
+    String handle(String request, ServerConnection connection);
+
+    /**
+     * Process a single binary request received from a client, as defined by BinaryProtocol.
+     *
+     * @param request    the request message, from its position to its limit. Only valid until the method returns
+     * @param connection the connection the request was received on, used for logging
+     * @return the response message to be sent back to the client, from its position to its limit
+     */
+    ByteBuffer handleBinary(ByteBuffer request, ServerConnection connection);
+
+    /**
+     * Notify the handler that a client connected. Connectionless transports do not call it.
+     *
+     * @param connection the new connection
+     */
+    default void connectionOpened(ServerConnection connection) {
+        // Nothing to track by default
+    }
+
+    /**
+     * Notify the handler that a client connection was closed.
+     *
+     * @param connection the closed connection
+     */
+    default void connectionClosed(ServerConnection connection) {
+        // Nothing to track by default
+    }
+}
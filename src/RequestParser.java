@@ -0,0 +1,364 @@
+import java.util.Arrays;
+
+/**
+ * This class parses text requests of the form "id:n COMMAND key [value]" in a single pass over the request. A PUT may
+ * end with "EX seconds" to give the entry a time to live. The batch commands MPUT, MGET, and MDELETE take any number of
+ * key-value pairs or keys. STATS and PING take no argument. "SCAN start end LIMIT n" and "PREFIX p LIMIT n" return at
+ * most n entries of a range of keys or of the keys starting with a prefix. The atomic updates "CAS key expected new",
+ * "INCR key [delta]", "DECR key [delta]", and "PUTIFABSENT key value" read and write a key as a single operation.
+ * "HOTKEYS [n]" returns the n keys read the most (10 by default), and "TRACK key" reads a key like GET while asking to
+ * be told when it is next written.
+ * Tokens are located by their start and end index instead of being split into new strings, and commands are
+ * recognized by a case-insensitive comparison in place, so only the key and value strings are allocated.
+ * A parser keeps its state between requests and is not thread-safe: each thread should reuse its own instance.
+ */
+public class RequestParser {
+    public final static int PUT = 1;
+    public final static int GET = 2;
+    public final static int DELETE = 3;
+    public final static int MPUT = 4;
+    public final static int MGET = 5;
+    public final static int MDELETE = 6;
+    public final static int STATS = 7;
+    public final static int PING = 8;
+    public final static int SCAN = 9;
+    public final static int PREFIX = 10;
+    public final static int CAS = 11;
+    public final static int INCR = 12;
+    public final static int DECR = 13;
+    public final static int PUTIFABSENT = 14;
+    public final static int HOTKEYS = 15;
+    public final static int TRACK = 16;
+    private final static String USAGE = "Usage: PUT key value | GET key | DELETE key"
+            + " | MPUT key value [key value ...] | MGET key [key ...] | MDELETE key [key ...]"
+            + " | SCAN start end LIMIT n | PREFIX p LIMIT n | CAS key expected new | INCR key [delta]"
+            + " | DECR key [delta] | PUTIFABSENT key value | TRACK key | HOTKEYS [n] | STATS | PING";
+    private int[] starts = new int[8];
+    private int[] ends = new int[8];
+    private final StringBuilder response = new StringBuilder(64);
+    private String request;
+    private int tokens;
+    private int command;
+    private long ttlSeconds;
+    private int limit;
+    private long delta;
+    private String error;
+
+    /**
+     * Parse a text request, replacing the result of the previous request.
+     *
+     * @param request text request received from the client
+     * @return true if the request is valid, false otherwise, with the reason given by getError()
+     */
+    public boolean parse(String request) {
+        this.request = request;
+        tokenize();
+        command = 0;
+        ttlSeconds = 0;
+        limit = 0;
+        delta = 1;
+        error = null;
+        // Validate request conforms with defined protocol
+        if (tokens == 2 && tokenEquals(1, "STATS")) {
+            command = STATS;
+        } else if (tokens == 2 && tokenEquals(1, "PING")) {
+            command = PING;
+        } else if (tokens >= 2 && tokenEquals(1, "HOTKEYS")) {
+            command = HOTKEYS;
+            limit = tokens == 2 ? 10 : (int) Math.min(parsePositive(2), HotKeys.CANDIDATES);
+            if (tokens > 3 || limit <= 0) {
+                error = "Invalid request format. Usage: HOTKEYS [n]";
+            }
+        } else if (tokens < 3) {
+            error = "Invalid request format. " + USAGE;
+        } else if (tokenEquals(1, "PUT")) {
+            command = PUT;
+            if (tokens == 6 && tokenEquals(4, "EX")) {
+                ttlSeconds = parsePositive(5);
+            }
+            if (tokens != 4 && ttlSeconds <= 0) {
+                error = "Invalid request format. Usage: PUT key value [EX seconds]";
+            }
+        } else if (tokenEquals(1, "GET")) {
+            command = GET;
+            if (tokens != 3) {
+                error = "Invalid request format. Usage: GET key";
+            }
+        } else if (tokenEquals(1, "DELETE")) {
+            command = DELETE;
+            if (tokens != 3) {
+                error = "Invalid request format. Usage: DELETE key";
+            }
+        } else if (tokenEquals(1, "MPUT")) {
+            command = MPUT;
+            if (tokens % 2 != 0) {
+                error = "Invalid request format. Usage: MPUT key value [key value ...]";
+            }
+        } else if (tokenEquals(1, "MGET")) {
+            command = MGET;
+        } else if (tokenEquals(1, "MDELETE")) {
+            command = MDELETE;
+        } else if (tokenEquals(1, "SCAN")) {
+            command = SCAN;
+            if (tokens == 6 && tokenEquals(4, "LIMIT")) {
+                limit = (int) Math.min(parsePositive(5), Integer.MAX_VALUE);
+            }
+            if (limit <= 0) {
+                error = "Invalid request format. Usage: SCAN start end LIMIT n";
+            }
+        } else if (tokenEquals(1, "PREFIX")) {
+            command = PREFIX;
+            if (tokens == 5 && tokenEquals(3, "LIMIT")) {
+                limit = (int) Math.min(parsePositive(4), Integer.MAX_VALUE);
+            }
+            if (limit <= 0) {
+                error = "Invalid request format. Usage: PREFIX p LIMIT n";
+            }
+        } else if (tokenEquals(1, "CAS")) {
+            command = CAS;
+            if (tokens != 5) {
+                error = "Invalid request format. Usage: CAS key expected new";
+            }
+        } else if (tokenEquals(1, "INCR") || tokenEquals(1, "DECR")) {
+            command = tokenEquals(1, "INCR") ? INCR : DECR;
+            boolean valid = tokens == 3;
+            if (tokens == 4) {
+                try {
+                    delta = Long.parseLong(request, starts[3], ends[3], 10);
+                    valid = true;
+                } catch (NumberFormatException e) {
+                    // Not a number
+                }
+            }
+            if (!valid) {
+                error = "Invalid request format. Usage: " + (command == INCR ? "INCR" : "DECR") + " key [delta]";
+            }
+        } else if (tokenEquals(1, "PUTIFABSENT")) {
+            command = PUTIFABSENT;
+            if (tokens != 4) {
+                error = "Invalid request format. Usage: PUTIFABSENT key value";
+            }
+        } else if (tokenEquals(1, "TRACK")) {
+            command = TRACK;
+            if (tokens != 3) {
+                error = "Invalid request format. Usage: TRACK key";
+            }
+        } else {
+            error = "Invalid command. " + USAGE;
+        }
+        return error == null;
+    }
+
+    /**
+     * Get the command of the last parsed request.
+     *
+     * @return one of the 16 command constants of this class, such as PUT, MGET, SCAN, INCR, or TRACK
+     */
+    public int getCommand() {
+        return command;
+    }
+
+    /**
+     * Get the time to live of the last parsed request.
+     *
+     * @return the time to live in seconds of a PUT with EX, 0 otherwise
+     */
+    public long getTtlSeconds() {
+        return ttlSeconds;
+    }
+
+    /**
+     * Get the maximum number of entries of the last parsed request.
+     *
+     * @return the limit of a SCAN, PREFIX, or HOTKEYS, 0 otherwise
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Get the amount of the last parsed INCR or DECR request.
+     *
+     * @return the delta given by the request, 1 if it has none
+     */
+    public long getDelta() {
+        return delta;
+    }
+
+    /**
+     * Get the reason the last parsed request is not valid.
+     *
+     * @return the error message, or null if the request is valid
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * Get the key of the last parsed request.
+     *
+     * @return the key, the start of the range of a SCAN, or the prefix of a PREFIX
+     */
+    public String getKey() {
+        return request.substring(starts[2], ends[2]);
+    }
+
+    /**
+     * Check whether the last parsed request is a batch command.
+     *
+     * @return true for MPUT, MGET, and MDELETE
+     */
+    public boolean isBatch() {
+        return command >= MPUT && command <= MDELETE;
+    }
+
+    /**
+     * Check whether the last parsed request is an atomic update of a key.
+     *
+     * @return true for CAS, INCR, DECR, and PUTIFABSENT
+     */
+    public boolean isUpdate() {
+        return command >= CAS && command <= PUTIFABSENT;
+    }
+
+    /**
+     * Check whether the last parsed request is about keys.
+     *
+     * @return false for STATS, PING, and HOTKEYS, which concern the server itself, and for SCAN and PREFIX, which
+     * cover the keys held by the server whatever their owner
+     */
+    public boolean hasKeys() {
+        return command != STATS && command != PING && command != HOTKEYS && command != SCAN && command != PREFIX;
+    }
+
+    /**
+     * Get the keys of the last parsed batch request.
+     *
+     * @return the keys, in the order of the request
+     */
+    public String[] getKeys() {
+        int step = command == MPUT ? 2 : 1;
+        String[] keys = new String[(tokens - 2) / step];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = request.substring(starts[2 + i * step], ends[2 + i * step]);
+        }
+        return keys;
+    }
+
+    /**
+     * Get the values of the last parsed MPUT request.
+     *
+     * @return the values, in the order of the keys
+     */
+    public String[] getValues() {
+        String[] values = new String[(tokens - 2) / 2];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = request.substring(starts[3 + i * 2], ends[3 + i * 2]);
+        }
+        return values;
+    }
+
+    /**
+     * Get the value of the last parsed request.
+     *
+     * @return the value of a PUT or PUTIFABSENT request, the new value of a CAS request, null otherwise
+     */
+    public String getValue() {
+        if (command == CAS) {
+            return request.substring(starts[4], ends[4]);
+        }
+        return command == PUT || command == PUTIFABSENT ? request.substring(starts[3], ends[3]) : null;
+    }
+
+    /**
+     * Get the expected value of the last parsed CAS request.
+     *
+     * @return the value the key must hold for the CAS to succeed, or null if the request is not a CAS
+     */
+    public String getExpected() {
+        return command == CAS ? request.substring(starts[3], ends[3]) : null;
+    }
+
+    /**
+     * Get the end of the range of the last parsed SCAN request.
+     *
+     * @return the last key of the range, exclusive, or null if the request is not a SCAN
+     */
+    public String getEnd() {
+        return command == SCAN ? request.substring(starts[3], ends[3]) : null;
+    }
+
+    /**
+     * Start the response to the last parsed request. The returned builder is reused for every request and already
+     * contains the request id followed by a space.
+     *
+     * @return the builder of the response
+     */
+    public StringBuilder startResponse() {
+        response.setLength(0);
+        return response.append(request, 0, tokens > 0 ? ends[0] : 0).append(' ');
+    }
+
+    /**
+     * Helper method to find the tokens separated by single spaces, in the same way as String.split(" "): empty
+     * tokens in the middle are kept and trailing empty tokens are ignored. The token arrays only grow for requests
+     * with more tokens than any previous request.
+     */
+    private void tokenize() {
+        tokens = 0;
+        int count = 0;
+        int start = 0;
+        int length = request.length();
+        while (start <= length) {
+            int end = request.indexOf(' ', start);
+            if (end < 0) {
+                end = length;
+            }
+            if (count == starts.length) {
+                starts = Arrays.copyOf(starts, count * 2);
+                ends = Arrays.copyOf(ends, count * 2);
+            }
+            starts[count] = start;
+            ends[count] = end;
+            count++;
+            // Trailing empty tokens do not count
+            if (end > start) {
+                tokens = count;
+            }
+            start = end + 1;
+        }
+        if (tokens == 0 && length == 0) {
+            // An empty request has a single empty token, as with String.split
+            starts[0] = 0;
+            ends[0] = 0;
+            tokens = 1;
+        }
+    }
+
+    /**
+     * Helper method to parse a token as a positive number, such as a number of seconds, without creating a substring.
+     *
+     * @param index index of the token
+     * @return the number, or 0 if the token is not a positive number
+     */
+    private long parsePositive(int index) {
+        try {
+            long number = Long.parseLong(request, starts[index], ends[index], 10);
+            return Math.max(number, 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Helper method to compare a token with a command name, ignoring case, without copying the token.
+     *
+     * @param index index of the token
+     * @param name  command name in upper case
+     * @return true if the token is the command
+     */
+    private boolean tokenEquals(int index, String name) {
+        return ends[index] - starts[index] == name.length()
+                && request.regionMatches(true, starts[index], name, 0, name.length());
+    }
+}
@@ -1,5 +1,12 @@
 import java.io.IOException;
-import java.util.Arrays;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
 
 /**
  * This class contains the main code to run the server program, either over TCP or UDP.
@@ -7,34 +14,172 @@ import java.util.Arrays;
  * The server will continue to listen for client's requests until the user manually terminates it.
  * The server manages the key-value pairs using the KVStore class.
  * Once it receives requests from the client, it processes the request, queries data from the key-value store, then
- * sends the result back to the client.
+ * sends the result back to the client. MPUT, MGET, and MDELETE apply many keys in a single request and a single
+ * store operation. CAS, INCR, DECR, and PUTIFABSENT read and write a key atomically, so that concurrent clients do not
+ * lose each other's updates.
+ * Optionally, the TCP server can serve many clients at the same time with --threads=virtual (one virtual thread per
+ * connection) or --threads=n (a pool of n threads). By default, it serves one client at a time.
+ * The storage engine is selected with --engine=concurrent (default, lock-free reads), --engine=hashmap (a single
+ * lock around a HashMap), --engine=offheap (keys and values outside the heap, up to --offheap-capacity bytes), or
+ * --engine=cache (bounded by --max-entries or --max-bytes, evicting with --eviction=lru|tinylfu, and accepting
+ * PUT key value EX seconds), or --engine=ordered (keys kept in order, supporting SCAN start end LIMIT n and
+ * PREFIX p LIMIT n), or --engine=lsm (a log-structured store on disk in --lsm-dir, flushing its memtable to a sorted
+ * segment every --memtable-size bytes, for datasets larger than the memory).
+ * With --io=nio, the TCP server uses non-blocking channels served by --reactors=n event loops instead of one thread
+ * per connection.
+ * The UDP server receives and serves datagrams on --udp-workers=n threads, each reply going to the sender of its own
+ * request. Responses are packed into datagrams of up to --udp-mtu bytes, and larger responses are fragmented.
+ * Logging is written by a background thread, at the level given by --log-level (default info, debug to log every
+ * request), to the console or to the file given by --log-file.
+ * With --wal=path, every PUT and DELETE is recorded in a write-ahead log before it is acknowledged, and the log is
+ * replayed on startup. Writes arriving within --wal-window-ms milliseconds, or up to --wal-batch writes, share a single
+ * fsync. With --snapshot=path, a snapshot is also written every --snapshot-interval-s seconds and restored on startup,
+ * so that only the log records after it need to be replayed.
+ * The server counts the requests, latencies, errors, connections, and bytes of every command. The STATS command
+ * returns them in the Prometheus text format, and --metrics-port=n also serves them over HTTP for scrapers.
+ * With --cluster=file, the server is one node of a cluster listed in the file, identified by --node=host:port
+ * (default localhost and its port). Keys are partitioned with a HashRing, and a request for a key owned by another node
+ * is answered with "MOVED host:port" so that the client can send it to its owner.
+ * With --replication-port=n, the server is a primary streaming its writes to the replicas connecting to that port,
+ * keeping the last --replication-backlog=n writes for replicas reconnecting. With --replica-of=host:port, the server is
+ * a read-only replica of the primary replicating on that address, restoring a snapshot of it when it is too far behind.
+ * Values of at least --compress-threshold=n characters (default 1024) are compressed: with --compress=transport
+ * (default), in the binary responses of the requests accepting it, with --compress=storage, in the store, keeping the
+ * last --compress-cache=n values read decompressed, with --compress=both, in both, and with --compress=off, nowhere.
+ * Binary PUT and MPUT requests may send compressed values whatever the setting.
+ * A sample of the GET requests is counted by HotKeys, and HOTKEYS n returns the n keys read the most with their
+ * estimated number of reads. TRACK key reads a key like GET and registers the connection with the TrackingKVStore,
+ * which pushes "id:0 INVALIDATE key" to it on the next write of the key, so that clients can cache the hot keys safely.
  */
-public class Server {
+public class Server implements RequestHandler {
+    private final static String USAGE = "Usage: java Server <port> <protocol> [--threads=single|virtual|<n>]"
+            + " [--engine=concurrent|hashmap|offheap|cache|ordered|lsm] [--offheap-capacity=<bytes>[k|m|g]]"
+            + " [--lsm-dir=<path>] [--memtable-size=<bytes>[k|m|g]]"
+            + " [--eviction=lru|tinylfu] [--max-entries=<n>] [--max-bytes=<bytes>[k|m|g]]"
+            + " [--io=blocking|nio] [--reactors=<n>] [--udp-workers=<n>] [--udp-mtu=<bytes>]"
+            + " [--log-level=debug|info|warn|error|off] [--log-file=<path>]"
+            + " [--wal=<path>] [--wal-window-ms=<n>] [--wal-batch=<n>]"
+            + " [--snapshot=<path>] [--snapshot-interval-s=<n>] [--metrics-port=<n>]"
+            + " [--cluster=<path>] [--node=<host:port>] [--replication-port=<n>] [--replication-backlog=<n>]"
+            + " [--replica-of=<host:port>] [--compress=off|transport|storage|both] [--compress-threshold=<n>]"
+            + " [--compress-cache=<n>]";
+    private final static int CHUNK_SIZE = 16 * 1024;
+    private final static String READ_ONLY = "Read-only replica. Writes must be sent to the primary.";
+    private final static String TOO_LARGE = "Value too large for the text protocol";
     private static String serviceName = Server.class.getSimpleName();
-    private final KVStore store = new KVStore();
+    private KVStore store;
+    private TrackingKVStore tracking;
+    private final HotKeys hotKeys = new HotKeys();
+    private final ThreadLocal<RequestParser> parsers = ThreadLocal.withInitial(RequestParser::new);
     private CommunicationServer server;
+    private final Metrics metrics;
+    private HashRing ring; // null unless the server is a node of a cluster
+    private String node;
+    private String primary; // null unless the server is a replica
+    private int compressThreshold; // 0 unless binary responses are compressed for the requests accepting it
 
     /**
      * Constructor for the server program. Instantiate a TCP or UDP server based on the input.
      * @param port port number to listen on
      * @param protocol protocol type for the communication
+     * @param options optional settings of the server
      */
-    public Server(int port, String protocol) {
+    public Server(int port, String protocol, Map<String, String> options) {
+        store = createStore(options);
+        int threshold = positiveOption(options, "compress-threshold", 1024);
+        String compress = options.getOrDefault("compress", "transport").toLowerCase();
+        if (!compress.matches("off|transport|storage|both")) {
+            throw new IllegalArgumentException("Compress must be one of off, transport, storage, both.");
+        }
+        if (compress.equals("storage") || compress.equals("both")) {
+            store = new CompressedKVStore(store, threshold, positiveOption(options, "compress-cache", 1024));
+        }
+        if (compress.equals("transport") || compress.equals("both")) {
+            compressThreshold = threshold;
+        }
+        int walWindow = positiveOption(options, "wal-window-ms", 2);
+        int walBatch = positiveOption(options, "wal-batch", 512);
+        int snapshotInterval = positiveOption(options, "snapshot-interval-s", 300);
+        int mtu = positiveOption(options, "udp-mtu", UDPFraming.DEFAULT_MTU);
+        int metricsPort = positiveOption(options, "metrics-port", 0);
+        int replicationPort = positiveOption(options, "replication-port", 0);
+        int replicationBacklog = positiveOption(options, "replication-backlog", 100_000);
+        if (options.containsKey("replica-of")) {
+            primary = options.get("replica-of");
+            HashRing.parsePort(primary);
+        }
+        if (mtu < UDPFraming.MIN_MTU || mtu > UDPFraming.MAX_DATAGRAM_SIZE) {
+            throw new IllegalArgumentException("Option udp-mtu must be between " + UDPFraming.MIN_MTU + " and "
+                    + UDPFraming.MAX_DATAGRAM_SIZE + ".");
+        }
+        if (options.containsKey("snapshot") && !options.containsKey("wal")) {
+            throw new IllegalArgumentException("Option snapshot requires option wal.");
+        }
+        if (options.containsKey("wal") && options.getOrDefault("io", "blocking").equalsIgnoreCase("nio")) {
+            // A durable write waits for its fsync, which would stall every connection of the event loop serving it
+            throw new IllegalArgumentException("Option wal requires the blocking I/O model, not io=nio.");
+        }
+        if (options.containsKey("cluster")) {
+            try {
+                ring = HashRing.load(Path.of(options.get("cluster")));
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read cluster configuration " + options.get("cluster") + ".");
+            }
+            // A replica holds the keys of its primary
+            node = ring.primaryOf(options.getOrDefault("node", "localhost:" + port));
+            if (node == null) {
+                throw new IllegalArgumentException("Node " + options.getOrDefault("node", "localhost:" + port)
+                        + " is not in the cluster configuration.");
+            }
+        }
+        try {
+            Log.setLevel(Log.Level.valueOf(options.getOrDefault("log-level", "info").toUpperCase()));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Log level must be one of debug, info, warn, error, off.");
+        }
         try {
-            if (protocol.equals("TCP")) {
-                server = new TCPServer(port);
+            Log.start(options.get("log-file"));
+            if (options.containsKey("wal")) {
+                WriteAheadLog log = new WriteAheadLog(Path.of(options.get("wal")), walWindow, walBatch);
+                Path snapshot = options.containsKey("snapshot") ? Path.of(options.get("snapshot")) : null;
+                store = new DurableKVStore(store, log, snapshot, snapshotInterval);
+            }
+            if (replicationPort > 0) {
+                ReplicationLog replicationLog = new ReplicationLog(replicationBacklog);
+                ReplicatedKVStore replicated = new ReplicatedKVStore(store, replicationLog);
+                store = replicated;
+                new ReplicationServer(replicationPort, replicated, replicationLog).start();
+            }
+            // Outermost, so that the writes of every source are seen after they are applied
+            tracking = new TrackingKVStore(store);
+            store = tracking;
+            if (primary != null) {
+                new Replica(primary, store).start();
+            }
+            if (protocol.equals("TCP") && options.getOrDefault("io", "blocking").equalsIgnoreCase("nio")) {
+                server = new NIOServer(port, positiveOption(options, "reactors", 1));
+            } else if (protocol.equals("TCP")) {
+                server = new TCPServer(port, createExecutor(options.getOrDefault("threads", "single")));
             } else if (protocol.equals("UDP")) {
-                server = new UDPServer(port);
+                server = new UDPServer(port, positiveOption(options, "udp-workers", 1), mtu);
             }
         } catch (IOException e) {
-            Utils.log(serviceName, "Error starting server.");
+            Utils.log(Log.Level.ERROR, serviceName, "Error starting server.");
+        }
+        metrics = new Metrics(store);
+        if (metricsPort > 0) {
+            try {
+                metrics.serve(metricsPort);
+            } catch (IOException e) {
+                Utils.log(Log.Level.ERROR, serviceName, "Error serving metrics on port " + metricsPort + ".");
+            }
         }
     }
 
     public static void main(String[] args) {
         // Validate command line arguments
-        if (args.length != 2) {
-            Utils.log(serviceName, "Usage: java Server <port> <protocol>");
+        if (args.length < 2) {
+            Utils.log(serviceName, USAGE);
             System.exit(1);
             return;
         }
@@ -54,7 +199,14 @@ public class Server {
         serviceName = protocol + " " + serviceName;
 
         // Start the service
-        Server service = new Server(port, protocol);
+        Server service;
+        try {
+            service = new Server(port, protocol, Utils.parseOptions(args, 2));
+        } catch (IllegalArgumentException e) {
+            Utils.log(serviceName, e.getMessage());
+            System.exit(1);
+            return;
+        }
         service.run();
     }
 
@@ -65,92 +217,599 @@ public class Server {
         // Listening for client request until manually stopped
         while (true) {
             try {
-                server.start();
-                String data;
-                // Continue listen for client requests
-                while ((data = server.receive()) != null) {
-                    server.log("Received data from " + server.getConnectionAddress() + "\n" + data);
-                    // Process client request
-                    String response;
-                    String requestId = data.split(" ")[0];
-                    try {
-                        String[] tokens = transformRequest(data);
-                        String command = tokens[0];
-                        String key = tokens[1];
-                        String value = tokens[2];
-                        response = processRequest(command, key, value);
-                    } catch (IllegalArgumentException e) {
-                        // Send back error message if request is malformed
-                        server.log("Received malformed request of length " + data.length() + " from " + server.getConnectionAddress());
-                        response = e.getMessage();
-                    }
-                    // Send back response to client
-                    response = requestId + " " + response;
-                    server.send(response);
-                    server.log("Sent data to " + server.getConnectionAddress() + "\n" + response);
-                }
+                server.serve(this);
             } catch (IOException e) {
                 server.log("Client disconnected");
+            } catch (RuntimeException e) {
+                // The connection was closed, keep serving the next clients
+                server.log(Log.Level.WARN, "Error serving client: " + e);
+            }
+        }
+    }
+
+    /**
+     * Process a single request from a client and build the response to send back. This method may be called by several
+     * connections at the same time.
+     * @param data request message received from the client
+     * @param connection connection the request was received on
+     * @return response message to be sent to the client
+     */
+    @Override
+    public String handle(String data, ServerConnection connection) {
+        long start = System.nanoTime();
+        boolean failed = false;
+        boolean debug = Log.isEnabled(Log.Level.DEBUG);
+        if (debug) {
+            connection.log(Log.Level.DEBUG, "Received data from " + connection.getConnectionAddress() + "\n" + data);
+        }
+        // Process client request
+        RequestParser parser = parsers.get();
+        String result;
+        if (parser.parse(data)) {
+            try {
+                String owner = ring == null ? null : redirect(parser);
+                failed = readOnly(parser.getCommand());
+                result = failed ? READ_ONLY
+                        : owner != null ? "MOVED " + owner
+                        : parser.getCommand() == RequestParser.STATS ? metrics.format()
+                        : parser.getCommand() == RequestParser.PING ? "PONG"
+                        : parser.getCommand() == RequestParser.HOTKEYS ? processHotKeys(parser.getLimit())
+                        : parser.getCommand() == RequestParser.TRACK ? processTrack(parser.getKey(), connection)
+                        : parser.getCommand() == RequestParser.SCAN || parser.getCommand() == RequestParser.PREFIX
+                        ? processScan(parser, connection)
+                        : parser.isBatch() ? processBatch(parser)
+                        : parser.isUpdate() ? processUpdate(parser)
+                        : processRequest(parser.getCommand(), parser.getKey(), parser.getValue(),
+                        parser.getTtlSeconds());
+            } catch (UncheckedIOException e) {
+                // The operation could not be made durable, so it is not acknowledged
+                connection.log(Log.Level.ERROR, "Storage error: " + e.getCause().getMessage());
+                result = "Storage error";
+                failed = true;
+            } catch (IllegalStateException e) {
+                // The store cannot accept the operation, such as a full store
+                result = e.getMessage();
+                failed = true;
+            }
+        } else {
+            // Send back error message if request is malformed
+            if (Log.isEnabled(Log.Level.WARN)) {
+                connection.log(Log.Level.WARN, "Received malformed request of length " + data.length() + " from "
+                        + connection.getConnectionAddress());
+            }
+            result = parser.getError();
+            failed = true;
+        }
+        // Send back response to client, each character taking at most 3 bytes once encoded
+        String response = parser.startResponse().append(result).toString();
+        int maxLength = connection.getMaxMessageLength();
+        if (3L * response.length() > maxLength && Utils.encodedLength(response) > maxLength) {
+            response = parser.startResponse().append(TOO_LARGE).toString();
+            failed = true;
+        }
+        if (debug) {
+            connection.log(Log.Level.DEBUG, "Sent data to " + connection.getConnectionAddress() + "\n" + response);
+        }
+        metrics.record(failed ? Metrics.ERROR : parser.getCommand(), data.length(), response.length(),
+                System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Process a single binary request from a client and build the binary response to send back. The request is decoded
+     * directly from the buffer, without splitting or case conversion.
+     * @param request binary request received from the client
+     * @param connection connection the request was received on
+     * @return binary response to be sent to the client
+     */
+    @Override
+    public ByteBuffer handleBinary(ByteBuffer request, ServerConnection connection) {
+        long start = System.nanoTime();
+        int received = request.remaining();
+        byte opcode = received > 0 ? BinaryProtocol.opcode(request.get(request.position())) : Metrics.ERROR;
+        ByteBuffer response = processBinary(request, connection);
+        boolean failed = response.get(response.position()) == BinaryProtocol.STATUS_ERROR;
+        metrics.record(failed ? Metrics.ERROR : opcode, received, response.remaining(), System.nanoTime() - start);
+        return response;
+    }
+
+    /**
+     * Helper method to decode a binary request, apply it to the store, and build the binary response.
+     * @param request binary request received from the client
+     * @param connection connection the request was received on
+     * @return binary response to be sent to the client
+     */
+    private ByteBuffer processBinary(ByteBuffer request, ServerConnection connection) {
+        long id = 0;
+        try {
+            byte first = request.get();
+            byte opcode = BinaryProtocol.opcode(first);
+            boolean compressed = BinaryProtocol.isCompressed(first);
+            id = BinaryProtocol.readVarint(request);
+            if (readOnly(opcode)) {
+                return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, READ_ONLY);
+            }
+            if (BinaryProtocol.isBatch(opcode)) {
+                return processBinaryBatch(first, id, request, connection);
+            }
+            if (opcode == BinaryProtocol.STATS) {
+                return BinaryProtocol.response(BinaryProtocol.STATUS_OK, id, metrics.format());
+            }
+            String key = BinaryProtocol.readString(request);
+            String owner = ring == null ? null : redirect(key);
+            if (owner != null) {
+                return BinaryProtocol.response(BinaryProtocol.STATUS_MOVED, id, owner);
             }
+            if (Log.isEnabled(Log.Level.DEBUG)) {
+                connection.log(Log.Level.DEBUG, "Received binary request " + opcode + " for key " + key + " from "
+                        + connection.getConnectionAddress());
+            }
+            switch (opcode) {
+                case BinaryProtocol.PUT:
+                    store.put(key, compressed ? BinaryProtocol.readCompressedString(request)
+                            : BinaryProtocol.readString(request));
+                    return BinaryProtocol.response(BinaryProtocol.STATUS_OK, id, null);
+                case BinaryProtocol.GET:
+                    hotKeys.record(key);
+                    String value = store.get(key);
+                    if (value == null) {
+                        return BinaryProtocol.response(BinaryProtocol.STATUS_NOT_FOUND, id, null);
+                    }
+                    return compressed && compressThreshold > 0 && value.length() >= compressThreshold
+                            ? BinaryProtocol.compressedResponse(id, value)
+                            : BinaryProtocol.response(BinaryProtocol.STATUS_OK, id, value);
+                case BinaryProtocol.DELETE:
+                    return store.delete(key) == null
+                            ? BinaryProtocol.response(BinaryProtocol.STATUS_NOT_FOUND, id, null)
+                            : BinaryProtocol.response(BinaryProtocol.STATUS_OK, id, null);
+                default:
+                    return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, "Invalid opcode " + opcode);
+            }
+        } catch (UncheckedIOException e) {
+            connection.log(Log.Level.ERROR, "Storage error: " + e.getCause().getMessage());
+            return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, "Storage error");
+        } catch (IllegalStateException e) {
+            return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, e.getMessage());
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            if (Log.isEnabled(Log.Level.WARN)) {
+                connection.log(Log.Level.WARN, "Received malformed binary request of length " + request.limit()
+                        + " from " + connection.getConnectionAddress());
+            }
+            return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, "Malformed binary request");
+        } catch (RuntimeException e) {
+            // Fail the request rather than the thread serving the connection
+            connection.log(Log.Level.ERROR, "Error processing binary request from "
+                    + connection.getConnectionAddress() + ": " + e);
+            return BinaryProtocol.response(BinaryProtocol.STATUS_ERROR, id, "Internal error");
         }
     }
 
     /**
-     * Helper method to extract the commands from client requests for working with the key-value store.
-     * @param request message sent from the client to be processed
-     * @return an array of commands following the protocol to communicate with the key-value store
-     * @throws IllegalArgumentException if the request is malformed
+     * Count a new client connection in the metrics.
+     * @param connection the new connection
+     */
+    @Override
+    public void connectionOpened(ServerConnection connection) {
+        metrics.connectionOpened();
+    }
+
+    /**
+     * Count a closed client connection in the metrics.
+     * @param connection the closed connection
      */
-    private String[] transformRequest(String request) throws IllegalArgumentException {
-        String[] tokens = request.split(" ");
-        // Validate request conforms with defined protocol
-        if (tokens.length < 3) {
-            throw new IllegalArgumentException("Invalid request format. Usage: PUT key value | GET key | DELETE key");
+    @Override
+    public void connectionClosed(ServerConnection connection) {
+        metrics.connectionClosed();
+    }
+
+    /**
+     * Helper method to check whether a request must be rejected because it writes to a replica.
+     * @param command RequestParser command or BinaryProtocol opcode of the request, which share their values
+     * @return true if the server is a replica and the request is a PUT, DELETE, MPUT, MDELETE, or an atomic update
+     */
+    private boolean readOnly(int command) {
+        return primary != null && (command == RequestParser.PUT || command == RequestParser.DELETE
+                || command == RequestParser.MPUT || command == RequestParser.MDELETE
+                || command >= RequestParser.CAS && command <= RequestParser.PUTIFABSENT);
+    }
+
+    /**
+     * Helper method to find where a parsed request must be sent when it reaches the wrong node of the cluster.
+     * @param parser parser holding a valid request
+     * @return the address of the node owning a key of the request, or null if this node owns all its keys
+     */
+    private String redirect(RequestParser parser) {
+        if (!parser.hasKeys()) {
+            return null;
+        }
+        return parser.isBatch() ? redirect(parser.getKeys()) : redirect(parser.getKey());
+    }
+
+    /**
+     * Helper method to find the owner of a key when it is not this node.
+     * @param key key of the request
+     * @return the address of the node owning the key, or null if this node owns it
+     */
+    private String redirect(String key) {
+        String owner = ring.owner(key);
+        return owner.equals(node) ? null : owner;
+    }
+
+    /**
+     * Helper method to find the owner of the first key of a batch owned by another node. The client is expected to
+     * split its batches by owner, so a batch spanning several nodes is redirected as a whole.
+     * @param keys keys of the request
+     * @return the address of the node owning one of the keys, or null if this node owns them all
+     */
+    private String redirect(String[] keys) {
+        for (String key : keys) {
+            String owner = redirect(key);
+            if (owner != null) {
+                return owner;
+            }
         }
-        String command = tokens[1].toUpperCase();
-        switch (command) {
-            case "PUT":
-                if (tokens.length == 4) {
-                    return new String[]{command, tokens[2], tokens[3]};
+        return null;
+    }
+
+    /**
+     * Helper method to process a binary MPUT, MGET, or MDELETE request, whose keys are applied to the store in a single
+     * batch.
+     * @param first MPUT, MGET, or MDELETE, with the COMPRESSED flag if the request has compressed values or accepts
+     * them
+     * @param id request id
+     * @param request binary request, positioned after the request id
+     * @param connection connection the request was received on
+     * @return binary response to be sent to the client
+     */
+    private ByteBuffer processBinaryBatch(byte first, long id, ByteBuffer request, ServerConnection connection) {
+        byte opcode = BinaryProtocol.opcode(first);
+        String[][] batch = BinaryProtocol.readBatch(first, request);
+        String owner = ring == null ? null : redirect(batch[0]);
+        if (owner != null) {
+            return BinaryProtocol.response(BinaryProtocol.STATUS_MOVED, id, owner);
+        }
+        if (Log.isEnabled(Log.Level.DEBUG)) {
+            connection.log(Log.Level.DEBUG, "Received binary request " + opcode + " for " + batch[0].length
+                    + " keys from " + connection.getConnectionAddress());
+        }
+        switch (opcode) {
+            case BinaryProtocol.MPUT:
+                store.putAll(batch[0], batch[1]);
+                return BinaryProtocol.response(BinaryProtocol.STATUS_OK, id, null);
+            case BinaryProtocol.MGET:
+                return BinaryProtocol.batchResponse(id, store.getAll(batch[0]),
+                        BinaryProtocol.isCompressed(first) ? compressThreshold : 0);
+            default:
+                return BinaryProtocol.countResponse(id, store.deleteAll(batch[0]));
+        }
+    }
+
+    /**
+     * Helper method to read an optional positive number from the command line options.
+     * @param options optional settings of the server
+     * @param name name of the option
+     * @param defaultValue value used when the option is not provided
+     * @return the value of the option
+     * @throws IllegalArgumentException if the option is not a positive number
+     */
+    private static int positiveOption(Map<String, String> options, String name, int defaultValue)
+            throws IllegalArgumentException {
+        if (!options.containsKey(name)) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(options.get(name));
+            if (value > 0) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Option " + name + " must be a positive number.");
+    }
+
+    /**
+     * Helper method to create the storage engine of the key-value store.
+     * @param options optional settings of the server, with the name of the engine, either concurrent, hashmap,
+     *                offheap, cache, ordered, or lsm
+     * @return the key-value store
+     * @throws IllegalArgumentException if the engine or its settings are not valid
+     */
+    private static KVStore createStore(Map<String, String> options) throws IllegalArgumentException {
+        switch (options.getOrDefault("engine", "concurrent").toLowerCase()) {
+            case "concurrent":
+                return new ConcurrentKVStore();
+            case "hashmap":
+                return new HashMapKVStore();
+            case "offheap":
+                return new OffHeapKVStore(sizeOption(options, "offheap-capacity", 1L << 30));
+            case "ordered":
+                return new OrderedKVStore();
+            case "lsm":
+                if (!options.containsKey("lsm-dir")) {
+                    throw new IllegalArgumentException("Engine lsm requires option lsm-dir.");
                 }
-                throw new IllegalArgumentException("Invalid request format. Usage: PUT key value");
-            case "GET":
-                if (tokens.length == 3) {
-                    return new String[]{command, tokens[2], null};
+                try {
+                    return new LsmKVStore(Path.of(options.get("lsm-dir")),
+                            sizeOption(options, "memtable-size", 64L << 20));
+                } catch (IOException e) {
+                    throw new IllegalArgumentException("Cannot open LSM directory " + options.get("lsm-dir") + ": "
+                            + e.getMessage());
                 }
-                throw new IllegalArgumentException("Invalid request format. Usage: GET key");
-            case "DELETE":
-                if (tokens.length == 3) {
-                    return new String[]{command, tokens[2], null};
+            case "cache":
+                boolean weighByBytes = options.containsKey("max-bytes");
+                long budget = weighByBytes ? sizeOption(options, "max-bytes", 0)
+                        : positiveOption(options, "max-entries", 1_000_000);
+                long expectedEntries = weighByBytes ? budget / 128 : budget;
+                switch (options.getOrDefault("eviction", "tinylfu").toLowerCase()) {
+                    case "lru":
+                        return new BoundedKVStore(new LruPolicy(), budget, weighByBytes);
+                    case "tinylfu":
+                        return new BoundedKVStore(new TinyLfuPolicy(expectedEntries), budget, weighByBytes);
+                    default:
+                        throw new IllegalArgumentException("Eviction must be one of lru, tinylfu.");
                 }
-                throw new IllegalArgumentException("Invalid request format. Usage: DELETE key");
             default:
-                throw new IllegalArgumentException("Invalid command. Usage: PUT key value | GET key | DELETE key");
+                throw new IllegalArgumentException(
+                        "Engine must be one of concurrent, hashmap, offheap, cache, ordered, lsm.");
         }
     }
 
     /**
-     * Helper method to manage the key-value store using the defined protocol: PUT key value | GET key | DELETE key
-     * @param cmd either PUT, GET, or DELETE
+     * Helper method to read an optional size in bytes from the command line options, with an optional k, m, or g
+     * suffix.
+     * @param options optional settings of the server
+     * @param name name of the option
+     * @param defaultValue value used when the option is not provided
+     * @return the size in bytes
+     * @throws IllegalArgumentException if the option is not a positive size
+     */
+    private static long sizeOption(Map<String, String> options, String name, long defaultValue)
+            throws IllegalArgumentException {
+        if (!options.containsKey(name)) {
+            return defaultValue;
+        }
+        String value = options.get(name).toLowerCase();
+        int shift = 0;
+        switch (value.isEmpty() ? ' ' : value.charAt(value.length() - 1)) {
+            case 'k':
+                shift = 10;
+                break;
+            case 'm':
+                shift = 20;
+                break;
+            case 'g':
+                shift = 30;
+                break;
+        }
+        try {
+            long size = Long.parseLong(shift == 0 ? value : value.substring(0, value.length() - 1)) << shift;
+            if (size > 0) {
+                return size;
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Option " + name + " must be a positive size, such as 512m or 4g.");
+    }
+
+    /**
+     * Helper method to create the executor serving TCP connections.
+     * @param threads single to serve one client at a time, virtual for one virtual thread per connection, or the size
+     *                of a fixed thread pool
+     * @return the executor, or null to serve one client at a time
+     * @throws IllegalArgumentException if the threads option is not valid
+     */
+    private static ExecutorService createExecutor(String threads) throws IllegalArgumentException {
+        if (threads.equalsIgnoreCase("single")) {
+            return null;
+        }
+        if (threads.equalsIgnoreCase("virtual")) {
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        try {
+            int size = Integer.parseInt(threads);
+            if (size > 0) {
+                return Executors.newFixedThreadPool(size);
+            }
+        } catch (NumberFormatException e) {
+            // Fall through to the error below
+        }
+        throw new IllegalArgumentException("Threads must be one of single, virtual, or a positive number.");
+    }
+
+    /**
+     * Helper method to apply a single-key request to the store: PUT key value | GET key | DELETE key. The other
+     * commands are dispatched by handle() to their own helpers, such as processBatch() for MPUT, MGET, and MDELETE,
+     * processUpdate() for CAS, INCR, DECR, and PUTIFABSENT, and processScan() for SCAN and PREFIX.
+     * @param cmd either RequestParser.PUT, RequestParser.GET, or RequestParser.DELETE
      * @param key key for the key-value store
      * @param value value associated with the provided key, null if GET/DELETE operations
-     * @return
+     * @param ttlSeconds time to live of a PUT in seconds, 0 for no expiry
+     * @return the response to the client
      */
-    private String processRequest(String cmd, String key, String value) {
-        if (cmd.equals("PUT")) {
-            store.put(key, value);
+    private String processRequest(int cmd, String key, String value, long ttlSeconds) {
+        if (cmd == RequestParser.PUT) {
+            store.put(key, value, ttlSeconds);
             return "Ok.";
         }
-        String val = store.get(key);
+        // Read or remove in a single store operation so concurrent requests cannot interleave
+        String val;
+        if (cmd == RequestParser.GET) {
+            hotKeys.record(key);
+            val = store.get(key);
+        } else if (cmd == RequestParser.DELETE) {
+            val = store.delete(key);
+        } else {
+            return "Invalid command";
+        }
         if (val == null) {
             return "Key does not exist";
         }
-        if (cmd.equals("GET")) {
-            return val;
-        } else if (cmd.equals("DELETE")) {
-            store.delete(key);
+        return cmd == RequestParser.GET ? val : "Ok.";
+    }
+
+    /**
+     * Helper method to list the keys read the most using the defined protocol: HOTKEYS [n]
+     * @param limit maximum number of keys
+     * @return the keys and their estimated number of reads, as "key count key count ...", from the hottest
+     */
+    private String processHotKeys(int limit) {
+        StringBuilder result = new StringBuilder();
+        for (Map.Entry<String, Long> hot : hotKeys.hottest(limit)) {
+            if (!result.isEmpty()) {
+                result.append(' ');
+            }
+            result.append(hot.getKey()).append(' ').append(hot.getValue());
         }
-        return "Invalid command";
+        return result.toString();
     }
 
+    /**
+     * Helper method to read a key and register the connection to be told of its next write using the defined
+     * protocol: TRACK key
+     * @param key key to be read and tracked
+     * @param connection connection the request was received on, receiving the invalidation
+     * @return the value, or "Key does not exist"
+     * @throws IllegalStateException if the connection cannot receive invalidations, such as over UDP
+     */
+    private String processTrack(String key, ServerConnection connection) throws IllegalStateException {
+        hotKeys.record(key);
+        String value = tracking.track(key, connection);
+        return value == null ? "Key does not exist" : value;
+    }
+
+    /**
+     * Helper method to apply a batch request to the key-value store using the defined protocol:
+     * MPUT key value [key value ...] | MGET key [key ...] | MDELETE key [key ...]
+     * @param parser parser holding the batch request
+     * @return the response to the client: Ok. for MPUT, the values separated by spaces with (nil) for keys that do not
+     *         exist for MGET, and the number of deleted keys for MDELETE
+     */
+    private String processBatch(RequestParser parser) {
+        String[] keys = parser.getKeys();
+        switch (parser.getCommand()) {
+            case RequestParser.MPUT:
+                store.putAll(keys, parser.getValues());
+                return "Ok.";
+            case RequestParser.MGET:
+                String[] values = store.getAll(keys);
+                StringBuilder result = new StringBuilder();
+                for (int i = 0; i < values.length; i++) {
+                    if (i > 0) {
+                        result.append(' ');
+                    }
+                    result.append(values[i] == null ? "(nil)" : values[i]);
+                }
+                return result.toString();
+            case RequestParser.MDELETE:
+                return Integer.toString(store.deleteAll(keys));
+            default:
+                return "Invalid command";
+        }
+    }
+
+    /**
+     * Helper method to apply an atomic update to the key-value store using the defined protocol:
+     * CAS key expected new | INCR key [delta] | DECR key [delta] | PUTIFABSENT key value
+     * @param parser parser holding the update request
+     * @return the response to the client: Ok. or "Mismatch current" for CAS, the new number for INCR and DECR, and
+     *         Ok. or "Exists current" for PUTIFABSENT
+     * @throws IllegalStateException if the value to increment is not an integer or the result would overflow
+     */
+    private String processUpdate(RequestParser parser) throws IllegalStateException {
+        String key = parser.getKey();
+        switch (parser.getCommand()) {
+            case RequestParser.CAS:
+                String expected = parser.getExpected();
+                String witness = store.compareAndExchange(key, expected, parser.getValue());
+                if (witness == null) {
+                    return "Key does not exist";
+                }
+                return witness.equals(expected) ? "Ok." : "Mismatch " + witness;
+            case RequestParser.INCR:
+                return Long.toString(store.increment(key, parser.getDelta()));
+            case RequestParser.DECR:
+                try {
+                    return Long.toString(store.increment(key, Math.negateExact(parser.getDelta())));
+                } catch (ArithmeticException e) {
+                    throw new IllegalStateException("Increment would overflow");
+                }
+            case RequestParser.PUTIFABSENT:
+                String existing = store.putIfAbsent(key, parser.getValue());
+                return existing == null ? "Ok." : "Exists " + existing;
+            default:
+                return "Invalid command";
+        }
+    }
+
+    /**
+     * Helper method to apply a range request to the key-value store using the defined protocol:
+     * SCAN start end LIMIT n | PREFIX p LIMIT n
+     * The entries are streamed to the client while the store is walked, in messages of the form
+     * "CHUNK key value [key value ...]" of up to CHUNK_SIZE characters each, with the id of the request, so that the
+     * response is never built as a whole. An entry too large for a message of the connection ends the range with an
+     * error.
+     * @param parser parser holding the range request
+     * @param connection connection to stream the entries on
+     * @return the last message of the response: "END n" with the number of entries sent
+     * @throws IllegalStateException if an entry is too large for a message, or the client is gone
+     */
+    private String processScan(RequestParser parser, ServerConnection connection) throws IllegalStateException {
+        StringBuilder chunk = parser.startResponse().append("CHUNK");
+        int header = chunk.length();
+        int maxLength = connection.getMaxMessageLength();
+        BiConsumer<String, String> sender = (key, value) -> {
+            int length = key.length() + value.length() + 2;
+            if (chunk.length() > header && chunk.length() + length > CHUNK_SIZE) {
+                sendChunk(chunk, header, connection);
+            }
+            // Each character takes at most 3 bytes, so only large entries are measured
+            if (header + 3L * length > maxLength
+                    && header + Utils.encodedLength(key) + Utils.encodedLength(value) + 2 > maxLength) {
+                throw new IllegalStateException("Entry " + key + " is too large for the text protocol");
+            }
+            chunk.append(' ').append(key).append(' ').append(value);
+        };
+        try {
+            int count = parser.getCommand() == RequestParser.SCAN
+                    ? store.scan(parser.getKey(), parser.getEnd(), parser.getLimit(), sender)
+                    : store.scanPrefix(parser.getKey(), parser.getLimit(), sender);
+            if (chunk.length() > header) {
+                sendChunk(chunk, header, connection);
+            }
+            return "END " + count;
+        } catch (ChunkNotSentException e) {
+            // The client is gone, so the rest of the range is not walked
+            throw new IllegalStateException("Connection lost during the scan: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Helper method to send a chunk of a range response, and empty it for the next entries.
+     * @param chunk chunk holding the request id, CHUNK, and the entries
+     * @param header length of the chunk without its entries
+     * @param connection connection to send the chunk on
+     * @throws ChunkNotSentException if the chunk could not be sent
+     */
+    private static void sendChunk(StringBuilder chunk, int header, ServerConnection connection)
+            throws ChunkNotSentException {
+        try {
+            connection.send(chunk.toString());
+        } catch (IOException e) {
+            throw new ChunkNotSentException(e);
+        }
+        chunk.setLength(header);
+    }
+
+    /**
+     * Failure to send a chunk of a range response from inside the walk of the store, told apart from an
+     * UncheckedIOException of the store itself, which is a storage error.
+     */
+    private static class ChunkNotSentException extends RuntimeException {
+
+        private ChunkNotSentException(IOException cause) {
+            super(cause);
+        }
+    }
 }
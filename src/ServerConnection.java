@@ -0,0 +1,71 @@
+import java.io.IOException;
+
+/**
+ * This interface defines the methods of a connection of a communication server to its client, over which requests are
+ * received and responses are sent. TCP connections serve a single client, while a UDP server or worker answers each
+ * datagram to its own sender. The connection a request was received on is given to the RequestHandler.
+ */
+public interface ServerConnection extends CommunicationServer {
+
+    /**
+     * Send the provided message to the client.
+     *
+     * @param message message to be sent to the client.
+     * @throws IOException if the operation failed, or no destination address for UDP server
+     */
+    void send(String message) throws IOException;
+
+    /**
+     * Check whether messages can be pushed to the client of this connection with push().
+     *
+     * @return true for text connections over TCP, false otherwise
+     */
+    default boolean canPush() {
+        return false;
+    }
+
+    /**
+     * Send an unsolicited message to the client of this connection, from any thread, between two responses.
+     *
+     * @param message message to be sent to the client
+     * @throws IOException if the operation failed, or the connection cannot push messages
+     */
+    default void push(String message) throws IOException {
+        throw new IOException("Messages cannot be pushed on " + getConnectionAddress());
+    }
+
+    /**
+     * Get the maximum size of a text message sent on this connection, so that a response too large for its framing is
+     * rejected before it is sent.
+     *
+     * @return the maximum number of bytes of a message in modified UTF-8, Integer.MAX_VALUE if the size is not limited
+     */
+    default int getMaxMessageLength() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Receive message from the client.
+     *
+     * @return String of the message from the client.
+     * @throws IOException if the operation failed
+     */
+    String receive() throws IOException;
+
+    /**
+     * Serve client requests until the connection is closed. Each received request is passed to the handler and its
+     * result is sent back to the client. Connections that can handle several clients at the same time override this
+     * method.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if the operation failed, or the client disconnected
+     */
+    @Override
+    default void serve(RequestHandler handler) throws IOException {
+        start();
+        String data;
+        while ((data = receive()) != null) {
+            send(handler.handle(data, this));
+        }
+    }
+}
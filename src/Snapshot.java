@@ -0,0 +1,162 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class contains the methods to write and restore point-in-time snapshots of a key-value store.
+ * A snapshot is a binary file: a 4-byte magic number, the 8-byte sequence number of the last write-ahead log operation
+ * it contains, the 8-byte number of entries, then for each entry a 4-byte key length, the key bytes, a 4-byte value
+ * length, the value bytes, in UTF-8, and the 8-byte expiry time of the entry in milliseconds since the epoch, 0 if it
+ * does not expire. Snapshots of the first version, without expiry times, are still restored.
+ * Snapshots are written to a temporary file, synced, then atomically renamed, so a crash never leaves a partial
+ * snapshot in place. They are restored through memory-mapped windows of the file rather than stream reads.
+ */
+public class Snapshot {
+    private final static int MAGIC_V1 = 0x4B565331; // "KVS1"
+    private final static int MAGIC = 0x4B565332; // "KVS2"
+    private final static int HEADER_SIZE = 20;
+    private final static long WINDOW_SIZE = 1L << 30;
+
+    /**
+     * Write a snapshot of the store. Operations on the store may continue while it is written.
+     * @param store store to be saved
+     * @param sequence sequence number of the last operation applied to the store before the iteration started
+     * @param path path of the snapshot file
+     * @return the number of entries written
+     * @throws IOException when failed to write the snapshot
+     */
+    public static long write(KVStore store, long sequence, Path path) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        long[] count = new long[1];
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    256 * 1024));
+            out.writeInt(MAGIC);
+            out.writeLong(sequence);
+            out.writeLong(0);
+            try {
+                store.forEach((key, value) -> {
+                    try {
+                        writeBytes(out, key.getBytes(StandardCharsets.UTF_8));
+                        writeBytes(out, value.getBytes(StandardCharsets.UTF_8));
+                        out.writeLong(store.expiresAt(key));
+                        count[0]++;
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            out.flush();
+            // The number of entries is only known at the end
+            channel.write(ByteBuffer.allocate(8).putLong(0, count[0]), 12);
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // The log is only discarded once the new snapshot is sure to be found after a crash
+        Utils.syncDirectory(path);
+        return count[0];
+    }
+
+    /**
+     * Restore a snapshot into the store. The file is read through memory-mapped windows, each entry being decoded in
+     * place from the mapped memory.
+     * @param path path of the snapshot file
+     * @param store store to put the entries into
+     * @return the sequence number of the last operation contained in the snapshot, or 0 if there is no snapshot
+     * @throws IOException when failed to read the snapshot, or the snapshot is corrupt
+     */
+    public static long restore(Path path, KVStore store) throws IOException {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Snapshot " + path + " is truncated");
+            }
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, WINDOW_SIZE));
+            int magic = window.getInt();
+            if (magic != MAGIC && magic != MAGIC_V1) {
+                throw new IOException("Snapshot " + path + " is not a snapshot file");
+            }
+            int expirySize = magic == MAGIC ? 8 : 0;
+            long sequence = window.getLong();
+            long count = window.getLong();
+            long base = 0; // file offset of the current window
+            byte[] bytes = new byte[1024];
+            for (long i = 0; i < count; i++) {
+                // Remap when the next entry may not be fully inside the current window
+                if (window.remaining() < 4 || window.remaining() < 8 + window.getInt(window.position())) {
+                    base += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, WINDOW_SIZE));
+                }
+                int keyLength = window.getInt();
+                if (bytes.length < keyLength) {
+                    bytes = new byte[Math.max(bytes.length * 2, keyLength)];
+                }
+                window.get(bytes, 0, keyLength);
+                String key = new String(bytes, 0, keyLength, StandardCharsets.UTF_8);
+                if (window.remaining() < 4 || window.remaining() < 4 + window.getInt(window.position()) + expirySize) {
+                    base += window.position();
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, WINDOW_SIZE));
+                }
+                int valueLength = window.getInt();
+                if (bytes.length < valueLength) {
+                    bytes = new byte[Math.max(bytes.length * 2, valueLength)];
+                }
+                window.get(bytes, 0, valueLength);
+                String value = new String(bytes, 0, valueLength, StandardCharsets.UTF_8);
+                put(store, key, value, expirySize > 0 ? window.getLong() : 0);
+            }
+            return sequence;
+        } catch (RuntimeException e) {
+            throw new IOException("Snapshot " + path + " is corrupt", e);
+        }
+    }
+
+    /**
+     * Restore an entry with the time it has left to live, as recorded by a snapshot or a write-ahead log. An entry that
+     * already expired is removed instead, since it replaces any earlier value of the key.
+     * @param store store to restore the entry to
+     * @param key key of the entry
+     * @param value value of the entry
+     * @param expiresAt expiry time of the entry in milliseconds since the epoch, 0 if it does not expire
+     */
+    public static void put(KVStore store, String key, String value, long expiresAt) {
+        if (expiresAt == 0) {
+            store.put(key, value);
+            return;
+        }
+        long remaining = expiresAt - System.currentTimeMillis();
+        if (remaining <= 0) {
+            store.delete(key);
+        } else {
+            // Rounded up, so that the entry never expires earlier than recorded
+            store.put(key, value, (remaining + 999) / 1000);
+        }
+    }
+
+    /**
+     * Helper method to write length-prefixed bytes.
+     * @param out stream to write to
+     * @param bytes bytes to be written
+     * @throws IOException if the operation failed
+     */
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+}
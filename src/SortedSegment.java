@@ -0,0 +1,326 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * This class represents an immutable segment file of the LsmKVStore: entries sorted by key, read through a memory
+ * mapping of the file, so that the operating system keeps the hot parts of the file in memory and the rest on disk.
+ * The file holds the entries, each a 4-byte key length, the key bytes, a 4-byte value length (-1 for a deletion), and
+ * the value bytes, in UTF-8 and in the order of String.compareTo(). The sparse index follows: a 4-byte count, then the
+ * key and 8-byte offset of every INDEX_INTERVAL-th entry. Then the Bloom filter of the keys: a 4-byte number of words
+ * and the words. The footer holds the 8-byte offsets of the index and of the filter, the 8-byte numbers of entries and
+ * of deletions, and a 4-byte magic number.
+ * Only the sparse index and the Bloom filter are kept on the heap. A GET missing the filter never touches the file, and
+ * a GET passing it reads a single run of at most INDEX_INTERVAL entries.
+ */
+public class SortedSegment {
+    /**
+     * Value of a deleted key, compared by identity, which hides the values of the key in older segments.
+     */
+    public final static String DELETED = new String("(deleted)");
+    private final static int MAGIC = 0x4B56534C; // "KVSL"
+    private final static int FOOTER_SIZE = 36;
+    private final static int INDEX_INTERVAL = 32;
+    private final static ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private final static ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+    private final Path path;
+    private final MemorySegment data;
+    private final long dataEnd;
+    private final String[] indexKeys;
+    private final long[] indexOffsets;
+    private final BloomFilter filter;
+    private final long entries;
+    private final long deletions;
+
+    /**
+     * Constructor for a segment. Maps the file and reads its index and Bloom filter.
+     *
+     * @param path path of the segment file
+     * @throws IOException when failed to read the file, or the file is not a valid segment
+     */
+    private SortedSegment(Path path) throws IOException {
+        this.path = path;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < FOOTER_SIZE) {
+                throw new IOException("Corrupt segment " + path);
+            }
+            // The mapping is released by the garbage collector, once no reader uses a compacted segment anymore
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, Arena.ofAuto());
+        }
+        long footer = data.byteSize() - FOOTER_SIZE;
+        if (data.get(INT, footer + 32) != MAGIC) {
+            throw new IOException("Corrupt segment " + path);
+        }
+        dataEnd = data.get(LONG, footer);
+        long filterOffset = data.get(LONG, footer + 8);
+        entries = data.get(LONG, footer + 16);
+        deletions = data.get(LONG, footer + 24);
+        int count = data.get(INT, dataEnd);
+        indexKeys = new String[count];
+        indexOffsets = new long[count];
+        long offset = dataEnd + 4;
+        for (int i = 0; i < count; i++) {
+            int length = data.get(INT, offset);
+            indexKeys[i] = readString(offset + 4, length);
+            indexOffsets[i] = data.get(LONG, offset + 4 + length);
+            offset += 12 + length;
+        }
+        long[] words = new long[data.get(INT, filterOffset)];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = data.get(LONG, filterOffset + 4 + i * 8L);
+        }
+        filter = new BloomFilter(words);
+    }
+
+    /**
+     * Open an existing segment file.
+     *
+     * @param path path of the segment file
+     * @return the segment
+     * @throws IOException when failed to read the file, or the file is not a valid segment
+     */
+    public static SortedSegment open(Path path) throws IOException {
+        return new SortedSegment(path);
+    }
+
+    /**
+     * Write a segment file from sorted entries, sync it, then open it.
+     *
+     * @param path            path of the segment file
+     * @param sorted          entries in increasing order of their keys, without duplicates, deleted keys having the
+     *                        DELETED value
+     * @param expectedEntries number of entries expected, to size the Bloom filter
+     * @return the segment
+     * @throws IOException when failed to write the file
+     */
+    public static SortedSegment write(Path path, Iterator<Map.Entry<String, String>> sorted, long expectedEntries)
+            throws IOException {
+        BloomFilter bloom = new BloomFilter(expectedEntries);
+        List<byte[]> keys = new ArrayList<>();
+        long[] offsets = new long[16];
+        long count = 0;
+        long deleted = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    256 * 1024));
+            // DataOutputStream counts its bytes in an int, so the offset is counted here
+            long offset = 0;
+            while (sorted.hasNext()) {
+                Map.Entry<String, String> entry = sorted.next();
+                byte[] key = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                if (count % INDEX_INTERVAL == 0) {
+                    if (keys.size() == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                    }
+                    offsets[keys.size()] = offset;
+                    keys.add(key);
+                }
+                bloom.add(entry.getKey());
+                out.writeInt(key.length);
+                out.write(key);
+                offset += 8 + key.length;
+                if (entry.getValue() == DELETED) {
+                    out.writeInt(-1);
+                    deleted++;
+                } else {
+                    byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(value.length);
+                    out.write(value);
+                    offset += value.length;
+                }
+                count++;
+            }
+            long indexOffset = offset;
+            out.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                out.writeInt(keys.get(i).length);
+                out.write(keys.get(i));
+                out.writeLong(offsets[i]);
+                offset += 12 + keys.get(i).length;
+            }
+            long filterOffset = offset + 4;
+            long[] words = bloom.getWords();
+            out.writeInt(words.length);
+            for (long word : words) {
+                out.writeLong(word);
+            }
+            out.writeLong(indexOffset);
+            out.writeLong(filterOffset);
+            out.writeLong(count);
+            out.writeLong(deleted);
+            out.writeInt(MAGIC);
+            out.flush();
+            channel.force(true);
+        }
+        return new SortedSegment(path);
+    }
+
+    /**
+     * Get the value of a key in this segment.
+     *
+     * @param key key of the entry
+     * @return the value, DELETED if the segment records the deletion of the key, or null if the segment does not
+     * contain the key
+     */
+    public String get(String key) {
+        if (!filter.mightContain(key)) {
+            return null;
+        }
+        int block = floorBlock(key);
+        if (block < 0) {
+            return null;
+        }
+        MemorySegment wanted = MemorySegment.ofArray(key.getBytes(StandardCharsets.UTF_8));
+        long length = wanted.byteSize();
+        long offset = indexOffsets[block];
+        long end = block + 1 < indexOffsets.length ? indexOffsets[block + 1] : dataEnd;
+        // The entries of a block are compared as bytes, without decoding their keys
+        while (offset < end) {
+            int keyLength = data.get(INT, offset);
+            int valueLength = data.get(INT, offset + 4 + keyLength);
+            if (keyLength == length
+                    && MemorySegment.mismatch(data, offset + 4, offset + 4 + keyLength, wanted, 0, length) < 0) {
+                return valueLength < 0 ? DELETED : readString(offset + 8 + keyLength, valueLength);
+            }
+            offset += 8 + keyLength + Math.max(valueLength, 0);
+        }
+        return null;
+    }
+
+    /**
+     * Iterate over the entries of the segment in increasing order of their keys.
+     *
+     * @param from first key of the iteration, inclusive, or null to start from the first entry
+     * @return an iterator of the entries, deleted keys having the DELETED value
+     */
+    public Iterator<Map.Entry<String, String>> iterator(String from) {
+        int block = from == null ? 0 : Math.max(floorBlock(from), 0);
+        long start = indexOffsets.length == 0 ? dataEnd : indexOffsets[block];
+        return new Iterator<>() {
+            private long offset = start;
+            private Map.Entry<String, String> next = advance();
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<String, String> entry = next;
+                next = advance();
+                return entry;
+            }
+
+            /**
+             * Read the next entry that is not before the first key.
+             *
+             * @return the entry, or null at the end of the segment
+             */
+            private Map.Entry<String, String> advance() {
+                while (offset < dataEnd) {
+                    int keyLength = data.get(INT, offset);
+                    int valueLength = data.get(INT, offset + 4 + keyLength);
+                    String key = readString(offset + 4, keyLength);
+                    long valueOffset = offset + 8 + keyLength;
+                    offset = valueOffset + Math.max(valueLength, 0);
+                    if (from == null || key.compareTo(from) >= 0) {
+                        return Map.entry(key, valueLength < 0 ? DELETED : readString(valueOffset, valueLength));
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Get the path of the segment file.
+     *
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Get the size of the segment file.
+     *
+     * @return the size in bytes
+     */
+    public long fileSize() {
+        return data.byteSize();
+    }
+
+    /**
+     * Get the number of entries of the segment.
+     *
+     * @return the number of entries, including the deletions
+     */
+    public long entries() {
+        return entries;
+    }
+
+    /**
+     * Get the number of deleted keys recorded by the segment.
+     *
+     * @return the number of deletions
+     */
+    public long deletions() {
+        return deletions;
+    }
+
+    /**
+     * Estimate the heap memory used by the index and the Bloom filter of the segment.
+     *
+     * @return the estimated memory in bytes
+     */
+    public long memoryUsage() {
+        long bytes = filter.getWords().length * 8L + indexOffsets.length * 8L;
+        for (String key : indexKeys) {
+            bytes += 56 + key.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Helper method to find the block of entries that may contain a key.
+     *
+     * @param key key of the entry
+     * @return the index of the last indexed key not after the key, or -1 if the key is before the first entry
+     */
+    private int floorBlock(String key) {
+        int found = Arrays.binarySearch(indexKeys, key);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * Helper method to decode a UTF-8 string from the mapped file.
+     *
+     * @param offset offset of the string bytes
+     * @param length number of bytes
+     * @return the string
+     */
+    private String readString(long offset, int length) {
+        return new String(data.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+    }
+}
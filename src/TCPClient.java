@@ -2,6 +2,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents communication client using the TCP protocol.
@@ -22,6 +23,8 @@ public class TCPClient implements CommunicationClient {
      */
     public TCPClient(String host, int port) throws IOException {
         socket = new Socket(host, port);
+        // Requests are written whole, so there is nothing to gain from delaying small writes
+        socket.setTcpNoDelay(true);
         log("Connected to " + host + ":" + port);
         in = new DataInputStream(socket.getInputStream());
         out = new DataOutputStream(socket.getOutputStream());
@@ -45,6 +48,25 @@ public class TCPClient implements CommunicationClient {
         return in.readUTF();
     }
 
+    @Override
+    public void sendBinary(ByteBuffer message) throws IOException {
+        // Write the length and the message at once, so that they are not split across packets
+        byte[] frame = new byte[4 + message.remaining()];
+        ByteBuffer.wrap(frame).putInt(message.remaining()).put(message);
+        out.write(frame);
+    }
+
+    @Override
+    public ByteBuffer receiveBinary() throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid binary frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
     @Override
     public void close() throws IOException {
         if (socket != null) {
@@ -0,0 +1,542 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * This class represents a thread-safe pool of TCP connections to a server, shared by any number of calling threads.
+ * Requests are text requests without their id, such as "GET key". Each request gets a unique id and is sent on the
+ * next healthy connection in turn, and its response is matched back to it by that id, so that many callers multiplex
+ * over a few connections with many requests in flight on each. sendAsync() returns a CompletableFuture completed by
+ * the reader thread of the connection, and send() waits for it.
+ * Callers sending at the same time share their writes: the caller finding the connection idle writes the requests of
+ * all the others queued meanwhile, then flushes them at once.
+ * A connection that fails is closed, its requests in flight fail, and it is reconnected in the background with
+ * exponential backoff. Idle connections are checked periodically with a PING request.
+ * The entries of a SCAN or PREFIX are streamed by the server in several responses: they are gathered, and the result is
+ * the chunks and the final "END n" joined by newlines.
+ * With a near cache, the pool asks the server for its hottest keys every second, and reads them with TRACK instead of
+ * GET. Their values are kept in the near cache and answer the next GET without a round trip, until the server pushes
+ * "id:0 INVALIDATE key" because the key was written, or the key cools down. A key is tracked on the same connection as
+ * long as it is healthy, so that an older value read on another connection cannot replace a newer one. A TRACK response
+ * is only cached if no invalidation of its key was received while it was in flight, and the keys of the writes sent
+ * through the pool are dropped before their responses are returned, so that a caller always reads its own writes.
+ * Entries are only invalidated by writes: a key expiring or evicted on the server stays cached until it is written or
+ * cools down.
+ * When a connection fails, the invalidations it would have received are lost, so the whole near cache is cleared.
+ */
+public class TCPClientPool implements Closeable {
+    private final static long HEALTH_CHECK_MS = 5000;
+    private final static long MIN_BACKOFF_MS = 100;
+    private final static long MAX_BACKOFF_MS = 10_000;
+    private final static long HOT_KEYS_REFRESH_MS = 1000;
+    private final String host;
+    private final int port;
+    private final long timeoutMs;
+    private final Connection[] connections;
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService scheduler;
+    private final int nearCacheSize;
+    private final Map<String, String> nearCache = new ConcurrentHashMap<>();
+    private final Map<Long, String> tracked = new ConcurrentHashMap<>(); // key of each TRACK in flight, by id
+    private final LongAdder nearCacheHits = new LongAdder();
+    private volatile Set<String> hotKeys = Set.of();
+    private volatile boolean closed;
+
+    /**
+     * Constructor for a pool of TCP connections. Opens every connection, retrying in the background those that fail.
+     *
+     * @param host      host name or IP address of the server
+     * @param port      port number of the server
+     * @param size      number of connections
+     * @param timeoutMs maximum time to wait for a response
+     * @throws IOException when no connection could be opened
+     */
+    public TCPClientPool(String host, int port, int size, long timeoutMs) throws IOException {
+        this(host, port, size, timeoutMs, 0);
+    }
+
+    /**
+     * Constructor for a pool of TCP connections with a near cache of the hottest keys. Opens every connection,
+     * retrying in the background those that fail.
+     *
+     * @param host          host name or IP address of the server
+     * @param port          port number of the server
+     * @param size          number of connections
+     * @param timeoutMs     maximum time to wait for a response
+     * @param nearCacheSize maximum number of hot keys cached, at most HotKeys.CANDIDATES, or 0 for no near cache
+     * @throws IOException when no connection could be opened
+     */
+    public TCPClientPool(String host, int port, int size, long timeoutMs, int nearCacheSize) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.timeoutMs = timeoutMs;
+        this.nearCacheSize = Math.min(nearCacheSize, HotKeys.CANDIDATES);
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "pool-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        connections = new Connection[size];
+        IOException failure = null;
+        for (int i = 0; i < size; i++) {
+            connections[i] = new Connection(i);
+            try {
+                connections[i].connect();
+            } catch (IOException e) {
+                failure = e;
+                connections[i].reconnectLater();
+            }
+        }
+        if (healthyConnections() == 0) {
+            close();
+            throw new IOException("Cannot connect to " + host + ":" + port, failure);
+        }
+        scheduler.scheduleWithFixedDelay(this::checkHealth, HEALTH_CHECK_MS, HEALTH_CHECK_MS, TimeUnit.MILLISECONDS);
+        if (this.nearCacheSize > 0) {
+            scheduler.scheduleWithFixedDelay(this::refreshHotKeys, 0, HOT_KEYS_REFRESH_MS, TimeUnit.MILLISECONDS);
+        }
+        log("Connected " + healthyConnections() + " of " + size + " connections to " + host + ":" + port);
+    }
+
+    /**
+     * Send a request without waiting for its response.
+     *
+     * @param request text request without its id, such as "GET key"
+     * @return a future completed with the response without its id, or the responses of a range joined by newlines, or
+     * completed exceptionally with an IOException if the connection failed, or a TimeoutException if the server did
+     * not answer in time
+     */
+    public CompletableFuture<String> sendAsync(String request) {
+        if (nearCacheSize == 0) {
+            return sendAsync(request, null);
+        }
+        if (request.regionMatches(true, 0, "GET ", 0, 4) && request.indexOf(' ', 4) < 0) {
+            String key = request.substring(4);
+            String cached = nearCache.get(key);
+            if (cached != null) {
+                nearCacheHits.increment();
+                return CompletableFuture.completedFuture(cached);
+            }
+            if (!hotKeys.contains(key)) {
+                return sendAsync(request, null);
+            }
+            // Always on the same connection, so that its responses and invalidations arrive in the order of the server
+            Connection connection = connections[Math.floorMod(key.hashCode(), connections.length)];
+            return connection.healthy ? connection.send("TRACK " + key, key) : sendAsync("TRACK " + key, key);
+        }
+        String[] written = writtenKeys(request);
+        if (written.length == 0) {
+            return sendAsync(request, null);
+        }
+        // Dropped before the caller sees the response, and after any TRACK response read before the write
+        return sendAsync(request, null).whenComplete((response, e) -> {
+            for (String key : written) {
+                invalidate(key);
+            }
+        });
+    }
+
+    /**
+     * Send a request and wait for its response.
+     *
+     * @param request text request without its id, such as "GET key"
+     * @return the response without its id
+     * @throws SocketTimeoutException if the server did not answer in time
+     * @throws IOException            if the connection failed
+     */
+    public String send(String request) throws IOException {
+        try {
+            return sendAsync(request).get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TimeoutException) {
+                throw new SocketTimeoutException("No response within " + timeoutMs + " ms");
+            }
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the response", e);
+        }
+    }
+
+    /**
+     * Get the number of connections currently able to send requests.
+     *
+     * @return the number of healthy connections
+     */
+    public int healthyConnections() {
+        int healthy = 0;
+        for (Connection connection : connections) {
+            if (connection != null && connection.healthy) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    /**
+     * Get the number of GET requests answered by the near cache.
+     *
+     * @return the number of near cache hits since the pool was created
+     */
+    public long nearCacheHits() {
+        return nearCacheHits.sum();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        scheduler.shutdownNow();
+        for (Connection connection : connections) {
+            if (connection != null) {
+                connection.fail(connection.socket, new IOException("Pool closed"));
+            }
+        }
+    }
+
+    /**
+     * Helper method to check the connections that received nothing recently, by sending them a PING. A connection
+     * that does not answer in time is closed and reconnected.
+     */
+    private void checkHealth() {
+        long idleSince = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(HEALTH_CHECK_MS);
+        for (Connection connection : connections) {
+            Socket socket = connection.socket;
+            if (connection.healthy && connection.lastReceived - idleSince < 0) {
+                connection.send("PING").whenComplete((response, e) -> {
+                    if (e != null) {
+                        connection.fail(socket, new IOException("Health check failed", e));
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Helper method to send a request on the next healthy connection.
+     *
+     * @param request    text request without its id
+     * @param trackedKey key read by a TRACK request, whose value is cached on success, or null
+     * @return a future completed with the response without its id
+     */
+    private CompletableFuture<String> sendAsync(String request, String trackedKey) {
+        int start = next.getAndIncrement() & Integer.MAX_VALUE;
+        for (int i = 0; i < connections.length; i++) {
+            Connection connection = connections[(start + i) % connections.length];
+            if (connection.healthy) {
+                return connection.send(request, trackedKey);
+            }
+        }
+        return CompletableFuture.failedFuture(new IOException("No connection to " + host + ":" + port));
+    }
+
+    /**
+     * Helper method to find the keys a request writes to.
+     *
+     * @param request text request without its id
+     * @return the keys of a PUT, DELETE, MPUT, MDELETE, or atomic update, an empty array otherwise
+     */
+    private static String[] writtenKeys(String request) {
+        String[] tokens = request.split(" ");
+        if (tokens.length < 2) {
+            return new String[0];
+        }
+        switch (tokens[0].toUpperCase()) {
+            case "PUT", "DELETE", "CAS", "INCR", "DECR", "PUTIFABSENT":
+                return new String[]{tokens[1]};
+            case "MPUT":
+                String[] keys = new String[tokens.length / 2];
+                for (int i = 0; i < keys.length; i++) {
+                    keys[i] = tokens[1 + i * 2];
+                }
+                return keys;
+            case "MDELETE":
+                return Arrays.copyOfRange(tokens, 1, tokens.length);
+            default:
+                return new String[0];
+        }
+    }
+
+    /**
+     * Helper method to drop a key from the near cache, including the value of a TRACK of it still in flight.
+     *
+     * @param key key that was written
+     */
+    private void invalidate(String key) {
+        // Under the lock of the key in the near cache, so that a TRACK response cannot be cached in between
+        nearCache.compute(key, (k, value) -> {
+            tracked.values().removeIf(k::equals);
+            return null;
+        });
+    }
+
+    /**
+     * Helper method to cache the value read by a TRACK request, unless its key was invalidated while it was in flight.
+     *
+     * @param id       id of the TRACK request
+     * @param key      key of the TRACK request
+     * @param response response of the server without its id
+     */
+    private void cache(long id, String key, String response) {
+        // Errors, MOVED, and missing keys have spaces, which values do not
+        boolean cacheable = response.indexOf(' ') < 0 && hotKeys.contains(key);
+        nearCache.compute(key, (k, value) -> tracked.remove(id) != null && cacheable ? response : value);
+    }
+
+    /**
+     * Helper method to ask the server for its hottest keys, and drop the cached keys that cooled down.
+     */
+    private void refreshHotKeys() {
+        sendAsync("HOTKEYS " + nearCacheSize, null).thenAccept(response -> {
+            if (response.isEmpty()) {
+                hotKeys = Set.of();
+            } else if (!response.startsWith("Invalid")) {
+                String[] tokens = response.split(" ");
+                Set<String> hot = new HashSet<>();
+                for (int i = 0; i + 1 < tokens.length; i += 2) {
+                    hot.add(tokens[i]);
+                }
+                hotKeys = hot;
+            }
+            nearCache.keySet().retainAll(hotKeys);
+        });
+    }
+
+    /**
+     * Helper method to log a message of the pool.
+     *
+     * @param message message to be logged
+     */
+    private static void log(String message) {
+        Utils.log("TCP Client Pool", message);
+    }
+
+    /**
+     * A connection of the pool, with its requests in flight by id and a reader thread completing them.
+     */
+    private final class Connection {
+        private final int index;
+        private final Map<Long, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+        private final Map<Long, StringBuilder> chunks = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<String> outgoing = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writing = new AtomicBoolean();
+        private volatile Socket socket;
+        private volatile DataOutputStream out;
+        private volatile boolean healthy;
+        private volatile long lastReceived;
+        private volatile long backoffMs = MIN_BACKOFF_MS;
+
+        private Connection(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Open the connection and start its reader thread.
+         *
+         * @throws IOException when failed to connect
+         */
+        private void connect() throws IOException {
+            Socket opened = new Socket(host, port);
+            opened.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(opened.getInputStream(), 64 * 1024));
+            out = new DataOutputStream(new BufferedOutputStream(opened.getOutputStream(), 64 * 1024));
+            lastReceived = System.nanoTime();
+            socket = opened;
+            healthy = true;
+            backoffMs = MIN_BACKOFF_MS;
+            Thread reader = new Thread(() -> read(opened, in), "pool-reader-" + index);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        /**
+         * Send a request on the connection.
+         *
+         * @param request text request without its id
+         * @return a future completed with the response without its id
+         */
+        private CompletableFuture<String> send(String request) {
+            return send(request, null);
+        }
+
+        /**
+         * Send a request on the connection, caching the value it reads if it is a TRACK request.
+         *
+         * @param request    text request without its id
+         * @param trackedKey key read by a TRACK request, or null
+         * @return a future completed with the response without its id
+         */
+        private CompletableFuture<String> send(String request, String trackedKey) {
+            long id = ids.incrementAndGet();
+            CompletableFuture<String> response = new CompletableFuture<>();
+            inFlight.put(id, response);
+            if (trackedKey != null) {
+                tracked.put(id, trackedKey);
+            }
+            response.orTimeout(timeoutMs, TimeUnit.MILLISECONDS).whenComplete((value, e) -> {
+                if (e != null) {
+                    inFlight.remove(id);
+                    chunks.remove(id);
+                    tracked.remove(id);
+                }
+            });
+            outgoing.add("id:" + id + " " + request);
+            write();
+            if (!healthy) {
+                // The connection failed after it was chosen, and its requests in flight may already be failed
+                response.completeExceptionally(new IOException("Connection to " + host + ":" + port + " lost"));
+            }
+            return response;
+        }
+
+        /**
+         * Write the queued requests, unless another caller is already writing them, and flush them together.
+         */
+        private void write() {
+            while (!outgoing.isEmpty() && writing.compareAndSet(false, true)) {
+                Socket current = socket;
+                try {
+                    String request;
+                    while ((request = outgoing.poll()) != null) {
+                        out.writeUTF(request);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    fail(current, e);
+                } finally {
+                    writing.set(false);
+                }
+            }
+        }
+
+        /**
+         * Read responses and complete their requests until the connection fails.
+         *
+         * @param opened socket of the connection
+         * @param in     input stream of the socket
+         */
+        private void read(Socket opened, DataInputStream in) {
+            try {
+                while (true) {
+                    String response = in.readUTF();
+                    lastReceived = System.nanoTime();
+                    int end = response.indexOf(' ');
+                    if (!response.startsWith("id:") || end < 0) {
+                        continue;
+                    }
+                    long id;
+                    try {
+                        id = Long.parseLong(response, 3, end, 10);
+                    } catch (NumberFormatException e) {
+                        continue;
+                    }
+                    if (id == 0 && response.startsWith("INVALIDATE ", end + 1)) {
+                        invalidate(response.substring(end + 12));
+                        continue;
+                    }
+                    if (response.startsWith("CHUNK ", end + 1)) {
+                        if (inFlight.containsKey(id)) {
+                            chunks.computeIfAbsent(id, key -> new StringBuilder())
+                                    .append(response, end + 1, response.length()).append('\n');
+                        }
+                        continue;
+                    }
+                    CompletableFuture<String> request = inFlight.remove(id);
+                    StringBuilder gathered = chunks.remove(id);
+                    String trackedKey = tracked.get(id);
+                    if (trackedKey != null) {
+                        cache(id, trackedKey, response.substring(end + 1));
+                    }
+                    if (request != null) {
+                        request.complete(gathered == null ? response.substring(end + 1)
+                                : gathered.append(response, end + 1, response.length()).toString());
+                    }
+                }
+            } catch (IOException e) {
+                fail(opened, e);
+            }
+        }
+
+        /**
+         * Close the connection if it still uses the socket, fail its requests in flight, and reconnect it later.
+         *
+         * @param failed socket that failed
+         * @param cause  reason of the failure
+         */
+        private void fail(Socket failed, IOException cause) {
+            synchronized (this) {
+                if (failed == null || failed != socket || !healthy) {
+                    return;
+                }
+                healthy = false;
+                try {
+                    failed.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+            }
+            if (!closed) {
+                log("Connection " + index + " to " + host + ":" + port + " lost: "
+                        + (cause instanceof EOFException ? "closed by the server" : cause.getMessage()));
+            }
+            outgoing.clear();
+            chunks.clear();
+            // The invalidations of the keys tracked on this connection are lost with it
+            nearCache.clear();
+            IOException lost = new IOException("Connection to " + host + ":" + port + " lost", cause);
+            for (Long id : inFlight.keySet()) {
+                CompletableFuture<String> request = inFlight.remove(id);
+                if (request != null) {
+                    request.completeExceptionally(lost);
+                }
+            }
+            reconnectLater();
+        }
+
+        /**
+         * Try to reconnect after the backoff delay, doubling the delay after each failed attempt.
+         */
+        private void reconnectLater() {
+            if (closed) {
+                return;
+            }
+            long delay = backoffMs;
+            backoffMs = Math.min(backoffMs * 2, MAX_BACKOFF_MS);
+            try {
+                scheduler.schedule(() -> {
+                    try {
+                        connect();
+                        log("Connection " + index + " to " + host + ":" + port + " restored");
+                    } catch (IOException e) {
+                        reconnectLater();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // The pool was closed meanwhile
+            }
+        }
+    }
+}
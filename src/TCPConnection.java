@@ -0,0 +1,216 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class represents a single client connection accepted by a TCP server. Each connection has its own input and
+ * output streams, so several connections can be served at the same time on different threads.
+ * Both streams are buffered. When a client pipelines several requests, they are processed back-to-back and their
+ * responses are flushed together once no more request is waiting to be read.
+ * The connection starts with the text protocol and switches to the binary protocol when the client asks for it.
+ * Messages pushed by other threads are queued, so that the writer pushing them never waits for a slow client. The
+ * serving thread writes them ahead of its next response, and a virtual thread flushes them while the connection waits
+ * for a request. Writes are serialized by a ReentrantLock rather than a monitor, so that a virtual thread blocked on a
+ * slow client does not pin its carrier thread.
+ */
+public class TCPConnection implements ServerConnection {
+    private final Socket connectionSocket;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Queue<String> pushed = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushing = new AtomicBoolean();
+    private volatile boolean binary;
+
+    /**
+     * Constructor for a TCP connection. Sets up input and output stream during instantiation.
+     *
+     * @param connectionSocket socket returned by the server socket when accepting a client
+     * @throws IOException when failed to open the streams of the socket
+     */
+    public TCPConnection(Socket connectionSocket) throws IOException {
+        this.connectionSocket = connectionSocket;
+        connectionSocket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(connectionSocket.getInputStream()));
+        out = new DataOutputStream(new BufferedOutputStream(connectionSocket.getOutputStream()));
+    }
+
+    @Override
+    public void start() throws IOException {
+        // Connection already established by the server socket
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        writeLock.lock();
+        try {
+            out.writeUTF(message);
+            out.flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean canPush() {
+        return !binary;
+    }
+
+    /**
+     * Queue a message to be written with the next response, or by a virtual thread if the connection is idle.
+     *
+     * @param message message to be sent to the client
+     * @throws IOException if the connection is closed or was switched to the binary protocol
+     */
+    @Override
+    public void push(String message) throws IOException {
+        if (binary || connectionSocket.isClosed()) {
+            throw new IOException("Connection cannot receive pushed messages");
+        }
+        pushed.add(message);
+        if (flushing.compareAndSet(false, true)) {
+            Thread.startVirtualThread(this::flushPushed);
+        }
+    }
+
+    /**
+     * Helper method to write the pushed messages, or drop them once the connection is binary. The caller must hold
+     * the write lock.
+     *
+     * @throws IOException if the operation failed
+     */
+    private void writePushed() throws IOException {
+        String message;
+        while ((message = pushed.poll()) != null) {
+            if (!binary) {
+                out.writeUTF(message);
+            }
+        }
+    }
+
+    /**
+     * Helper method to write and flush the pushed messages until none is left, run by a single thread at a time. A
+     * failed write is left to the serving thread, which fails on its next read or write.
+     */
+    private void flushPushed() {
+        do {
+            writeLock.lock();
+            try {
+                writePushed();
+                // The binary protocol writes without the lock, so the stream is no longer flushed here
+                if (!binary) {
+                    out.flush();
+                }
+            } catch (IOException e) {
+                pushed.clear();
+            } finally {
+                writeLock.unlock();
+            }
+            flushing.set(false);
+        } while (!pushed.isEmpty() && flushing.compareAndSet(false, true));
+    }
+
+    /**
+     * Serve client requests until the connection is closed. Responses are only flushed when no more request is
+     * waiting to be read, so that pipelined requests are answered with as few writes as possible.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if the operation failed, or the client disconnected
+     */
+    @Override
+    public void serve(RequestHandler handler) throws IOException {
+        while (true) {
+            String data = in.readUTF();
+            if (BinaryProtocol.isUpgradeRequest(data)) {
+                writeLock.lock();
+                try {
+                    binary = true;
+                    send(BinaryProtocol.upgradeResponse(data));
+                } finally {
+                    writeLock.unlock();
+                }
+                serveBinary(handler);
+                return;
+            }
+            String response = handler.handle(data, this);
+            writeLock.lock();
+            try {
+                writePushed();
+                out.writeUTF(response);
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Serve binary requests until the connection is closed. Each frame is a 4-byte length followed by the message.
+     * The receive buffer is reused for every request and only grows for larger requests.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if the operation failed, the frame is too large, or the client disconnected
+     */
+    private void serveBinary(RequestHandler handler) throws IOException {
+        byte[] frame = new byte[1024];
+        while (true) {
+            int length = in.readInt();
+            if (length < 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                throw new IOException("Invalid binary frame length " + length);
+            }
+            if (frame.length < length) {
+                frame = new byte[Math.max(frame.length * 2, length)];
+            }
+            in.readFully(frame, 0, length);
+            ByteBuffer response = handler.handleBinary(ByteBuffer.wrap(frame, 0, length), this);
+            out.writeInt(response.remaining());
+            if (response.hasArray()) {
+                out.write(response.array(), response.arrayOffset() + response.position(), response.remaining());
+            } else {
+                byte[] bytes = new byte[response.remaining()];
+                response.get(bytes);
+                out.write(bytes);
+            }
+            if (in.available() == 0) {
+                out.flush();
+            }
+        }
+    }
+
+    @Override
+    public int getMaxMessageLength() {
+        return Utils.MAX_UTF_LENGTH;
+    }
+
+    @Override
+    public String receive() throws IOException {
+        return in.readUTF();
+    }
+
+    @Override
+    public void close() throws IOException {
+        connectionSocket.close();
+        in.close();
+        out.close();
+    }
+
+    @Override
+    public String getConnectionAddress() {
+        return connectionSocket.getInetAddress().getHostAddress() + ":" + connectionSocket.getPort();
+    }
+
+    @Override
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "TCP Server", message);
+    }
+}
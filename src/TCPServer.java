@@ -3,24 +3,40 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
 
 /**
  * This class represents communication server using TCP protocol.
+ * Without an executor, the server serves one client at a time. With an executor, every accepted connection is served
+ * on its own task so that many clients can be connected at the same time.
  */
-public class TCPServer implements CommunicationServer {
+public class TCPServer implements ServerConnection {
     private ServerSocket serverSocket;
     private Socket connectionSocket;
     private DataInputStream in;
     private DataOutputStream out;
+    private final ExecutorService executor;
 
     /**
-     * Constructor for a TCP server.
+     * Constructor for a TCP server serving one client at a time.
      *
      * @param port port number to listen for requests
      * @throws IOException when failed to create TCP server
      */
     public TCPServer(int port) throws IOException {
+        this(port, null);
+    }
+
+    /**
+     * Constructor for a TCP server serving each connection on the provided executor.
+     *
+     * @param port     port number to listen for requests
+     * @param executor executor running one task per connection, null to serve one client at a time
+     * @throws IOException when failed to create TCP server
+     */
+    public TCPServer(int port, ExecutorService executor) throws IOException {
         serverSocket = new ServerSocket(port);
+        this.executor = executor;
         log("Listening on port: " + port);
     }
 
@@ -32,6 +48,53 @@ public class TCPServer implements CommunicationServer {
         out = new DataOutputStream(connectionSocket.getOutputStream());
     }
 
+    /**
+     * Accept a new client connection. The returned connection is independent of this server and of other connections.
+     *
+     * @return the accepted connection
+     * @throws IOException when failed to accept a connection
+     */
+    public TCPConnection accept() throws IOException {
+        TCPConnection connection = new TCPConnection(serverSocket.accept());
+        log("Connected to client at " + connection.getConnectionAddress());
+        return connection;
+    }
+
+    @Override
+    public void serve(RequestHandler handler) throws IOException {
+        if (executor == null) {
+            // Serve one client at a time on the calling thread
+            TCPConnection connection = accept();
+            handler.connectionOpened(connection);
+            try {
+                connection.serve(handler);
+            } finally {
+                handler.connectionClosed(connection);
+                connection.close();
+            }
+            return;
+        }
+        // Keep accepting clients, each connection is served by its own task
+        while (true) {
+            TCPConnection connection = accept();
+            handler.connectionOpened(connection);
+            executor.execute(() -> {
+                try {
+                    connection.serve(handler);
+                } catch (IOException e) {
+                    connection.log("Client " + connection.getConnectionAddress() + " disconnected");
+                } finally {
+                    handler.connectionClosed(connection);
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        connection.log(Log.Level.WARN, "Error closing connection.");
+                    }
+                }
+            });
+        }
+    }
+
     @Override
     public void send(String message) throws IOException {
         if (out != null) {
@@ -39,6 +102,11 @@ public class TCPServer implements CommunicationServer {
         }
     }
 
+    @Override
+    public int getMaxMessageLength() {
+        return Utils.MAX_UTF_LENGTH;
+    }
+
     @Override
     public String receive() throws IOException {
         return in.readUTF();
@@ -47,6 +115,9 @@ public class TCPServer implements CommunicationServer {
 
     @Override
     public void close() throws IOException {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
         if (serverSocket != null) {
             serverSocket.close();
         }
@@ -67,8 +138,8 @@ public class TCPServer implements CommunicationServer {
     }
 
     @Override
-    public void log(String message) {
-        Utils.log("TCP Server", message);
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "TCP Server", message);
     }
 
 }
@@ -0,0 +1,112 @@
+/**
+ * Class represents the W-TinyLFU eviction policy, which admits entries into the main space by their access frequency.
+ * New entries enter a small LRU window of about 1% of the entries. Entries leaving the window become candidates in the
+ * probation region of the main space. When an entry must be evicted, the newest candidate is compared with the least
+ * recently used probation entry, and the one with the lower estimated frequency is evicted, so that one-time accesses
+ * cannot flush frequently used entries. Probation entries read again are promoted to the protected region, which holds
+ * up to 80% of the main space.
+ */
+public class TinyLfuPolicy implements EvictionPolicy {
+    private final static int WINDOW = 0;
+    private final static int PROBATION = 1;
+    private final static int PROTECTED = 2;
+    private final EntryList window = new EntryList();
+    private final EntryList probation = new EntryList();
+    private final EntryList protectedEntries = new EntryList();
+    private final FrequencySketch sketch;
+    private CacheEntry candidate; // last entry moved from the window to probation
+
+    /**
+     * Constructor for a W-TinyLFU policy.
+     *
+     * @param expectedEntries number of entries expected in the store, used to size the frequency sketch
+     */
+    public TinyLfuPolicy(long expectedEntries) {
+        sketch = new FrequencySketch(expectedEntries);
+    }
+
+    @Override
+    public void onAdd(CacheEntry entry) {
+        sketch.increment(entry.key.hashCode());
+        entry.queue = WINDOW;
+        window.add(entry);
+        // Entries overflowing the window become candidates for the main space
+        int size = window.size() + probation.size() + protectedEntries.size();
+        if (window.size() > Math.max(1, size / 100)) {
+            CacheEntry overflow = window.getHead();
+            window.remove(overflow);
+            overflow.queue = PROBATION;
+            probation.add(overflow);
+            candidate = overflow;
+        }
+    }
+
+    @Override
+    public void onAccess(CacheEntry entry) {
+        sketch.increment(entry.key.hashCode());
+        switch (entry.queue) {
+            case WINDOW:
+                window.moveToTail(entry);
+                break;
+            case PROBATION:
+                // Promote to protected, demoting the least recently used protected entry if it is full
+                if (entry == candidate) {
+                    candidate = null;
+                }
+                probation.remove(entry);
+                entry.queue = PROTECTED;
+                protectedEntries.add(entry);
+                if (protectedEntries.size() > (probation.size() + protectedEntries.size()) * 4 / 5) {
+                    CacheEntry demoted = protectedEntries.getHead();
+                    protectedEntries.remove(demoted);
+                    demoted.queue = PROBATION;
+                    probation.add(demoted);
+                }
+                break;
+            default:
+                protectedEntries.moveToTail(entry);
+        }
+    }
+
+    @Override
+    public void onRemove(CacheEntry entry) {
+        if (entry == candidate) {
+            candidate = null;
+        }
+        list(entry.queue).remove(entry);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        CacheEntry victim = probation.getHead();
+        if (victim == null) {
+            victim = protectedEntries.getHead() != null ? protectedEntries.getHead() : window.getHead();
+        } else if (candidate != null && candidate != victim) {
+            // Admit the candidate only if it is used more often than the entry it would replace
+            if (sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                victim = candidate;
+            }
+        }
+        if (victim != null) {
+            onRemove(victim);
+        }
+        return victim;
+    }
+
+    /**
+     * Helper method to get the list of a region.
+     *
+     * @param queue region of the entry
+     * @return the list holding the entries of the region
+     */
+    private EntryList list(int queue) {
+        switch (queue) {
+            case WINDOW:
+                return window;
+            case PROBATION:
+                return probation;
+            default:
+                return protectedEntries;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Class represents a key-value store telling clients when the values they cache change. A client reading a key with
+ * track() is registered for the key, and the next write to the key pushes "id:0 INVALIDATE key" to it, then forgets the
+ * registration, so that the client reads the key again before caching it again.
+ * A reader is registered before the key is read and the invalidations are pushed after the key is written, so that a
+ * write racing with a tracked read is always followed by an invalidation if the read could have returned the old value.
+ * Every write goes through this store, including the writes of a primary applied by a replica.
+ * At most MAX_TRACKED_KEYS keys are tracked: beyond that, the readers of an arbitrary key are told to forget it first.
+ * Registrations of closed connections are dropped when their key is written.
+ * Entries expiring or evicted in the cache engine are not writes: clients may keep them until the key is written.
+ */
+public class TrackingKVStore implements KVStore {
+    private final static int MAX_TRACKED_KEYS = 1 << 20;
+    private final KVStore store;
+    private final Map<String, Set<ServerConnection>> readers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor for a tracking key-value store.
+     *
+     * @param store store serving the operations
+     */
+    public TrackingKVStore(KVStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Get the value associated with the key, and register the connection to be told the next time the key is written.
+     *
+     * @param key        key of the entry
+     * @param connection connection of the reader, able to push messages
+     * @return the value, or null if the key does not exist
+     * @throws IllegalStateException if the connection cannot push messages
+     */
+    public String track(String key, ServerConnection connection) throws IllegalStateException {
+        if (!connection.canPush()) {
+            throw new IllegalStateException("Tracking requires a text connection over TCP");
+        }
+        if (readers.size() >= MAX_TRACKED_KEYS && !readers.containsKey(key)) {
+            Iterator<String> tracked = readers.keySet().iterator();
+            if (tracked.hasNext()) {
+                invalidate(tracked.next());
+            }
+        }
+        // Added under the lock of the key in the map, so that a write cannot take the readers away in between
+        readers.compute(key, (k, connections) -> {
+            Set<ServerConnection> registered = connections != null ? connections : ConcurrentHashMap.newKeySet();
+            registered.add(connection);
+            return registered;
+        });
+        return store.get(key);
+    }
+
+    /**
+     * Get the number of keys tracked for at least one reader.
+     *
+     * @return the number of tracked keys
+     */
+    public int trackedKeys() {
+        return readers.size();
+    }
+
+    @Override
+    public void put(String key, String value) {
+        store.put(key, value);
+        invalidate(key);
+    }
+
+    @Override
+    public void put(String key, String value, long ttlSeconds) {
+        store.put(key, value, ttlSeconds);
+        invalidate(key);
+    }
+
+    @Override
+    public long expiresAt(String key) {
+        return store.expiresAt(key);
+    }
+
+    @Override
+    public String get(String key) {
+        return store.get(key);
+    }
+
+    @Override
+    public String delete(String key) {
+        String removed = store.delete(key);
+        invalidate(key);
+        return removed;
+    }
+
+    @Override
+    public String update(String key, UnaryOperator<String> function) {
+        String updated = store.update(key, function);
+        invalidate(key);
+        return updated;
+    }
+
+    @Override
+    public void putAll(String[] keys, String[] values) {
+        store.putAll(keys, values);
+        for (String key : keys) {
+            invalidate(key);
+        }
+    }
+
+    @Override
+    public String[] getAll(String[] keys) {
+        return store.getAll(keys);
+    }
+
+    @Override
+    public int deleteAll(String[] keys) {
+        int deleted = store.deleteAll(keys);
+        for (String key : keys) {
+            invalidate(key);
+        }
+        return deleted;
+    }
+
+    @Override
+    public void forEach(BiConsumer<String, String> action) {
+        store.forEach(action);
+    }
+
+    @Override
+    public int scan(String start, String end, int limit, BiConsumer<String, String> action) {
+        return store.scan(start, end, limit, action);
+    }
+
+    @Override
+    public int scanPrefix(String prefix, int limit, BiConsumer<String, String> action) {
+        return store.scanPrefix(prefix, limit, action);
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return store.memoryUsage();
+    }
+
+    /**
+     * Helper method to tell the readers of a key that it was written, and forget them.
+     *
+     * @param key key that was written
+     */
+    private void invalidate(String key) {
+        if (readers.isEmpty()) {
+            return;
+        }
+        Set<ServerConnection> connections = readers.remove(key);
+        if (connections == null) {
+            return;
+        }
+        for (ServerConnection connection : connections) {
+            try {
+                connection.push("id:0 INVALIDATE " + key);
+            } catch (IOException e) {
+                // The connection is closed or cannot push, and its client no longer caches anything
+            }
+        }
+    }
+}
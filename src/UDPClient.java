@@ -2,9 +2,18 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 /**
  * This class represents communication client using the UDP protocol.
+ * Messages sent before the next receive or flush are packed together into datagrams of at most the MTU, and messages
+ * larger than the MTU are fragmented, as defined by UDPFraming. Batched and fragmented responses are unpacked and
+ * reassembled before they are received, and missing fragments are asked to be resent while waiting for a response.
  */
 public class UDPClient implements CommunicationClient {
     private final static int TIMEOUT = 5000;
@@ -12,6 +21,11 @@ public class UDPClient implements CommunicationClient {
     private InetAddress ip;
     private int port;
     private DatagramPacket packet;
+    private final InetSocketAddress server;
+    private final byte[] buffer = new byte[UDPFraming.MAX_DATAGRAM_SIZE];
+    private final UDPFraming.Batch pending = new UDPFraming.Batch(UDPFraming.DEFAULT_MTU);
+    private final UDPFragments fragments = new UDPFragments(UDPFraming.DEFAULT_MTU);
+    private final Queue<ByteBuffer> received = new ArrayDeque<>();
 
     /**
      * Constructor for a UDP client.
@@ -23,6 +37,7 @@ public class UDPClient implements CommunicationClient {
     public UDPClient(String host, int port) throws IOException {
         ip = InetAddress.getByName(host);
         this.port = port;
+        server = new InetSocketAddress(ip, port);
         socket = new DatagramSocket();
         log("Connected to " + ip.getHostAddress() + ":" + port);
     }
@@ -30,26 +45,47 @@ public class UDPClient implements CommunicationClient {
     @Override
     public void start() throws IOException {
         log("Client started...");
-        socket.setSoTimeout(TIMEOUT);
+        socket.setSoTimeout((int) UDPFragments.RESEND_DELAY_MS);
     }
 
     @Override
     public void send(String message) throws IOException {
-        byte[] buffer = message.getBytes();
-        packet = new DatagramPacket(buffer, buffer.length, ip, port);
-        socket.send(packet);
+        queue(ByteBuffer.wrap(message.getBytes()));
     }
 
     @Override
     public String receive() throws IOException {
-        byte[] buffer = new byte[1024];
-        packet = new DatagramPacket(buffer, buffer.length);
-        socket.receive(packet);
-        return new String(packet.getData(), 0, packet.getLength());
+        ByteBuffer message = receiveMessage();
+        return new String(message.array(), message.arrayOffset() + message.position(), message.remaining());
+    }
+
+    @Override
+    public void sendBinary(ByteBuffer message) throws IOException {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        queue(ByteBuffer.wrap(bytes));
+    }
+
+    @Override
+    public ByteBuffer receiveBinary() throws IOException {
+        return receiveMessage();
+    }
+
+    /**
+     * Send the messages waiting to be packed into a datagram.
+     *
+     * @throws IOException if the operation failed
+     */
+    @Override
+    public void flush() throws IOException {
+        if (!pending.isEmpty()) {
+            sendDatagram(pending.build());
+        }
     }
 
     @Override
-    public void close() {
+    public void close() throws IOException {
+        flush();
         socket.close();
     }
 
@@ -57,4 +93,115 @@ public class UDPClient implements CommunicationClient {
     public void log(String message) {
         Utils.log("UDP Client", message);
     }
+
+    /**
+     * Helper method to add a message to the pending datagram, or to send it in fragments if it does not fit in a
+     * datagram.
+     *
+     * @param message message to be sent
+     * @throws IOException if failed to send a datagram
+     */
+    private void queue(ByteBuffer message) throws IOException {
+        if (!pending.fitsAlone(message)) {
+            for (ByteBuffer fragment : fragments.split(server, message)) {
+                sendDatagram(fragment);
+            }
+            return;
+        }
+        if (!pending.add(message)) {
+            flush();
+            pending.add(message);
+        }
+    }
+
+    /**
+     * Helper method to receive the next message from the server. The pending messages are sent first. Datagrams are
+     * received until a message is complete, asking for missing fragments whenever no datagram arrives for a while.
+     *
+     * @return the next message from the server
+     * @throws SocketTimeoutException if no message is complete before the timeout
+     * @throws IOException if the operation failed
+     */
+    private ByteBuffer receiveMessage() throws IOException {
+        flush();
+        long deadline = System.nanoTime() + TIMEOUT * 1_000_000L;
+        while (received.isEmpty()) {
+            packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(packet);
+            } catch (SocketTimeoutException e) {
+                if (System.nanoTime() - deadline > 0) {
+                    throw e;
+                }
+                for (UDPFragments.Resend resend : fragments.stalled()) {
+                    sendDatagram(resend.datagram());
+                }
+                continue;
+            }
+            try {
+                accept(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+            } catch (IllegalArgumentException | BufferUnderflowException e) {
+                log("Received malformed datagram of length " + packet.getLength() + " from server.");
+            }
+        }
+        return received.poll();
+    }
+
+    /**
+     * Helper method to unpack a received datagram into the received messages. The messages are copied, since the
+     * receive buffer is reused.
+     *
+     * @param datagram datagram received from the server
+     * @throws IOException if failed to resend fragments
+     */
+    private void accept(ByteBuffer datagram) throws IOException {
+        if (!datagram.hasRemaining()) {
+            received.add(datagram);
+            return;
+        }
+        switch (datagram.get(0)) {
+            case UDPFraming.FRAGMENT:
+                ByteBuffer message = fragments.reassemble(server, datagram);
+                if (message != null) {
+                    received.add(message);
+                }
+                break;
+            case UDPFraming.RESEND:
+                for (ByteBuffer fragment : fragments.resend(server, datagram)) {
+                    sendDatagram(fragment);
+                }
+                break;
+            case UDPFraming.BATCH:
+                for (ByteBuffer batched : UDPFraming.unbatch(datagram)) {
+                    received.add(copy(batched));
+                }
+                break;
+            default:
+                received.add(copy(datagram));
+        }
+    }
+
+    /**
+     * Helper method to send a datagram to the server.
+     *
+     * @param datagram datagram to be sent, from its position to its limit
+     * @throws IOException if the operation failed
+     */
+    private void sendDatagram(ByteBuffer datagram) throws IOException {
+        packet = new DatagramPacket(datagram.array(), datagram.arrayOffset() + datagram.position(),
+                datagram.remaining(), ip, port);
+        socket.send(packet);
+    }
+
+    /**
+     * Helper method to copy a message out of the receive buffer.
+     *
+     * @param message message to be copied, from its position to its limit
+     * @return a copy of the message
+     */
+    private static ByteBuffer copy(ByteBuffer message) {
+        byte[] bytes = new byte[message.remaining()];
+        message.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
 }
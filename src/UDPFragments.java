@@ -0,0 +1,273 @@
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps track of the fragmented messages of a UDP endpoint, in both directions. Received fragments are
+ * reassembled into their message, and messages whose fragments stop arriving are asked to be resent. Sent fragments
+ * are kept for a while so that they can be resent when the receiver asks for them.
+ * Only the most recent messages are kept in either direction, so a message that is too old is dropped instead of
+ * growing the memory of the endpoint. The fragments of a received message are kept by index as they arrive, so that a
+ * message announcing many fragments only takes memory for the fragments actually received, and the fragments of all
+ * the messages being reassembled share a byte budget: once it is exceeded, the oldest messages are dropped.
+ * This class is thread-safe, so the workers of a server can share it.
+ */
+public class UDPFragments {
+    public final static long RESEND_DELAY_MS = 100;
+    private final static int MAX_ATTEMPTS = 5;
+    private final static int MAX_MESSAGES = 1024;
+    private final static long MAX_RECEIVED_BYTES = 2L * BinaryProtocol.MAX_FRAME_SIZE;
+    private final int mtu;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Key, Partial> received = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Partial> eldest) {
+            if (size() <= MAX_MESSAGES) {
+                return false;
+            }
+            receivedBytes -= eldest.getValue().size;
+            return true;
+        }
+    };
+    private long receivedBytes;
+    private final Map<Key, ByteBuffer[]> sent = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, ByteBuffer[]> eldest) {
+            return size() > MAX_MESSAGES;
+        }
+    };
+
+    /**
+     * Constructor for the fragments of a UDP endpoint.
+     *
+     * @param mtu maximum size of a datagram
+     */
+    public UDPFragments(int mtu) {
+        this.mtu = mtu;
+    }
+
+    /**
+     * Split a message into fragments and keep them until the receiver no longer needs them.
+     *
+     * @param receiver address the message is sent to
+     * @param message  message to be sent, from its position to its limit
+     * @return the fragment datagrams to be sent, ready to be read
+     * @throws IllegalArgumentException if the message is larger than the maximum frame size
+     */
+    public ByteBuffer[] split(SocketAddress receiver, ByteBuffer message) throws IllegalArgumentException {
+        long id = nextId.getAndIncrement();
+        ByteBuffer[] fragments = UDPFraming.fragment(id, message, mtu);
+        synchronized (sent) {
+            sent.put(new Key(receiver, id), fragments);
+        }
+        return duplicates(fragments);
+    }
+
+    /**
+     * Find the fragments asked for by a resend request.
+     *
+     * @param receiver address the resend request was received from
+     * @param request  resend datagram
+     * @return the fragment datagrams to be sent again, ready to be read, empty if the message is no longer kept
+     * @throws IllegalArgumentException if the request is malformed
+     * @throws BufferUnderflowException if the request ends before its last index
+     */
+    public List<ByteBuffer> resend(SocketAddress receiver, ByteBuffer request)
+            throws IllegalArgumentException, BufferUnderflowException {
+        request.get();
+        long id = BinaryProtocol.readVarint(request);
+        long count = BinaryProtocol.readVarint(request);
+        ByteBuffer[] fragments;
+        synchronized (sent) {
+            fragments = sent.get(new Key(receiver, id));
+        }
+        List<ByteBuffer> resent = new ArrayList<>();
+        for (long i = 0; i < count && fragments != null; i++) {
+            long index = BinaryProtocol.readVarint(request);
+            if (index >= 0 && index < fragments.length) {
+                resent.add(fragments[(int) index].duplicate());
+            }
+        }
+        return resent;
+    }
+
+    /**
+     * Add a received fragment to its message.
+     *
+     * @param sender   address the fragment was received from
+     * @param fragment fragment datagram, copied so that the receive buffer can be reused
+     * @return the reassembled message once its last fragment is received, null otherwise
+     * @throws IllegalArgumentException if the fragment is malformed or does not match the other fragments
+     * @throws BufferUnderflowException if the fragment ends before its header
+     */
+    public ByteBuffer reassemble(SocketAddress sender, ByteBuffer fragment)
+            throws IllegalArgumentException, BufferUnderflowException {
+        fragment.get();
+        long id = BinaryProtocol.readVarint(fragment);
+        long index = BinaryProtocol.readVarint(fragment);
+        long count = BinaryProtocol.readVarint(fragment);
+        if (count < 1 || count > UDPFraming.MAX_FRAGMENTS || index < 0 || index >= count) {
+            throw new IllegalArgumentException("Malformed fragment " + index + " of " + count);
+        }
+        byte[] chunk = new byte[fragment.remaining()];
+        fragment.get(chunk);
+        Key key = new Key(sender, id);
+        synchronized (received) {
+            Partial partial = received.computeIfAbsent(key, k -> new Partial((int) count));
+            if (partial.count != count) {
+                discard(key);
+                throw new IllegalArgumentException("Fragment count does not match the message");
+            }
+            receivedBytes += partial.add((int) index, chunk);
+            if (partial.size > BinaryProtocol.MAX_FRAME_SIZE) {
+                discard(key);
+                throw new IllegalArgumentException("Message exceeds the maximum frame size");
+            }
+            if (partial.missing > 0) {
+                evictOldest(key);
+                return null;
+            }
+            discard(key);
+            return partial.message();
+        }
+    }
+
+    /**
+     * Build the resend requests of the messages whose fragments stopped arriving. A message is dropped after a few
+     * requests without progress.
+     *
+     * @return the resend datagrams and the addresses to send them to
+     */
+    public List<Resend> stalled() {
+        long now = System.nanoTime();
+        long delay = TimeUnit.MILLISECONDS.toNanos(RESEND_DELAY_MS);
+        List<Resend> resends = new ArrayList<>();
+        synchronized (received) {
+            Iterator<Map.Entry<Key, Partial>> entries = received.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Key, Partial> entry = entries.next();
+                Partial partial = entry.getValue();
+                if (now - partial.updated < delay) {
+                    continue;
+                }
+                if (++partial.attempts > MAX_ATTEMPTS) {
+                    receivedBytes -= partial.size;
+                    entries.remove();
+                    continue;
+                }
+                partial.updated = now;
+                // A resend request holds fewer indexes than the MTU
+                int[] missing = new int[Math.min(partial.missing, mtu)];
+                int count = 0;
+                for (int i = 0; i < partial.count && count < missing.length; i++) {
+                    if (!partial.chunks.containsKey(i)) {
+                        missing[count++] = i;
+                    }
+                }
+                resends.add(new Resend(entry.getKey().address(),
+                        UDPFraming.resendRequest(entry.getKey().id(), missing, count, mtu)));
+            }
+        }
+        return resends;
+    }
+
+    /**
+     * Helper method to stop reassembling a message, releasing the bytes of its fragments from the budget. The caller
+     * must hold the lock of the received messages.
+     *
+     * @param key message to be dropped
+     */
+    private void discard(Key key) {
+        Partial partial = received.remove(key);
+        if (partial != null) {
+            receivedBytes -= partial.size;
+        }
+    }
+
+    /**
+     * Helper method to drop the oldest messages being reassembled until their fragments fit in the byte budget. The
+     * caller must hold the lock of the received messages.
+     *
+     * @param current message that just received a fragment, kept since it fits in the budget on its own
+     */
+    private void evictOldest(Key current) {
+        Iterator<Map.Entry<Key, Partial>> entries = received.entrySet().iterator();
+        while (receivedBytes > MAX_RECEIVED_BYTES && entries.hasNext()) {
+            Map.Entry<Key, Partial> entry = entries.next();
+            if (!entry.getKey().equals(current)) {
+                receivedBytes -= entry.getValue().size;
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Helper method to copy the position and limit of fragments, so that sending them does not consume the kept ones.
+     *
+     * @param fragments fragments to be copied
+     * @return the copies, sharing the content of the fragments
+     */
+    private static ByteBuffer[] duplicates(ByteBuffer[] fragments) {
+        ByteBuffer[] copies = new ByteBuffer[fragments.length];
+        for (int i = 0; i < fragments.length; i++) {
+            copies[i] = fragments[i].duplicate();
+        }
+        return copies;
+    }
+
+    /**
+     * A resend datagram and the address to send it to.
+     */
+    public record Resend(SocketAddress address, ByteBuffer datagram) {
+    }
+
+    /**
+     * A message identified by the address of its sender or receiver and its message id.
+     */
+    private record Key(SocketAddress address, long id) {
+    }
+
+    /**
+     * The fragments of a message received so far.
+     */
+    private static class Partial {
+        private final Map<Integer, byte[]> chunks = new HashMap<>();
+        private final int count;
+        private int missing;
+        private int size;
+        private int attempts;
+        private long updated = System.nanoTime();
+
+        private Partial(int count) {
+            this.count = count;
+            missing = count;
+        }
+
+        private int add(int index, byte[] chunk) {
+            attempts = 0;
+            updated = System.nanoTime();
+            if (chunks.putIfAbsent(index, chunk) != null) {
+                return 0;
+            }
+            missing--;
+            size += chunk.length;
+            return chunk.length;
+        }
+
+        private ByteBuffer message() {
+            ByteBuffer message = ByteBuffer.allocate(size);
+            for (int i = 0; i < count; i++) {
+                message.put(chunks.get(i));
+            }
+            return message.flip();
+        }
+    }
+}
@@ -0,0 +1,182 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class contains the constants and helper methods of the UDP framing, which carries several messages in one
+ * datagram and one message across several datagrams. A message is a text or binary request or response, as it would be
+ * sent in a datagram of its own. Framed datagrams start with a marker byte that is neither an opcode nor the start of a
+ * text request, so plain datagrams are still accepted.
+ * A batch datagram is: BATCH, then for each message a varint length followed by the message.
+ * A fragment datagram is: FRAGMENT, varint message id, varint fragment index, varint fragment count, and the bytes of
+ * the fragment. Message ids are chosen by the sender and are unique per sender.
+ * A resend datagram is: RESEND, varint message id, varint count, and the varint indexes of the missing fragments. The
+ * receiver of a fragmented message sends it when fragments stop arriving, and the sender answers with the fragments
+ * again.
+ */
+public class UDPFraming {
+    public final static byte BATCH = (byte) 0xB0;
+    public final static byte FRAGMENT = (byte) 0xB1;
+    public final static byte RESEND = (byte) 0xB2;
+    public final static int DEFAULT_MTU = 1472; // Ethernet MTU minus the IPv4 and UDP headers
+    public final static int MIN_MTU = 576;
+    public final static int MAX_DATAGRAM_SIZE = 65507;
+    private final static int FRAGMENT_HEADER_SIZE = 1 + 10 + 5 + 5;
+    // A message of the maximum frame size split at the smallest MTU
+    public final static int MAX_FRAGMENTS = (BinaryProtocol.MAX_FRAME_SIZE + MIN_MTU - FRAGMENT_HEADER_SIZE - 1)
+            / (MIN_MTU - FRAGMENT_HEADER_SIZE);
+
+    /**
+     * Check whether a datagram is framed, that is, whether it starts with a framing marker.
+     * @param first first byte of the datagram
+     * @return true for batch, fragment, and resend datagrams
+     */
+    public static boolean isFramed(byte first) {
+        return first == BATCH || first == FRAGMENT || first == RESEND;
+    }
+
+    /**
+     * Split a message into fragment datagrams of at most mtu bytes.
+     * @param id message id, unique for the sender
+     * @param message message to be split, from its position to its limit
+     * @param mtu maximum size of a datagram
+     * @return the fragment datagrams, ready to be read
+     * @throws IllegalArgumentException if the message is larger than the maximum frame size
+     */
+    public static ByteBuffer[] fragment(long id, ByteBuffer message, int mtu) throws IllegalArgumentException {
+        if (message.remaining() > BinaryProtocol.MAX_FRAME_SIZE) {
+            throw new IllegalArgumentException("Message exceeds the maximum frame size");
+        }
+        int chunk = mtu - FRAGMENT_HEADER_SIZE;
+        int count = (message.remaining() + chunk - 1) / chunk;
+        ByteBuffer[] fragments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(chunk, message.remaining());
+            ByteBuffer fragment = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + length);
+            fragment.put(FRAGMENT);
+            BinaryProtocol.writeVarint(fragment, id);
+            BinaryProtocol.writeVarint(fragment, i);
+            BinaryProtocol.writeVarint(fragment, count);
+            fragment.put(message.slice(message.position(), length));
+            message.position(message.position() + length);
+            fragments[i] = fragment.flip();
+        }
+        return fragments;
+    }
+
+    /**
+     * Encode the request to resend missing fragments. Only the indexes fitting in one datagram are requested, the rest
+     * are requested again by a later resend.
+     * @param id message id of the fragmented message
+     * @param missing indexes of the missing fragments
+     * @param count number of missing fragments
+     * @param mtu maximum size of a datagram
+     * @return the encoded request, ready to be read
+     */
+    public static ByteBuffer resendRequest(long id, int[] missing, int count, int mtu) {
+        count = Math.min(count, (mtu - FRAGMENT_HEADER_SIZE) / 5);
+        ByteBuffer buffer = ByteBuffer.allocate(FRAGMENT_HEADER_SIZE + count * 5);
+        buffer.put(RESEND);
+        BinaryProtocol.writeVarint(buffer, id);
+        BinaryProtocol.writeVarint(buffer, count);
+        for (int i = 0; i < count; i++) {
+            BinaryProtocol.writeVarint(buffer, missing[i]);
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Split a batch datagram into its messages. The messages share the content of the datagram.
+     * @param datagram batch datagram, from its position to its limit
+     * @return the messages, in the order of the batch
+     * @throws IllegalArgumentException if a length is negative or larger than the rest of the datagram
+     * @throws BufferUnderflowException if the datagram ends before a length
+     */
+    public static List<ByteBuffer> unbatch(ByteBuffer datagram)
+            throws IllegalArgumentException, BufferUnderflowException {
+        List<ByteBuffer> messages = new ArrayList<>();
+        datagram.get();
+        while (datagram.hasRemaining()) {
+            long length = BinaryProtocol.readVarint(datagram);
+            if (length < 0 || length > datagram.remaining()) {
+                throw new IllegalArgumentException("Message length exceeds datagram size");
+            }
+            messages.add(datagram.slice(datagram.position(), (int) length));
+            datagram.position(datagram.position() + (int) length);
+        }
+        return messages;
+    }
+
+    /**
+     * This class packs messages into batch datagrams of at most mtu bytes. A batch of a single message is sent as a
+     * plain datagram, without the batch marker. A batch is not thread-safe.
+     */
+    public static class Batch {
+        private final int mtu;
+        private final List<ByteBuffer> messages = new ArrayList<>();
+        private int size = 1;
+
+        /**
+         * Constructor for an empty batch.
+         * @param mtu maximum size of a datagram
+         */
+        public Batch(int mtu) {
+            this.mtu = mtu;
+        }
+
+        /**
+         * Check whether a message fits in a single datagram, so that it can be batched instead of fragmented.
+         * @param message message to be sent
+         * @return true if the message fits in a datagram of its own
+         */
+        public boolean fitsAlone(ByteBuffer message) {
+            return 1 + BinaryProtocol.varintSize(message.remaining()) + message.remaining() <= mtu;
+        }
+
+        /**
+         * Add a message to the batch if it fits in the datagram.
+         * @param message message to be sent, from its position to its limit. Must not change until the batch is built
+         * @return true if the message was added, false if the batch must be built first
+         */
+        public boolean add(ByteBuffer message) {
+            int added = BinaryProtocol.varintSize(message.remaining()) + message.remaining();
+            if (!messages.isEmpty() && size + added > mtu) {
+                return false;
+            }
+            messages.add(message);
+            size += added;
+            return true;
+        }
+
+        /**
+         * Check whether the batch has no message.
+         * @return true if there is nothing to send
+         */
+        public boolean isEmpty() {
+            return messages.isEmpty();
+        }
+
+        /**
+         * Build the datagram of the batch and empty the batch.
+         * @return the datagram, ready to be read
+         */
+        public ByteBuffer build() {
+            ByteBuffer datagram;
+            if (messages.size() == 1) {
+                datagram = messages.get(0);
+            } else {
+                datagram = ByteBuffer.allocate(size);
+                datagram.put(BATCH);
+                for (ByteBuffer message : messages) {
+                    BinaryProtocol.writeVarint(datagram, message.remaining());
+                    datagram.put(message);
+                }
+                datagram.flip();
+            }
+            messages.clear();
+            size = 1;
+            return datagram;
+        }
+    }
+}
@@ -1,26 +1,63 @@
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * This class represents communication server using UDP protocol.
+ * Each datagram is either a text request or, when it starts with an opcode, a binary request.
+ * Datagrams are served by a fixed number of workers, each on its own thread with its own receive buffer, and each
+ * response is sent to the sender of its own request. When the platform supports SO_REUSEPORT, every worker has its
+ * own socket bound to the port and the kernel spreads the clients across them. Otherwise, the workers share a single
+ * socket.
+ * Requests and responses may be packed several per datagram, up to the MTU, and messages larger than the MTU are
+ * fragmented as defined by UDPFraming. A background thread asks clients to resend the missing fragments of requests
+ * that stopped arriving.
+ * The server only starts and stops the workers: each worker exchanges the messages of its own datagrams (see
+ * UDPWorker), since the address of the client to answer is confined to the worker's thread.
  */
 public class UDPServer implements CommunicationServer {
-    private DatagramSocket socket;
-    private InetAddress lastClientIp;
-    private int lastClientPort;
-    private DatagramPacket packet;
+    private final UDPWorker[] workers;
+    private final DatagramChannel[] channels;
+    private final UDPFragments fragments;
+    private Thread[] threads;
 
     /**
-     * Constructor for a UDP server.
+     * Constructor for a UDP server served by a single worker.
      *
      * @param port port number to listen for requests
      * @throws IOException when failed to create a UDP server
      */
     public UDPServer(int port) throws IOException {
-        socket = new DatagramSocket(port);
-        log("Listening on port: " + port);
+        this(port, 1, UDPFraming.DEFAULT_MTU);
+    }
+
+    /**
+     * Constructor for a UDP server.
+     *
+     * @param port    port number to listen for requests
+     * @param workers number of threads receiving and serving datagrams
+     * @param mtu     maximum size of a response datagram
+     * @throws IOException when failed to create a UDP server
+     */
+    public UDPServer(int port, int workers, int mtu) throws IOException {
+        this.workers = new UDPWorker[workers];
+        fragments = new UDPFragments(mtu);
+        DatagramChannel first = DatagramChannel.open();
+        boolean reusePort = workers > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        channels = new DatagramChannel[reusePort ? workers : 1];
+        for (int i = 0; i < channels.length; i++) {
+            channels[i] = i == 0 ? first : DatagramChannel.open();
+            if (reusePort) {
+                channels[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channels[i].bind(new InetSocketAddress(port));
+        }
+        for (int i = 0; i < workers; i++) {
+            this.workers[i] = new UDPWorker(channels[i % channels.length], fragments, mtu);
+        }
+        log("Listening on port: " + port + " with " + workers + " workers on " + channels.length + " sockets");
     }
 
     @Override
@@ -28,41 +65,67 @@ public class UDPServer implements CommunicationServer {
         // No persistent connection
     }
 
+    /**
+     * Start the workers on their own threads, then wait for them to stop, which only happens once the server is
+     * closed.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if interrupted while waiting for the workers
+     */
     @Override
-    public void send(String message) throws IOException {
-        byte[] buffer = message.getBytes();
-        DatagramPacket packet;
-        if (lastClientIp != null) {
-            packet = new DatagramPacket(buffer, buffer.length, lastClientIp, lastClientPort);
-        } else {
-            throw new IOException("No destination address specified");
+    public void serve(RequestHandler handler) throws IOException {
+        if (threads == null) {
+            threads = new Thread[workers.length];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i].setHandler(handler);
+                threads[i] = new Thread(workers[i], "udp-worker-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+            Thread resender = new Thread(this::resendStalled, "udp-resender");
+            resender.setDaemon(true);
+            resender.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while serving", e);
         }
-        socket.send(packet);
     }
 
-    @Override
-    public String receive() throws IOException {
-        byte[] buffer = new byte[1024];
-        packet = new DatagramPacket(buffer, buffer.length);
-        socket.receive(packet);
-        // update dest ip and port
-        lastClientIp = packet.getAddress();
-        lastClientPort = packet.getPort();
-        return new String(packet.getData(), 0, packet.getLength());
+    /**
+     * Helper method to keep asking clients for the missing fragments of their requests until the server is closed.
+     */
+    private void resendStalled() {
+        while (channels[0].isOpen()) {
+            LockSupport.parkNanos(UDPFragments.RESEND_DELAY_MS * 1_000_000);
+            for (UDPFragments.Resend resend : fragments.stalled()) {
+                try {
+                    channels[0].send(resend.datagram(), resend.address());
+                } catch (IOException e) {
+                    log(Log.Level.WARN, "Error asking " + resend.address() + " to resend fragments: " + e.getMessage());
+                }
+            }
+        }
     }
 
     @Override
-    public void close() {
-        socket.close();
+    public void close() throws IOException {
+        for (DatagramChannel channel : channels) {
+            channel.close();
+        }
     }
 
     @Override
     public String getConnectionAddress() {
-        return lastClientIp.getHostAddress() + ":" + lastClientPort;
+        return channels[0].socket().getLocalSocketAddress().toString();
     }
 
     @Override
-    public void log(String message) {
-        Utils.log("UDP Server", message);
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "UDP Server", message);
     }
 }
@@ -0,0 +1,217 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * This class represents a worker of a UDP server. Each worker receives datagrams on its own thread and answers each
+ * datagram to the address it was received from, so that concurrent clients always get their own responses.
+ * A worker owns its receive buffer, which is reused for every datagram instead of being allocated per request. The
+ * sender of the datagram being processed is confined to the worker's thread.
+ * The requests of a batch datagram are answered with batch datagrams, and responses larger than one datagram are
+ * fragmented, as defined by UDPFraming. Fragments are shared with the other workers of the server, since the
+ * fragments of a request may be received by several workers.
+ */
+public class UDPWorker implements ServerConnection, Runnable {
+    private final DatagramChannel channel;
+    private final UDPFragments fragments;
+    private final UDPFraming.Batch replies;
+    private final ByteBuffer buffer = ByteBuffer.allocate(UDPFraming.MAX_DATAGRAM_SIZE);
+    private RequestHandler handler;
+    private SocketAddress sender;
+
+    /**
+     * Constructor for a UDP worker.
+     *
+     * @param channel   channel to receive datagrams from and send responses to, possibly shared with other workers
+     * @param fragments fragmented messages of the server, shared with the other workers
+     * @param mtu       maximum size of a response datagram
+     */
+    public UDPWorker(DatagramChannel channel, UDPFragments fragments, int mtu) {
+        this.channel = channel;
+        this.fragments = fragments;
+        replies = new UDPFraming.Batch(mtu);
+    }
+
+    /**
+     * Set the handler processing the requests of this worker. Must be called before the worker is run.
+     *
+     * @param handler handler processing each request
+     */
+    public void setHandler(RequestHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Serve datagrams until the channel is closed. A failed datagram is logged and does not stop the worker.
+     */
+    @Override
+    public void run() {
+        while (channel.isOpen()) {
+            try {
+                serve(handler);
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                log(Log.Level.WARN, "Error serving " + getConnectionAddress() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    @Override
+    public void start() throws IOException {
+        // No persistent connection
+    }
+
+    /**
+     * Serve datagrams until the channel is closed. Each datagram is a text request, a binary request, or a framed
+     * datagram, and is answered to its own sender.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if failed to receive a datagram or send a response
+     */
+    @Override
+    public void serve(RequestHandler handler) throws IOException {
+        while (true) {
+            String data = receive();
+            if (data != null) {
+                // Datagrams are self-describing, so switching to binary only needs to be acknowledged
+                send(BinaryProtocol.isUpgradeRequest(data) ? BinaryProtocol.upgradeResponse(data)
+                        : handler.handle(data, this));
+                continue;
+            }
+            try {
+                serveFramed(handler);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                if (Log.isEnabled(Log.Level.WARN)) {
+                    log(Log.Level.WARN, "Received malformed datagram of length " + buffer.limit() + " from "
+                            + getConnectionAddress() + ": " + e.getMessage());
+                }
+            } catch (RuntimeException e) {
+                // Drop the datagram rather than the worker, which serves every client
+                log(Log.Level.ERROR, "Error serving datagram from " + getConnectionAddress() + ": " + e);
+            }
+            flush();
+        }
+    }
+
+    @Override
+    public void send(String message) throws IOException {
+        reply(ByteBuffer.wrap(message.getBytes()));
+        flush();
+    }
+
+    /**
+     * Receive a datagram into the receive buffer and remember its sender as the destination of the response.
+     *
+     * @return the text request, or null if the datagram is a binary request or a framed datagram, left in the receive
+     * buffer
+     * @throws IOException if the operation failed
+     */
+    @Override
+    public String receive() throws IOException {
+        buffer.clear();
+        sender = channel.receive(buffer);
+        buffer.flip();
+        if (buffer.hasRemaining() && (BinaryProtocol.isBinary(buffer.get(0)) || UDPFraming.isFramed(buffer.get(0)))) {
+            return null;
+        }
+        return new String(buffer.array(), 0, buffer.limit());
+    }
+
+    /**
+     * Helper method to serve the binary request or framed datagram left in the receive buffer. The responses are added
+     * to the pending replies.
+     *
+     * @param handler handler processing each request
+     * @throws IOException if failed to send a datagram
+     */
+    private void serveFramed(RequestHandler handler) throws IOException {
+        byte first = buffer.get(0);
+        if (first == UDPFraming.FRAGMENT) {
+            ByteBuffer message = fragments.reassemble(sender, buffer);
+            if (message != null) {
+                reply(process(message, handler));
+            }
+        } else if (first == UDPFraming.RESEND) {
+            for (ByteBuffer fragment : fragments.resend(sender, buffer)) {
+                channel.send(fragment, sender);
+            }
+        } else if (first == UDPFraming.BATCH) {
+            for (ByteBuffer message : UDPFraming.unbatch(buffer)) {
+                reply(process(message, handler));
+            }
+        } else {
+            reply(process(buffer, handler));
+        }
+    }
+
+    /**
+     * Helper method to process a single text or binary request.
+     *
+     * @param message request, from its position to its limit
+     * @param handler handler processing the request
+     * @return the response to be sent back to the client
+     */
+    private ByteBuffer process(ByteBuffer message, RequestHandler handler) {
+        if (message.hasRemaining() && BinaryProtocol.isBinary(message.get(message.position()))) {
+            return handler.handleBinary(message, this);
+        }
+        String data = new String(message.array(), message.arrayOffset() + message.position(), message.remaining());
+        String response = BinaryProtocol.isUpgradeRequest(data) ? BinaryProtocol.upgradeResponse(data)
+                : handler.handle(data, this);
+        return ByteBuffer.wrap(response.getBytes());
+    }
+
+    /**
+     * Helper method to add a response to the pending replies, or to send it in fragments if it does not fit in a
+     * datagram.
+     *
+     * @param response response to be sent, from its position to its limit
+     * @throws IOException if failed to send a datagram
+     */
+    private void reply(ByteBuffer response) throws IOException {
+        if (!replies.fitsAlone(response)) {
+            for (ByteBuffer fragment : fragments.split(sender, response)) {
+                channel.send(fragment, sender);
+            }
+            return;
+        }
+        if (!replies.add(response)) {
+            flush();
+            replies.add(response);
+        }
+    }
+
+    /**
+     * Helper method to send the pending replies to the sender of the current datagram.
+     *
+     * @throws IOException if failed to send the datagram
+     */
+    private void flush() throws IOException {
+        if (!replies.isEmpty()) {
+            channel.send(replies.build(), sender);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    @Override
+    public String getConnectionAddress() {
+        if (sender instanceof InetSocketAddress address) {
+            return address.getAddress().getHostAddress() + ":" + address.getPort();
+        }
+        return String.valueOf(sender);
+    }
+
+    @Override
+    public void log(Log.Level level, String message) {
+        Utils.log(level, "UDP Server", message);
+    }
+}
@@ -1,9 +1,15 @@
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * This class contains utility methods used across the Server and Client classes.
  */
 public class Utils {
+    public final static int MAX_UTF_LENGTH = 65535;
 
     /**
      * Check whether the provided protocol is not valid. Only TCP and UDP are allowed.
@@ -24,13 +30,68 @@ public class Utils {
     }
 
     /**
-     * Format the log messages in the terminal with time precision to millisecond.
+     * Parse the optional command line arguments. Each option must be in the form --name=value.
+     * @param args command line arguments
+     * @param from index of the first optional argument
+     * @return map of option names to their values
+     * @throws IllegalArgumentException if an option is not in the form --name=value
+     */
+    public static Map<String, String> parseOptions(String[] args, int from) throws IllegalArgumentException {
+        Map<String, String> options = new HashMap<>();
+        for (int i = from; i < args.length; i++) {
+            int separator = args[i].indexOf('=');
+            if (!args[i].startsWith("--") || separator < 3) {
+                throw new IllegalArgumentException("Invalid option " + args[i]
+                        + ". Options must be in the form --name=value");
+            }
+            options.put(args[i].substring(2, separator).toLowerCase(), args[i].substring(separator + 1));
+        }
+        return options;
+    }
+
+    /**
+     * Compute the number of bytes of a message in modified UTF-8, as written by DataOutputStream.writeUTF, whose frames
+     * hold at most MAX_UTF_LENGTH bytes.
+     * @param message message to be encoded
+     * @return the encoded length
+     */
+    public static int encodedLength(String message) {
+        int length = 0;
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            length += (c >= 0x0001 && c <= 0x007F) ? 1 : (c <= 0x07FF ? 2 : 3);
+        }
+        return length;
+    }
+
+    /**
+     * Flush the directory containing a file to disk, so that the file having been created or renamed survives a crash.
+     * @param file path of the file
+     * @throws IOException if the directory cannot be opened or flushed
+     */
+    public static void syncDirectory(Path file) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Log an informational message with time precision to millisecond. See Log for the levels and the output.
      * @param serviceName the service name to be included at the beginning of the message
      * @param message the message of the log
      */
     public static void log(String serviceName, String message) {
-        SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
-        String timestamp = df.format(System.currentTimeMillis());
-        System.out.println("[" + serviceName + "] " + timestamp + " " + message);
+        Log.log(Log.Level.INFO, serviceName, message);
+    }
+
+    /**
+     * Log a message of the provided level with time precision to millisecond. See Log for the levels and the output.
+     * @param level level of the message, such as Log.Level.WARN for a failure the server recovers from
+     * @param serviceName the service name to be included at the beginning of the message
+     * @param message the message of the log
+     */
+    public static void log(Log.Level level, String serviceName, String message) {
+        Log.log(level, serviceName, message);
     }
 }
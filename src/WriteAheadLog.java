@@ -0,0 +1,307 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * This class represents an append-only write-ahead log of PUT and DELETE operations.
+ * Each record is a 4-byte length, a 4-byte CRC32 checksum, and the operation encoded as a binary request (see
+ * BinaryProtocol) whose request id is the sequence number of the operation. A PUT with a time to live is followed by
+ * the varint expiry time of the entry, in milliseconds since the epoch.
+ * Appended records are buffered in memory. A background thread writes them with group commit: a single fsync covers
+ * every record appended within the commit window, or as soon as the batch size is reached. Callers wait for their own
+ * record to be durable before acknowledging the operation.
+ * Once a snapshot contains every operation up to a sequence number, the records up to it can be discarded.
+ */
+public class WriteAheadLog {
+    private final static int HEADER_SIZE = 8;
+    private final Path path;
+    private volatile FileChannel channel;
+    private final long windowNanos;
+    private final int batchSize;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer writing = ByteBuffer.allocate(64 * 1024);
+    private int pendingRecords;
+    private long appended; // sequence number of the last appended record
+    private long durable; // sequence number of the last record written and synced to disk
+    private IOException failure;
+
+    /**
+     * Constructor for a write-ahead log. Opens the log file, creating it if needed, and starts the commit thread.
+     * Existing records must be read with replay() before new records are appended.
+     *
+     * @param path      path of the log file
+     * @param windowMs  maximum time in milliseconds a record waits for other records to share its fsync
+     * @param batchSize number of records that triggers an fsync before the end of the window
+     * @throws IOException when failed to open the log file
+     */
+    public WriteAheadLog(Path path, long windowMs, int batchSize) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.windowNanos = windowMs * 1_000_000;
+        this.batchSize = batchSize;
+        Thread committer = new Thread(this::commit, "wal-commit");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * Read every complete record of the log in order and apply it to the store. A torn or corrupt record at the end of
+     * the log, left by a crash during a write, is discarded and the log is truncated after the last valid record.
+     *
+     * @param store store to apply the records to
+     * @param after sequence number of the last operation already contained in the store, records up to it are skipped
+     * @return the number of records applied
+     * @throws IOException when failed to read the log file
+     */
+    public synchronized long replay(KVStore store, long after) throws IOException {
+        long position = 0;
+        long applied = 0;
+        // New operations must follow the operations already in the store, even if their records were discarded
+        appended = Math.max(appended, after);
+        channel.position(0);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel), 64 * 1024));
+        byte[] body = new byte[1024];
+        while (true) {
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length <= 0 || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    break;
+                }
+                if (body.length < length) {
+                    body = new byte[Math.max(body.length * 2, length)];
+                }
+                in.readFully(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+                byte opcode = record.get();
+                long sequence = BinaryProtocol.readVarint(record);
+                String key = BinaryProtocol.readString(record);
+                if (sequence > after) {
+                    if (opcode == BinaryProtocol.PUT) {
+                        String value = BinaryProtocol.readString(record);
+                        long expiresAt = record.hasRemaining() ? BinaryProtocol.readVarint(record) : 0;
+                        Snapshot.put(store, key, value, expiresAt);
+                    } else {
+                        store.delete(key);
+                    }
+                    applied++;
+                }
+                appended = Math.max(appended, sequence);
+                position += HEADER_SIZE + length;
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        channel.truncate(position);
+        channel.position(position);
+        durable = appended;
+        return applied;
+    }
+
+    /**
+     * Append an operation to the log. The operation is not durable until awaitDurable() returns for its sequence
+     * number.
+     *
+     * @param opcode BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key    key of the operation
+     * @param value  value of a PUT, null for a DELETE
+     * @return the sequence number of the operation
+     * @throws IOException if a previous write to the log failed
+     */
+    public synchronized long append(byte opcode, String key, String value) throws IOException {
+        return append(opcode, key, value, 0);
+    }
+
+    /**
+     * Append an operation to the log, with the expiry time of a PUT. The operation is not durable until awaitDurable()
+     * returns for its sequence number.
+     *
+     * @param opcode    BinaryProtocol.PUT or BinaryProtocol.DELETE
+     * @param key       key of the operation
+     * @param value     value of a PUT, null for a DELETE
+     * @param expiresAt expiry time of a PUT in milliseconds since the epoch, 0 for no expiry
+     * @return the sequence number of the operation
+     * @throws IOException if a previous write to the log failed
+     */
+    public synchronized long append(byte opcode, String key, String value, long expiresAt) throws IOException {
+        if (failure != null) {
+            throw failure;
+        }
+        long sequence = appended + 1;
+        ByteBuffer record = BinaryProtocol.request(opcode, sequence, key, value);
+        if (expiresAt > 0) {
+            record = ByteBuffer.allocate(record.remaining() + BinaryProtocol.varintSize(expiresAt)).put(record);
+            BinaryProtocol.writeVarint(record, expiresAt);
+            record.flip();
+        }
+        if (pending.remaining() < HEADER_SIZE + record.remaining()) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+                    pending.position() + HEADER_SIZE + record.remaining()));
+            pending = larger.put(pending.flip());
+        }
+        crc.reset();
+        crc.update(record.duplicate());
+        pending.putInt(record.remaining());
+        pending.putInt((int) crc.getValue());
+        pending.put(record);
+        appended = sequence;
+        if (++pendingRecords == 1 || pendingRecords >= batchSize) {
+            notifyAll();
+        }
+        return sequence;
+    }
+
+    /**
+     * Wait until the operation with the provided sequence number is written and synced to disk.
+     *
+     * @param sequence sequence number returned by append()
+     * @throws IOException if writing the log failed
+     */
+    public synchronized void awaitDurable(long sequence) throws IOException {
+        while (durable < sequence) {
+            if (failure != null) {
+                throw failure;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the write-ahead log");
+            }
+        }
+    }
+
+    /**
+     * Discard the records up to the provided sequence number, once they are contained in a snapshot. Appends wait while
+     * the remaining records are copied to a new log file, which then atomically replaces the current one. The current
+     * log stays open until the new one has replaced it, so that a failed rename leaves the log usable.
+     *
+     * @param sequence sequence number of the last operation contained in the snapshot
+     * @throws IOException if the log cannot be rewritten
+     */
+    public synchronized void discardUpTo(long sequence) throws IOException {
+        // Once every appended record is durable, the commit thread is not writing
+        while (durable < appended) {
+            awaitDurable(appended);
+        }
+        // Find the first record after the sequence number, records being in sequence order
+        long offset = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 11);
+        while (offset < size) {
+            header.clear();
+            channel.read(header, offset);
+            header.flip();
+            int length = header.getInt();
+            header.getInt();
+            header.get();
+            if (BinaryProtocol.readVarint(header) > sequence) {
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel tail = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = offset;
+            while (position < size) {
+                position += channel.transferTo(position, size - position, tail);
+            }
+            tail.force(true);
+        }
+        try {
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        FileChannel replaced = channel;
+        channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        channel.position(channel.size());
+        replaced.close();
+        Utils.syncDirectory(path);
+    }
+
+    /**
+     * Get the sequence number of the last appended operation.
+     *
+     * @return the sequence number
+     */
+    public synchronized long getSequence() {
+        return appended;
+    }
+
+    /**
+     * Helper method run by the commit thread. Waits for the first pending record, then for the end of the window or a
+     * full batch, and writes and syncs every pending record at once. Records appended during the fsync join the next
+     * group.
+     */
+    private void commit() {
+        while (true) {
+            long sequence;
+            synchronized (this) {
+                try {
+                    while (pendingRecords == 0) {
+                        wait();
+                    }
+                    long deadline = System.nanoTime() + windowNanos;
+                    long remaining;
+                    while (pendingRecords < batchSize && (remaining = deadline - System.nanoTime()) > 0) {
+                        wait(remaining / 1_000_000, (int) (remaining % 1_000_000));
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // Swap the buffers so appends continue while the group is written
+                ByteBuffer full = pending;
+                pending = writing;
+                writing = full;
+                pendingRecords = 0;
+                sequence = appended;
+            }
+            IOException error = null;
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) {
+                    channel.write(writing);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                error = e;
+            }
+            writing.clear();
+            synchronized (this) {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    durable = sequence;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Close the log file.
+     *
+     * @throws IOException if the operation failed
+     */
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,175 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * Tests of the LsmKVStore: flushing the memtable to segments, compacting the segments, and reopening the directory.
+ * The flushes and compactions run on background threads, so the tests wait for their result in the MANIFEST file.
+ */
+public class LsmKVStoreTest {
+    private final static long TIMEOUT_MS = 10_000;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * A full memtable is written to a segment listed in the manifest, and its entries are still read from there.
+     */
+    @Test
+    public void flushesFullMemtableToSegment() throws Exception {
+        LsmKVStore store = new LsmKVStore(directory, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            store.put(key(i), "value" + i);
+        }
+        store.delete(key(7));
+        freeze(store, 64 * 1024);
+        awaitSegments(segments -> segments == 1);
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i == 7 ? null : "value" + i, store.get(key(i)));
+        }
+        assertEquals(1, segmentFiles().size());
+    }
+
+    /**
+     * Segments are merged once there are enough of them. The newest value of each key survives the merge, deleted keys
+     * stay deleted, and the files of the merged segments are removed.
+     */
+    @Test
+    public void compactsSegmentsKeepingNewestValues() throws Exception {
+        LsmKVStore store = new LsmKVStore(directory, 8 * 1024);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                store.put(key(i), round + "-" + i);
+            }
+        }
+        for (int i = 0; i < 100; i += 10) {
+            store.delete(key(i));
+        }
+        freeze(store, 8 * 1024);
+        // Each round fills more than a memtable, so only compactions keep the segments below the threshold
+        awaitSegments(segments -> segments < 4);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (segmentFiles().size() != manifest().size() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(manifest().size(), segmentFiles().size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i % 10 == 0 ? null : "19-" + i, store.get(key(i)));
+        }
+        List<String> scanned = new ArrayList<>();
+        store.scan(key(0), key(100), 1000, (key, value) -> scanned.add(key));
+        assertEquals(90, scanned.size());
+        for (int i = 1; i < scanned.size(); i++) {
+            assertTrue(scanned.get(i - 1).compareTo(scanned.get(i)) < 0);
+        }
+    }
+
+    /**
+     * A store reopened on the same directory finds the flushed entries and deletions in its segments. Writes still in
+     * the memtable are lost, since only the write-ahead log keeps them across a restart.
+     */
+    @Test
+    public void reopensFlushedSegments() throws Exception {
+        LsmKVStore store = new LsmKVStore(directory, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            store.put(key(i), "value" + i);
+        }
+        store.delete(key(42));
+        freeze(store, 64 * 1024);
+        awaitSegments(segments -> segments == 1);
+        store.put("unflushed", "value");
+
+        LsmKVStore reopened = new LsmKVStore(directory, 64 * 1024);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i == 42 ? null : "value" + i, reopened.get(key(i)));
+        }
+        assertNull(reopened.get("unflushed"));
+        reopened.put(key(42), "again");
+        assertEquals("again", reopened.get(key(42)));
+    }
+
+    /**
+     * Helper method to build a key that sorts in the order of its number.
+     *
+     * @param i number of the key
+     * @return the key
+     */
+    private static String key(int i) {
+        return String.format("key%03d", i);
+    }
+
+    /**
+     * Helper method to fill the memtable with a single large entry, so that it is frozen and flushed.
+     *
+     * @param store        store whose memtable is frozen
+     * @param memtableSize size at which the memtable of the store is frozen
+     */
+    private static void freeze(LsmKVStore store, int memtableSize) {
+        store.put("zz-filler", "x".repeat(memtableSize));
+    }
+
+    /**
+     * Helper method to wait for the number of segments listed in the manifest to satisfy a condition.
+     *
+     * @param condition condition on the number of segments
+     * @throws Exception if the condition is not met before the timeout
+     */
+    private void awaitSegments(IntPredicate condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.test(manifest().size())) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Segments in the manifest: " + manifest());
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Helper method to read the segments listed in the manifest.
+     *
+     * @return the names of the segments, empty before the first flush
+     * @throws IOException if the manifest cannot be read
+     */
+    private List<String> manifest() throws IOException {
+        Path manifest = directory.resolve("MANIFEST");
+        if (!Files.exists(manifest)) {
+            return List.of();
+        }
+        List<String> names = new ArrayList<>();
+        for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+            if (!line.isBlank()) {
+                names.add(line);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Helper method to list the segment files of the directory.
+     *
+     * @return the paths of the segment files
+     * @throws IOException if the directory cannot be listed
+     */
+    private List<Path> segmentFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.seg")) {
+            stream.forEach(files::add);
+        }
+        return files;
+    }
+}
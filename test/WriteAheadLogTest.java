@@ -0,0 +1,195 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the WriteAheadLog: replaying its records into a store, truncating a torn tail left by a crash, discarding
+ * the records contained in a snapshot, and keeping the expiry time of a PUT with a time to live.
+ */
+public class WriteAheadLogTest {
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Every durable record is applied in order by the replay of a new log on the same file.
+     */
+    @Test
+    public void replaysRecordsInOrder() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        log.append(BinaryProtocol.PUT, "a", "1");
+        log.append(BinaryProtocol.PUT, "b", "2");
+        log.append(BinaryProtocol.PUT, "a", "3");
+        log.awaitDurable(log.append(BinaryProtocol.DELETE, "b", null));
+        log.close();
+
+        KVStore store = new ConcurrentKVStore();
+        WriteAheadLog reopened = new WriteAheadLog(path, 1, 512);
+        assertEquals(4, reopened.replay(store, 0));
+        assertEquals("3", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals(4, reopened.getSequence());
+    }
+
+    /**
+     * Records up to the sequence number of a snapshot are skipped, and new records follow it.
+     */
+    @Test
+    public void skipsRecordsContainedInSnapshot() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        log.append(BinaryProtocol.PUT, "a", "1");
+        log.append(BinaryProtocol.PUT, "b", "2");
+        log.awaitDurable(log.append(BinaryProtocol.PUT, "c", "3"));
+        log.close();
+
+        KVStore store = new ConcurrentKVStore();
+        WriteAheadLog reopened = new WriteAheadLog(path, 1, 512);
+        assertEquals(1, reopened.replay(store, 2));
+        assertNull(store.get("a"));
+        assertEquals("3", store.get("c"));
+        assertEquals(4, reopened.append(BinaryProtocol.PUT, "d", "4"));
+    }
+
+    /**
+     * A record torn by a crash at the end of the log is discarded and truncated, so that the records appended after
+     * the restart are replayed on the next one.
+     */
+    @Test
+    public void truncatesTornTail() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        log.append(BinaryProtocol.PUT, "a", "1");
+        log.awaitDurable(log.append(BinaryProtocol.PUT, "b", "2"));
+        log.close();
+        long valid = Files.size(path);
+        // A header announcing a record longer than the bytes that made it to disk
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, BinaryProtocol.PUT, 3}));
+        }
+
+        KVStore store = new ConcurrentKVStore();
+        WriteAheadLog reopened = new WriteAheadLog(path, 1, 512);
+        assertEquals(2, reopened.replay(store, 0));
+        assertEquals(valid, Files.size(path));
+        reopened.awaitDurable(reopened.append(BinaryProtocol.PUT, "c", "3"));
+        reopened.close();
+
+        KVStore restarted = new ConcurrentKVStore();
+        assertEquals(3, new WriteAheadLog(path, 1, 512).replay(restarted, 0));
+        assertEquals("2", restarted.get("b"));
+        assertEquals("3", restarted.get("c"));
+    }
+
+    /**
+     * A record whose checksum does not match ends the replay, like a torn record.
+     */
+    @Test
+    public void stopsAtCorruptRecord() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        log.append(BinaryProtocol.PUT, "a", "1");
+        long first = awaitSize(log, path);
+        log.awaitDurable(log.append(BinaryProtocol.PUT, "b", "2"));
+        log.close();
+        // Flip the last byte of the value of the second record
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 1));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        }
+
+        KVStore store = new ConcurrentKVStore();
+        assertEquals(1, new WriteAheadLog(path, 1, 512).replay(store, 0));
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals(first, Files.size(path));
+    }
+
+    /**
+     * Discarding the records contained in a snapshot keeps the newer ones, with their sequence numbers.
+     */
+    @Test
+    public void discardsRecordsUpToSequence() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        for (int i = 1; i <= 5; i++) {
+            log.append(BinaryProtocol.PUT, "key" + i, "value" + i);
+        }
+        log.discardUpTo(3);
+        log.awaitDurable(log.append(BinaryProtocol.DELETE, "key5", null));
+        log.close();
+
+        KVStore store = new ConcurrentKVStore();
+        WriteAheadLog reopened = new WriteAheadLog(path, 1, 512);
+        assertEquals(3, reopened.replay(store, 3));
+        assertNull(store.get("key3"));
+        assertEquals("value4", store.get("key4"));
+        assertNull(store.get("key5"));
+        assertEquals(6, reopened.getSequence());
+    }
+
+    /**
+     * A PUT with a time to live is replayed with the time it has left, and not at all once it expired.
+     */
+    @Test
+    public void replaysExpiryTimes() throws Exception {
+        Path path = directory.resolve("wal.log");
+        WriteAheadLog log = open(path, new ConcurrentKVStore());
+        long now = System.currentTimeMillis();
+        log.append(BinaryProtocol.PUT, "live", "1", now + 60_000);
+        log.append(BinaryProtocol.PUT, "expired", "2", now - 1_000);
+        log.awaitDurable(log.append(BinaryProtocol.PUT, "forever", "3"));
+        log.close();
+
+        KVStore store = new BoundedKVStore(new LruPolicy(), 100, false);
+        assertEquals(3, new WriteAheadLog(path, 1, 512).replay(store, 0));
+        assertEquals("1", store.get("live"));
+        long expiresAt = store.expiresAt("live");
+        assertTrue(expiresAt >= now + 60_000 && expiresAt <= System.currentTimeMillis() + 61_000,
+                "expires at " + expiresAt);
+        assertNull(store.get("expired"));
+        assertEquals("3", store.get("forever"));
+        assertEquals(0, store.expiresAt("forever"));
+    }
+
+    /**
+     * Helper method to open a log and replay it, as required before appending to it.
+     *
+     * @param path  path of the log file
+     * @param store store to replay the log into
+     * @return the log, ready for appends
+     * @throws IOException if the log cannot be opened or replayed
+     */
+    private static WriteAheadLog open(Path path, KVStore store) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(path, 1, 512);
+        log.replay(store, 0);
+        return log;
+    }
+
+    /**
+     * Helper method to wait for every appended record to be written, and get the size of the log file.
+     *
+     * @param log  log whose records are written
+     * @param path path of the log file
+     * @return the size of the log file
+     * @throws IOException if the log cannot be written
+     */
+    private static long awaitSize(WriteAheadLog log, Path path) throws IOException {
+        log.awaitDurable(log.getSequence());
+        return Files.size(path);
+    }
+}